@@ -0,0 +1,172 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the minima, maxima, occupancy and histogram of a {@link BrickIndex}.
+ */
+public class BrickIndexTest {
+
+	// three by two by two bricks, the last ones partial
+	private static final int WIDTH = 40;
+
+	private static final int HEIGHT = 20;
+
+	private static final int DEPTH = 18;
+
+	@Test
+	public void testMax() {
+		final BrickIndex index = BrickIndex.of(image(), LoadTicket.NONE);
+		assertEquals(50, index.max(index.brick(0, 0, 0)));
+		assertEquals(200, index.max(index.brick(17, 3, 16)));
+		assertEquals(200, index.max(index.brick(31, 15, 17)));
+		assertEquals(255, index.max(index.brick(32, 16, 0)));
+		assertEquals(0, index.max(index.brick(20, 16, 17)));
+	}
+
+	@Test
+	public void testMayCross() {
+		final BrickIndex index = BrickIndex.of(image(), LoadTicket.NONE);
+		// a brick with background and a voxel above the threshold
+		assertTrue(index.mayCross(16, 0, 16, 31, 15, 17, 100));
+		// a full brick is entirely inside
+		assertFalse(index.mayCross(33, 17, 1, 38, 18, 14, 100));
+		// but not where the box reaches outside the image
+		assertTrue(index.mayCross(33, 17, 1, 40, 18, 2, 100));
+		// an empty brick is entirely outside
+		assertFalse(index.mayCross(20, 17, 17, 25, 18, 17, 1));
+		// a voxel below the threshold is outside as well
+		assertFalse(index.mayCross(0, 0, 0, 15, 15, 15, 51));
+		assertTrue(index.mayCross(0, 0, 0, 15, 15, 15, 50));
+	}
+
+	@Test
+	public void testOccupancy() {
+		final BrickIndex index = BrickIndex.of(image(), LoadTicket.NONE);
+		assertEquals((2 + 8 * 4 * 16) / (double) (WIDTH * HEIGHT * DEPTH),
+				index.getOccupancy(), 1e-12);
+	}
+
+	@Test
+	public void testHistogram() {
+		final long[] histogram = BrickIndex.of(image(), LoadTicket.NONE)
+				.getHistogram();
+		assertEquals(256, histogram.length);
+		assertEquals(1, histogram[50]);
+		assertEquals(1, histogram[200]);
+		assertEquals(8 * 4 * 16, histogram[255]);
+		assertEquals(WIDTH * HEIGHT * DEPTH - 2 - 8 * 4 * 16, histogram[0]);
+	}
+
+	@Test
+	public void testChannels() {
+		final ImageStack stack = new ImageStack(16, 16);
+		for (int z = 0; z < 16; z++) {
+			final byte[] first = new byte[16 * 16];
+			Arrays.fill(first, (byte) 255);
+			stack.addSlice("", first);
+			final byte[] second = new byte[16 * 16];
+			if (z == 2) {
+				second[2 * 16 + 2] = 90;
+			}
+			stack.addSlice("", second);
+		}
+		final ImagePlus imp = new ImagePlus("channels", stack);
+		imp.setDimensions(2, 16, 1);
+
+		final BrickIndex index = BrickIndex.of(imp, LoadTicket.NONE);
+		assertEquals(255, index.max(0));
+		assertEquals(1, index.getOccupancy(), 0);
+		// the first channel is above the threshold everywhere
+		assertFalse(index.mayCross(0, 0, 0, 15, 15, 15, 100));
+		assertEquals(16 * 16 * 16 - 1, index.getHistogram()[0]);
+		assertEquals(1, index.getHistogram()[90]);
+	}
+
+	@Test
+	public void testShared() {
+		final ImagePlus imp = image();
+		assertSame(BrickIndex.of(imp, LoadTicket.NONE),
+				BrickIndex.of(imp, LoadTicket.NONE));
+	}
+
+	/**
+	 * One voxel of 50 in the first brick, one of 200 in the brick (1, 0, 1)
+	 * and the brick (2, 1, 0) filled with 255.
+	 */
+	private static ImagePlus image() {
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; z++) {
+			final byte[] plane = new byte[WIDTH * HEIGHT];
+			if (z < 16) {
+				for (int y = 16; y < HEIGHT; y++) {
+					for (int x = 32; x < WIDTH; x++) {
+						plane[y * WIDTH + x] = (byte) 255;
+					}
+				}
+			}
+			stack.addSlice("", plane);
+		}
+		((byte[]) stack.getPixels(1))[0] = 50;
+		((byte[]) stack.getPixels(17))[3 * WIDTH + 17] = (byte) 200;
+		return new ImagePlus("bricks", stack);
+	}
+}
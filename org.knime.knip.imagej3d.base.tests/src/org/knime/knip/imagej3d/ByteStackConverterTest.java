@@ -0,0 +1,303 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+/**
+ * Tests the conversion of the supported pixel types to 8 bit, through the
+ * lookup tables, the specialised loops and the generic path, and the
+ * wrapping of unsigned 8-bit storage.
+ */
+public class ByteStackConverterTest {
+
+	private static final int WIDTH = 20;
+
+	private static final int HEIGHT = 10;
+
+	private static final int DEPTH = 3;
+
+	private static final AxisType[] XYZ = { Axes.X, Axes.Y, Axes.Z };
+
+	@Test
+	public void testUnsignedByte() {
+		assertStretched(fill(ArrayImgs.unsignedBytes(WIDTH, HEIGHT, DEPTH),
+				10, 0.5));
+		assertStretched(fill(planar(new UnsignedByteType()), 10, 0.5));
+	}
+
+	@Test
+	public void testUnsignedShort() {
+		assertStretched(fill(ArrayImgs.unsignedShorts(WIDTH, HEIGHT, DEPTH),
+				1000, 37));
+		assertStretched(fill(planar(new UnsignedShortType()), 1000, 37));
+	}
+
+	@Test
+	public void testShort() {
+		assertStretched(fill(ArrayImgs.shorts(WIDTH, HEIGHT, DEPTH), -5000,
+				17));
+		assertStretched(fill(planar(new ShortType()), -5000, 17));
+	}
+
+	@Test
+	public void testInt() {
+		assertStretched(fill(ArrayImgs.ints(WIDTH, HEIGHT, DEPTH), -100000,
+				1001));
+	}
+
+	@Test
+	public void testFloat() {
+		assertStretched(fill(ArrayImgs.floats(WIDTH, HEIGHT, DEPTH), -1.5,
+				0.01));
+	}
+
+	@Test
+	public void testGeneric() {
+		assertStretched(fill(ArrayImgs.doubles(WIDTH, HEIGHT, DEPTH), 3,
+				0.25));
+		assertStretched(fill(ArrayImgs.bytes(WIDTH, HEIGHT, DEPTH), -100,
+				0.3));
+	}
+
+	@Test
+	public void testConstantPlane() {
+		final Img<UnsignedByteType> img = fill(
+				ArrayImgs.unsignedBytes(WIDTH, HEIGHT, DEPTH), 0, 0.5);
+		// the middle plane has a single value
+		final Cursor<UnsignedByteType> c = img.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			if (c.getIntPosition(2) == 1) {
+				c.get().setReal(77);
+			}
+		}
+		assertStretched(img);
+	}
+
+	/**
+	 * A translated image is read through the generic path, which must
+	 * offset its positions by the origin of the image.
+	 */
+	@Test
+	public void testNonZeroOrigin() {
+		final Img<UnsignedByteType> img = fill(
+				ArrayImgs.unsignedBytes(WIDTH, HEIGHT, DEPTH), 10, 0.5);
+		final Img<UnsignedByteType> translated = new ImgView<UnsignedByteType>(
+				Views.translate(img, 5, -3, 2),
+				new ArrayImgFactory<UnsignedByteType>());
+		assertEquals(-3, translated.min(1));
+
+		final SourcePlanes<UnsignedByteType> src = source(translated);
+		assertNull(src.rawPlane(0));
+		final byte[][] expected = convert(source(img));
+		final byte[][] planes = convert(src);
+		for (int z = 0; z < DEPTH; z++) {
+			assertArrayEquals("plane " + z, expected[z], planes[z]);
+		}
+		assertStretched(translated);
+	}
+
+	@Test
+	public void testWrapPlanar() {
+		final PlanarImg<UnsignedByteType, ?> img = planar(
+				new UnsignedByteType());
+		fill(img, 0, 1);
+		final SourcePlanes<UnsignedByteType> src = source(img);
+		final VolumeStatistics stats = VolumeStatistics.compute(src,
+				LoadTicket.NONE);
+		assertTrue(ByteStackConverter.canWrap(src, stats));
+
+		final byte[][] planes = ByteStackConverter.convertPlanes(src, null,
+				0, DEPTH, LoadTicket.NONE);
+		for (int z = 0; z < DEPTH; z++) {
+			assertSame(img.getPlane(z).getCurrentStorageArray(), planes[z]);
+		}
+	}
+
+	@Test
+	public void testWrapArray() {
+		final Img<UnsignedByteType> img = fill(
+				ArrayImgs.unsignedBytes(WIDTH, HEIGHT, DEPTH), 0, 1);
+		final SourcePlanes<UnsignedByteType> src = source(img);
+		final byte[][] planes = ByteStackConverter.convertPlanes(src, null,
+				1, DEPTH, LoadTicket.NONE);
+		assertEquals(DEPTH - 1, planes.length);
+		for (int z = 1; z < DEPTH; z++) {
+			assertArrayEquals(expected(img, z, 0, 1), planes[z - 1]);
+		}
+	}
+
+	@Test
+	public void testCanWrap() {
+		// the full range is displayed unchanged
+		final SourcePlanes<UnsignedByteType> full = source(fill(
+				ArrayImgs.unsignedBytes(WIDTH, HEIGHT, DEPTH), 0, 1));
+		assertTrue(ByteStackConverter.canWrap(full,
+				VolumeStatistics.compute(full, LoadTicket.NONE)));
+
+		// a narrower range is stretched
+		final SourcePlanes<UnsignedByteType> narrow = source(fill(
+				ArrayImgs.unsignedBytes(WIDTH, HEIGHT, DEPTH), 10, 0.5));
+		assertFalse(ByteStackConverter.canWrap(narrow,
+				VolumeStatistics.compute(narrow, LoadTicket.NONE)));
+		assertFalse(ByteStackConverter.canWrap(narrow, null));
+
+		// other types are always converted
+		final SourcePlanes<?> shorts = source(fill(
+				ArrayImgs.unsignedShorts(WIDTH, HEIGHT, DEPTH), 0, 1));
+		assertFalse(ByteStackConverter.canWrap(shorts,
+				VolumeStatistics.compute(shorts, LoadTicket.NONE)));
+	}
+
+	/**
+	 * Sets each pixel to {@code offset + step * i}, where {@code i} is the
+	 * index of the pixel in XYZ order, wrapped to the range of unsigned 8
+	 * bit so that all types hold the values.
+	 */
+	private static <T extends RealType<T>, I extends Img<T>> I fill(
+			final I img, final double offset, final double step) {
+		final Cursor<T> c = img.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().setReal(offset + step * (index(c) % 256));
+		}
+		return img;
+	}
+
+	private static int index(final Cursor<?> c) {
+		return (c.getIntPosition(2) * HEIGHT + c.getIntPosition(1)) * WIDTH
+				+ c.getIntPosition(0);
+	}
+
+	private static <T extends NativeType<T> & RealType<T>> PlanarImg<T, ?> planar(
+			final T type) {
+		return new PlanarImgFactory<T>().create(new long[] { WIDTH, HEIGHT,
+				DEPTH }, type);
+	}
+
+	private static <T extends RealType<T>> SourcePlanes<T> source(
+			final Img<T> img) {
+		return new SourcePlanes<T>(new ImgPlus<T>(img, "test", XYZ));
+	}
+
+	private static <T extends RealType<T>> byte[][] convert(
+			final SourcePlanes<T> src) {
+		return ByteStackConverter.convertPlanes(src,
+				VolumeStatistics.compute(src, LoadTicket.NONE), 0,
+				src.getPlaneCount(), LoadTicket.NONE);
+	}
+
+	/**
+	 * Checks that all planes are stretched from the range of the image to
+	 * 0..255.
+	 */
+	private static <T extends RealType<T>> void assertStretched(
+			final Img<T> img) {
+		final SourcePlanes<T> src = source(img);
+		final VolumeStatistics stats = VolumeStatistics.compute(src,
+				LoadTicket.NONE);
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (final T t : img) {
+			min = Math.min(min, t.getRealDouble());
+			max = Math.max(max, t.getRealDouble());
+		}
+		assertEquals(min, stats.getMin(), 0);
+		assertEquals(max, stats.getMax(), 0);
+
+		final byte[][] planes = ByteStackConverter.convertPlanes(src, stats,
+				0, DEPTH, LoadTicket.NONE);
+		final double scale = 255 / (max - min);
+		for (int z = 0; z < DEPTH; z++) {
+			assertArrayEquals("plane " + z, expected(img, z, min, scale),
+					planes[z]);
+		}
+	}
+
+	private static <T extends RealType<T>> byte[] expected(final Img<T> img,
+			final int z, final double min, final double scale) {
+		final byte[] plane = new byte[WIDTH * HEIGHT];
+		final Cursor<T> c = img.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			if (c.getLongPosition(2) - img.min(2) == z) {
+				final int x = (int) (c.getLongPosition(0) - img.min(0));
+				final int y = (int) (c.getLongPosition(1) - img.min(1));
+				plane[y * WIDTH + x] = ByteStackConverter.toByte(c.get()
+						.getRealDouble(), min, scale);
+			}
+		}
+		return plane;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the block averaging of {@link Downsampler}.
+ */
+public class DownsamplerTest {
+
+	@Test
+	public void testAverageBlocks() {
+		final ImagePlus imp = image(8, 6, 1, 4);
+		final ImagePlus reduced = Downsampler.downsample(imp, 2, true,
+				LoadTicket.NONE);
+		assertEquals(4, reduced.getWidth());
+		assertEquals(3, reduced.getHeight());
+		assertEquals(2, reduced.getNSlices());
+		assertEquals(2, reduced.getStackSize());
+
+		for (int z = 0; z < 2; z++) {
+			final byte[] expected = new byte[4 * 3];
+			for (int y = 0; y < 3; y++) {
+				for (int x = 0; x < 4; x++) {
+					int sum = 0;
+					for (int dz = 0; dz < 2; dz++) {
+						for (int dy = 0; dy < 2; dy++) {
+							for (int dx = 0; dx < 2; dx++) {
+								sum += value(2 * x + dx, 2 * y + dy, 0, 2
+										* z + dz);
+							}
+						}
+					}
+					expected[y * 4 + x] = (byte) (sum / 8);
+				}
+			}
+			assertArrayEquals("plane " + z, expected, (byte[]) reduced
+					.getStack().getPixels(z + 1));
+		}
+	}
+
+	@Test
+	public void testCenterPlanes() {
+		final ImagePlus imp = image(8, 6, 1, 4);
+		final ImagePlus reduced = Downsampler.downsample(imp, 2, false,
+				LoadTicket.NONE);
+		assertEquals(2, reduced.getNSlices());
+
+		// the center plane of the blocks 0-1 and 2-3 is the second one
+		for (int z = 0; z < 2; z++) {
+			final byte[] expected = new byte[4 * 3];
+			for (int y = 0; y < 3; y++) {
+				for (int x = 0; x < 4; x++) {
+					int sum = 0;
+					for (int dy = 0; dy < 2; dy++) {
+						for (int dx = 0; dx < 2; dx++) {
+							sum += value(2 * x + dx, 2 * y + dy, 0, 2 * z + 1);
+						}
+					}
+					expected[y * 4 + x] = (byte) (sum / 4);
+				}
+			}
+			assertArrayEquals("plane " + z, expected, (byte[]) reduced
+					.getStack().getPixels(z + 1));
+		}
+	}
+
+	@Test
+	public void testChannels() {
+		final ImagePlus imp = image(6, 6, 2, 3);
+		final ImagePlus reduced = Downsampler.downsample(imp, 3, true,
+				LoadTicket.NONE);
+		assertEquals(2, reduced.getNChannels());
+		assertEquals(1, reduced.getNSlices());
+		assertEquals(2, reduced.getStackSize());
+
+		// channels are not mixed
+		for (int c = 0; c < 2; c++) {
+			final byte[] plane = (byte[]) reduced.getStack().getPixels(c + 1);
+			for (int y = 0; y < 2; y++) {
+				for (int x = 0; x < 2; x++) {
+					int sum = 0;
+					for (int z = 0; z < 3; z++) {
+						for (int dy = 0; dy < 3; dy++) {
+							for (int dx = 0; dx < 3; dx++) {
+								sum += value(3 * x + dx, 3 * y + dy, c, z);
+							}
+						}
+					}
+					assertEquals(sum / 27, plane[y * 2 + x] & 0xff);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRemainder() {
+		// a constant image stays constant, whatever the block sizes
+		final ImageStack stack = new ImageStack(9, 7);
+		for (int z = 0; z < 5; z++) {
+			final byte[] plane = new byte[9 * 7];
+			Arrays.fill(plane, (byte) 200);
+			stack.addSlice("", plane);
+		}
+		final ImagePlus imp = new ImagePlus("constant", stack);
+		imp.getCalibration().pixelWidth = 0.5;
+		final ImagePlus reduced = Downsampler.downsample(imp, 2, true,
+				LoadTicket.NONE);
+		assertEquals(4, reduced.getWidth());
+		assertEquals(3, reduced.getHeight());
+		assertEquals(2, reduced.getNSlices());
+		for (int z = 1; z <= 2; z++) {
+			for (final byte v : (byte[]) reduced.getStack().getPixels(z)) {
+				assertEquals(200, v & 0xff);
+			}
+		}
+
+		// the calibration covers the same extent
+		assertEquals(0.5 * 9 / 4, reduced.getCalibration().pixelWidth, 1e-9);
+		assertEquals(7 / 3.0, reduced.getCalibration().pixelHeight, 1e-9);
+		assertEquals(5 / 2.0, reduced.getCalibration().pixelDepth, 1e-9);
+	}
+
+	private static int value(final int x, final int y, final int c,
+			final int z) {
+		return (x * 7 + y * 13 + z * 29 + c * 101) % 256;
+	}
+
+	private static ImagePlus image(final int width, final int height,
+			final int channels, final int slices) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < slices; z++) {
+			for (int c = 0; c < channels; c++) {
+				final byte[] plane = new byte[width * height];
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						plane[y * width + x] = (byte) value(x, y, c, z);
+					}
+				}
+				stack.addSlice("", plane);
+			}
+		}
+		final ImagePlus imp = new ImagePlus("test", stack);
+		imp.setDimensions(channels, slices, 1);
+		return imp;
+	}
+}
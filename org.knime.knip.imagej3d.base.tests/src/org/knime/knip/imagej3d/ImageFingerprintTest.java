@@ -0,0 +1,160 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ImageFingerprint}s are equal exactly for images with the
+ * same content and metadata.
+ */
+public class ImageFingerprintTest {
+
+	private static final AxisType[] XYZ = { Axes.X, Axes.Y, Axes.Z };
+
+	@Test
+	public void testSameContent() {
+		final ImageFingerprint a = fingerprint(bytes(), "img");
+		final ImageFingerprint b = fingerprint(bytes(), "img");
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+	}
+
+	@Test
+	public void testLargeImage() {
+		// only a sample of the pixels is hashed
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(64, 64, 16);
+		fill(img);
+		final Img<UnsignedByteType> copy = ArrayImgs.unsignedBytes(64, 64,
+				16);
+		fill(copy);
+		assertEquals(fingerprint(img, "img"), fingerprint(copy, "img"));
+	}
+
+	@Test
+	public void testDifferentPixel() {
+		final Img<UnsignedByteType> img = bytes();
+		img.randomAccess().get().set(255);
+		assertFalse(fingerprint(bytes(), "img").equals(
+				fingerprint(img, "img")));
+	}
+
+	@Test
+	public void testDifferentName() {
+		assertFalse(fingerprint(bytes(), "img").equals(
+				fingerprint(bytes(), "other")));
+	}
+
+	@Test
+	public void testDifferentDimensions() {
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(12, 8, 2);
+		fill(img);
+		final Img<UnsignedByteType> transposed = ArrayImgs.unsignedBytes(8,
+				12, 2);
+		fill(transposed);
+		assertFalse(fingerprint(img, "img").equals(
+				fingerprint(transposed, "img")));
+	}
+
+	@Test
+	public void testDifferentOrigin() {
+		final Img<UnsignedByteType> translated = new ImgView<UnsignedByteType>(
+				Views.translate(bytes(), 4, 0, 0),
+				new ArrayImgFactory<UnsignedByteType>());
+		assertFalse(fingerprint(bytes(), "img").equals(
+				fingerprint(translated, "img")));
+	}
+
+	@Test
+	public void testDifferentType() {
+		final Img<UnsignedByteType> img = bytes();
+		final Img<UnsignedShortType> shorts = ArrayImgs.unsignedShorts(12, 8,
+				2);
+		fill(shorts);
+		assertFalse(fingerprint(img, "img").equals(
+				fingerprint(shorts, "img")));
+	}
+
+	private static Img<UnsignedByteType> bytes() {
+		final Img<UnsignedByteType> img = ArrayImgs.unsignedBytes(12, 8, 2);
+		fill(img);
+		return img;
+	}
+
+	private static <T extends RealType<T>> void fill(final Img<T> img) {
+		final Cursor<T> c = img.localizingCursor();
+		while (c.hasNext()) {
+			c.fwd();
+			c.get().setReal(
+					(c.getIntPosition(0) * 3 + c.getIntPosition(1) * 5 + c
+							.getIntPosition(2) * 7) % 256);
+		}
+	}
+
+	private static <T extends RealType<T>> ImageFingerprint fingerprint(
+			final Img<T> img, final String name) {
+		return new ImageFingerprint(new ImgPlus<T>(img, name, XYZ));
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+/**
+ * Tests the surface of a voxelised sphere extracted by
+ * {@link SurfaceExtractor}.
+ */
+public class SurfaceExtractorTest {
+
+	// spans three bricks along each axis
+	private static final int SIZE = 40;
+
+	private static final int CENTER = 20;
+
+	private static final int RADIUS = 12;
+
+	private static final int INSIDE = 200;
+
+	@Test
+	public void testDefaultThreshold() {
+		// the isodata threshold of two values is their mean
+		assertEquals(INSIDE / 2, SurfaceExtractor.defaultThreshold(sphere()));
+	}
+
+	@Test
+	public void testSphere() {
+		final ImagePlus imp = sphere();
+		final List<Point3f> mesh = SurfaceExtractor.extract(imp, INSIDE / 2,
+				LoadTicket.NONE);
+		assertTrue(mesh.size() > 0);
+		assertEquals(0, mesh.size() % 3);
+
+		// the vertices lie between voxels inside and outside the sphere
+		final Point3f center = new Point3f(CENTER, CENTER, CENTER);
+		for (final Point3f p : mesh) {
+			assertEquals(RADIUS, p.distance(center), 1);
+		}
+
+		// the surface is closed and oriented outwards, so it encloses the
+		// volume of the voxels inside
+		assertEquals(countInside(), volume(mesh, 1), 0.1 * countInside());
+	}
+
+	@Test
+	public void testCalibration() {
+		final ImagePlus imp = sphere();
+		imp.getCalibration().pixelWidth = 2;
+		imp.getCalibration().pixelDepth = 0.5;
+		final List<Point3f> mesh = SurfaceExtractor.extract(imp, INSIDE / 2,
+				LoadTicket.NONE);
+		for (final Point3f p : mesh) {
+			final Point3f voxel = new Point3f(p.x / 2, p.y, p.z / 0.5f);
+			assertEquals(RADIUS,
+					voxel.distance(new Point3f(CENTER, CENTER, CENTER)), 1);
+		}
+		assertEquals(countInside(), volume(mesh, 2 * 0.5),
+				0.1 * countInside());
+	}
+
+	@Test
+	public void testThresholdAboveAll() {
+		// nothing is inside, a threshold above the maximum has no surface
+		assertEquals(0, SurfaceExtractor.extract(sphere(), INSIDE + 1,
+				LoadTicket.NONE).size());
+	}
+
+	private static boolean inside(final int x, final int y, final int z) {
+		final int dx = x - CENTER;
+		final int dy = y - CENTER;
+		final int dz = z - CENTER;
+		return dx * dx + dy * dy + dz * dz <= RADIUS * RADIUS;
+	}
+
+	private static int countInside() {
+		int n = 0;
+		for (int z = 0; z < SIZE; z++) {
+			for (int y = 0; y < SIZE; y++) {
+				for (int x = 0; x < SIZE; x++) {
+					if (inside(x, y, z)) {
+						n++;
+					}
+				}
+			}
+		}
+		return n;
+	}
+
+	private static ImagePlus sphere() {
+		final ImageStack stack = new ImageStack(SIZE, SIZE);
+		for (int z = 0; z < SIZE; z++) {
+			final byte[] plane = new byte[SIZE * SIZE];
+			for (int y = 0; y < SIZE; y++) {
+				for (int x = 0; x < SIZE; x++) {
+					if (inside(x, y, z)) {
+						plane[y * SIZE + x] = (byte) INSIDE;
+					}
+				}
+			}
+			stack.addSlice("", plane);
+		}
+		return new ImagePlus("sphere", stack);
+	}
+
+	/**
+	 * @return the signed volume enclosed by the triangles in voxels,
+	 *         positive if they are oriented outwards
+	 */
+	private static double volume(final List<Point3f> mesh,
+			final double voxelVolume) {
+		double volume = 0;
+		for (int i = 0; i < mesh.size(); i += 3) {
+			final Point3f a = mesh.get(i);
+			final Point3f b = mesh.get(i + 1);
+			final Point3f c = mesh.get(i + 2);
+			volume += a.x * (b.y * c.z - b.z * c.y) + a.y
+					* (b.z * c.x - b.x * c.z) + a.z * (b.x * c.y - b.y * c.x);
+		}
+		return volume / 6 / voxelVolume;
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Coarse index of the bricks of an 8-bit timepoint: the minimum and maximum
+ * of each channel and the number of voxels which are not background. Ray
+ * casting, surface extraction and histograms use it to skip bricks which are
+ * empty, or transparent under the current threshold. The index of a
+ * timepoint is built once in parallel, one brick layer per task, together
+ * with the histogram of the timepoint. The index of a timepoint read through
+ * a {@link LazyPlaneStack} is kept with its planes, so all loads of the
+ * image share it; the index of a reduced copy is kept as long as the copy.
+ */
+final class BrickIndex {
+
+	/** Edge length of a brick in voxels. */
+	static final int BRICK = 16;
+
+	private static final Map<ImagePlus, BrickIndex> INDICES = new WeakHashMap<ImagePlus, BrickIndex>();
+
+	private final int m_width;
+
+	private final int m_height;
+
+	private final int m_depth;
+
+	private final int m_channels;
+
+	// number of bricks along each axis
+	private final int m_bx, m_by, m_bz;
+
+	// per channel and brick
+	private final byte[][] m_min;
+
+	private final byte[][] m_max;
+
+	// per brick, the maximum of all channels
+	private final byte[] m_combinedMax;
+
+	// per brick, the voxels with a value in any channel
+	private final int[] m_occupied;
+
+	// the values of all channels, guarded by itself
+	private final long[] m_histogram = new long[256];
+
+	private BrickIndex(final ImagePlus imp, final LoadTicket ticket) {
+		m_width = imp.getWidth();
+		m_height = imp.getHeight();
+		m_channels = Math.max(1, imp.getNChannels());
+		m_depth = imp.getStackSize() / m_channels;
+		m_bx = (m_width + BRICK - 1) / BRICK;
+		m_by = (m_height + BRICK - 1) / BRICK;
+		m_bz = (m_depth + BRICK - 1) / BRICK;
+
+		final int bricks = m_bx * m_by * m_bz;
+		m_min = new byte[m_channels][bricks];
+		m_max = new byte[m_channels][bricks];
+		m_combinedMax = new byte[bricks];
+		m_occupied = new int[bricks];
+		new LayerTask(imp.getStack(), ticket, 0, m_bz).invoke();
+	}
+
+	/**
+	 * Returns the index of a timepoint, building it on first use.
+	 * 
+	 * @param imp
+	 *            8-bit image of a single timepoint
+	 * @param ticket
+	 *            cancels building the index
+	 * @return the index
+	 */
+	static BrickIndex of(final ImagePlus imp, final LoadTicket ticket) {
+		if (imp.getStack() instanceof LazyPlaneStack) {
+			final LazyPlaneStack<?> stack = (LazyPlaneStack<?>) imp.getStack();
+			BrickIndex index = stack.getBrickIndex();
+			if (index == null) {
+				final VolumeStatistics stats = stack.getStatistics();
+				index = new BrickIndex(imp, ticket);
+				stack.setBrickIndex(index, stats);
+			}
+			return index;
+		}
+		synchronized (INDICES) {
+			final BrickIndex index = INDICES.get(imp);
+			if (index != null) {
+				return index;
+			}
+		}
+		final BrickIndex index = new BrickIndex(imp, ticket);
+		synchronized (INDICES) {
+			INDICES.put(imp, index);
+		}
+		return index;
+	}
+
+	/**
+	 * @return the index of the brick containing a voxel inside the image
+	 */
+	int brick(final int x, final int y, final int z) {
+		return (z / BRICK * m_by + y / BRICK) * m_bx + x / BRICK;
+	}
+
+	/**
+	 * @return the maximum value of all channels in a brick
+	 */
+	int max(final int brick) {
+		return m_combinedMax[brick] & 0xff;
+	}
+
+	/**
+	 * @return the fraction of voxels with a value in any channel
+	 */
+	double getOccupancy() {
+		long occupied = 0;
+		for (final int n : m_occupied) {
+			occupied += n;
+		}
+		return occupied / ((double) m_width * m_height * m_depth);
+	}
+
+	/**
+	 * Checks whether the channels combined by their maximum may cross a
+	 * threshold in a box of voxels, e.g. whether a surface may pass through
+	 * it. Voxels outside the image count as background.
+	 * 
+	 * @return false if all voxels of the box are certainly below or
+	 *         certainly at or above the threshold
+	 */
+	boolean mayCross(final int x0, final int y0, final int z0, final int x1,
+			final int y1, final int z1, final int threshold) {
+		final boolean outside = x0 < 0 || y0 < 0 || z0 < 0
+				|| x1 >= m_width || y1 >= m_height || z1 >= m_depth;
+		// a lower bound of the minimum of the combined channels
+		int min = outside ? 0 : 255;
+		int max = 0;
+		for (int bz = Math.max(0, z0) / BRICK; bz <= Math.min(m_depth - 1,
+				z1) / BRICK; bz++) {
+			for (int by = Math.max(0, y0) / BRICK; by <= Math.min(
+					m_height - 1, y1) / BRICK; by++) {
+				for (int bx = Math.max(0, x0) / BRICK; bx <= Math.min(
+						m_width - 1, x1) / BRICK; bx++) {
+					final int b = (bz * m_by + by) * m_bx + bx;
+					max = Math.max(max, m_combinedMax[b] & 0xff);
+					int lower = 0;
+					for (int c = 0; c < m_channels; c++) {
+						lower = Math.max(lower, m_min[c][b] & 0xff);
+					}
+					min = Math.min(min, lower);
+				}
+			}
+		}
+		return min < threshold && max >= threshold;
+	}
+
+	/**
+	 * @return the histogram of the values of all channels, 256 bins
+	 */
+	long[] getHistogram() {
+		synchronized (m_histogram) {
+			return m_histogram.clone();
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final class LayerTask extends RecursiveAction {
+
+		private final ImageStack m_stack;
+
+		private final LoadTicket m_ticket;
+
+		// brick layers
+		private final int m_from;
+
+		private final int m_to;
+
+		LayerTask(final ImageStack stack, final LoadTicket ticket,
+				final int from, final int to) {
+			m_stack = stack;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int mid = (m_from + m_to) >>> 1;
+				invokeAll(new LayerTask(m_stack, m_ticket, m_from, mid),
+						new LayerTask(m_stack, m_ticket, mid, m_to));
+				return;
+			}
+			m_ticket.checkCancelled();
+
+			final int first = m_from * m_bx * m_by;
+			final int last = first + m_bx * m_by;
+			for (int c = 0; c < m_channels; c++) {
+				for (int b = first; b < last; b++) {
+					m_min[c][b] = (byte) 255;
+				}
+			}
+
+			final long[] histogram = new long[256];
+			final byte[][] planes = new byte[m_channels][];
+			for (int z = m_from * BRICK; z < Math.min(m_depth, m_to * BRICK); z++) {
+				for (int c = 0; c < m_channels; c++) {
+					planes[c] = (byte[]) m_stack.getPixels(z * m_channels + c
+							+ 1);
+				}
+				for (int y = 0; y < m_height; y++) {
+					final int row = first + y / BRICK * m_bx;
+					for (int x = 0; x < m_width; x++) {
+						final int b = row + x / BRICK;
+						final int i = y * m_width + x;
+						boolean occupied = false;
+						for (int c = 0; c < m_channels; c++) {
+							final int v = planes[c][i] & 0xff;
+							histogram[v]++;
+							if (v < (m_min[c][b] & 0xff)) {
+								m_min[c][b] = (byte) v;
+							}
+							if (v > (m_max[c][b] & 0xff)) {
+								m_max[c][b] = (byte) v;
+							}
+							occupied |= v != 0;
+						}
+						if (occupied) {
+							m_occupied[b]++;
+						}
+					}
+				}
+			}
+
+			for (int b = first; b < last; b++) {
+				int max = 0;
+				for (int c = 0; c < m_channels; c++) {
+					max = Math.max(max, m_max[c][b] & 0xff);
+				}
+				m_combinedMax[b] = (byte) max;
+			}
+			synchronized (m_histogram) {
+				for (int v = 0; v < 256; v++) {
+					m_histogram[v] += histogram[v];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,1188 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import javax.media.j3d.Appearance;
+import javax.media.j3d.Canvas3D;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.ImageComponent;
+import javax.media.j3d.ImageComponent3D;
+import javax.media.j3d.Node;
+import javax.media.j3d.OrderedGroup;
+import javax.media.j3d.PolygonAttributes;
+import javax.media.j3d.QuadArray;
+import javax.media.j3d.RenderingAttributes;
+import javax.media.j3d.RestrictedAccessException;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.Texture;
+import javax.media.j3d.Texture3D;
+import javax.media.j3d.TextureAttributes;
+import javax.media.j3d.Transform3D;
+import javax.media.j3d.TransparencyAttributes;
+import javax.media.j3d.View;
+import javax.vecmath.Color3f;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Tuple3d;
+
+import ij3d.Content;
+import ij3d.ContentNode;
+
+/**
+ * Displays an 8-bit timepoint as a volume split into bricks, each a stack of
+ * slices textured by its own 3D texture. Only the bricks in view are
+ * uploaded, each at the resolution its projection on the screen needs.
+ * Textures are bounded by a budget: the farthest bricks are made coarser
+ * until the view fits, and the textures used least recently are evicted.
+ * The voxels of the bricks are kept in a bounded CPU-side cache, from which
+ * evicted bricks are uploaded again, so volumes several times larger than
+ * the texture memory can be explored at full resolution. Bricks which the
+ * {@link BrickIndex} shows to be below the threshold are never uploaded.
+ * Several channels are combined by their maximum.
+ * <p>
+ * Each texture holds a border of one texel of the neighbouring bricks,
+ * sampled at the level of the texture, so that interpolation runs across the
+ * brick faces without seams, also between bricks of different levels. The
+ * bricks are planned anew only when the eye has moved noticeably; otherwise
+ * they are merely drawn in the new order. Uploads which are still needed
+ * continue across views.
+ * <p>
+ * The edge length of the bricks in voxels, the texture budget and the size
+ * of the cache in MB can be set with the system properties
+ * {@value #BRICK_PROPERTY}, {@value #TEXTURE_PROPERTY} and
+ * {@value #CACHE_PROPERTY}. The cache defaults to an eighth of the maximum
+ * heap and shares the cache budget of {@link MemoryBudget}.
+ */
+final class BrickedVolumeNode extends ContentNode {
+
+	/**
+	 * The render type of bricked volumes, next to those of
+	 * {@link ij3d.ContentConstants}.
+	 */
+	static final int BRICKED_VOLUME = 17;
+
+	/** System property for the edge length of the bricks in voxels. */
+	static final String BRICK_PROPERTY = "knip.imagej3d.brick.size";
+
+	/** System property for the texture budget in MB. */
+	static final String TEXTURE_PROPERTY = "knip.imagej3d.brick.textures";
+
+	/** System property for the size of the voxel cache in MB. */
+	static final String CACHE_PROPERTY = "knip.imagej3d.brick.cache";
+
+	private static final int DEFAULT_BRICK = 64;
+
+	private static final long DEFAULT_TEXTURES = 256;
+
+	// the coarsest level of a brick has at least this edge length
+	private static final int MIN_EDGE = 4;
+
+	// the bricks are planned anew when the eye has moved by this fraction
+	// of its distance to the volume
+	private static final double MOVE_FRACTION = 0.05;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1,
+			Runtime.getRuntime().availableProcessors() - 1),
+			new ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+					final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+							.newThread(pool);
+					t.setName("ImageJ 3D Viewer bricks " + t.getPoolIndex());
+					return t;
+				}
+			}, null, false);
+
+	private final ImageStack m_stack;
+
+	private final int m_width, m_height, m_depth, m_channels;
+
+	private final float[] m_spacing;
+
+	// edge length of a brick at full resolution, a power of two
+	private final int m_edge;
+
+	// number of levels of detail, level l halves the resolution l times
+	private final int m_levels;
+
+	// the bricks with a voxel which is not background
+	private final Brick[] m_bricks;
+
+	private final OrderedGroup m_group = new OrderedGroup();
+
+	private final TransparencyAttributes m_transparency = new TransparencyAttributes(
+			TransparencyAttributes.BLENDED, 0);
+
+	private final TextureAttributes m_textureAttributes = new TextureAttributes();
+
+	private final PolygonAttributes m_polygonAttributes = new PolygonAttributes(
+			PolygonAttributes.POLYGON_FILL, PolygonAttributes.CULL_NONE, 0);
+
+	private final RenderingAttributes m_renderingAttributes = new RenderingAttributes();
+
+	// the transfer function, the color replaces its red, green and blue
+	private final int[] m_red = identity();
+
+	private final int[] m_green = identity();
+
+	private final int[] m_blue = identity();
+
+	private final int[] m_alpha = identity();
+
+	private volatile Color3f m_color;
+
+	private volatile int m_threshold;
+
+	// incremented when the transfer function changes, older textures are
+	// outdated
+	private volatile int m_generation;
+
+	// the bricks with a texture, least recently used first; the following
+	// fields are guarded by this node
+	private final LinkedHashMap<Integer, Brick> m_resident = new LinkedHashMap<Integer, Brick>(
+			16, 0.75f, true);
+
+	private final long m_textureBudget = getTextureBudget();
+
+	private long m_textureBytes;
+
+	private View m_view;
+
+	// the eye in the coordinates of the node, null if not known
+	private Point3d m_eye;
+
+	// from the coordinates of the node to clipping coordinates
+	private final Matrix4d m_projection = new Matrix4d();
+
+	private int m_canvasWidth, m_canvasHeight;
+
+	// the eye and canvas the bricks were planned for, null if not viewed
+	private Point3d m_plannedEye;
+
+	private int m_plannedWidth, m_plannedHeight;
+
+	// the voxels of the bricks per level, least recently used first,
+	// guarded by itself
+	private final LinkedHashMap<Long, byte[]> m_voxels = new LinkedHashMap<Long, byte[]>(
+			16, 0.75f, true);
+
+	private final long m_cacheBudget = getCacheBudget();
+
+	private long m_voxelBytes;
+
+	private final MemoryBudget.Account m_account = MemoryBudget.account(this);
+
+	private BrickedVolumeNode(final ImagePlus imp, final BrickIndex index) {
+		m_stack = imp.getStack();
+		m_width = imp.getWidth();
+		m_height = imp.getHeight();
+		m_channels = Math.max(1, imp.getNChannels());
+		m_depth = imp.getStackSize() / m_channels;
+		final Calibration cal = imp.getCalibration();
+		m_spacing = new float[] { (float) cal.pixelWidth,
+				(float) cal.pixelHeight, (float) cal.pixelDepth };
+
+		int edge = BrickIndex.BRICK;
+		while (edge < Integer.getInteger(BRICK_PROPERTY, DEFAULT_BRICK)) {
+			edge <<= 1;
+		}
+		m_edge = edge;
+		int levels = 1;
+		while (m_edge >> levels >= MIN_EDGE) {
+			levels++;
+		}
+		m_levels = levels;
+
+		setCapability(Node.ALLOW_LOCAL_TO_VWORLD_READ);
+		m_group.setCapability(OrderedGroup.ALLOW_CHILD_INDEX_ORDER_WRITE);
+		m_transparency.setCapability(TransparencyAttributes.ALLOW_VALUE_WRITE);
+		m_textureAttributes.setTextureMode(TextureAttributes.REPLACE);
+		// fully transparent texels are not drawn
+		m_renderingAttributes
+				.setAlphaTestFunction(RenderingAttributes.GREATER);
+		m_renderingAttributes.setAlphaTestValue(0);
+
+		final List<Brick> bricks = new ArrayList<Brick>();
+		for (int z = 0; z < m_depth; z += m_edge) {
+			for (int y = 0; y < m_height; y += m_edge) {
+				for (int x = 0; x < m_width; x += m_edge) {
+					final int max = max(index, x, y, z);
+					if (max > 0) {
+						final Brick brick = new Brick(bricks.size(), x, y, z,
+								max);
+						bricks.add(brick);
+						m_group.addChild(brick.m_shape);
+					}
+				}
+			}
+		}
+		m_bricks = bricks.toArray(new Brick[bricks.size()]);
+		addChild(m_group);
+	}
+
+	/**
+	 * Creates a content displaying a timepoint in bricks. The textures are
+	 * uploaded in the background, coarse ones first until the content is
+	 * viewed.
+	 * 
+	 * @param name
+	 *            the name of the content
+	 * @param imp
+	 *            8-bit image of a single timepoint
+	 * @param ticket
+	 *            cancels building the brick index
+	 * @return the content
+	 */
+	static Content createContent(final String name, final ImagePlus imp,
+			final LoadTicket ticket) {
+		final BrickIndex index = BrickIndex.of(imp, ticket);
+		ticket.checkCancelled();
+		final BrickedVolumeNode node = new BrickedVolumeNode(imp, index);
+		final Content content = new Content(name);
+		content.display(node);
+		node.update(null, true);
+		return content;
+	}
+
+	/**
+	 * @return the number of bytes the textures of a node may use
+	 */
+	static long getTextureBudget() {
+		return Math.max(1, Long.getLong(TEXTURE_PROPERTY, DEFAULT_TEXTURES)) << 20;
+	}
+
+	/**
+	 * @return the number of bytes the voxel cache of a node may use
+	 */
+	static long getCacheBudget() {
+		return Long.getLong(CACHE_PROPERTY, Runtime.getRuntime().maxMemory()
+				/ (8 << 20)) << 20;
+	}
+
+	private static int[] identity() {
+		final int[] lut = new int[256];
+		for (int i = 0; i < lut.length; i++) {
+			lut[i] = i;
+		}
+		return lut;
+	}
+
+	private static int pow2(final int n) {
+		int p = 1;
+		while (p < n) {
+			p <<= 1;
+		}
+		return p;
+	}
+
+	/**
+	 * @return the maximum of a brick from the maxima of the index bricks it
+	 *         consists of
+	 */
+	private int max(final BrickIndex index, final int x0, final int y0,
+			final int z0) {
+		int max = 0;
+		for (int z = z0; z < Math.min(m_depth, z0 + m_edge); z += BrickIndex.BRICK) {
+			for (int y = y0; y < Math.min(m_height, y0 + m_edge); y += BrickIndex.BRICK) {
+				for (int x = x0; x < Math.min(m_width, x0 + m_edge); x += BrickIndex.BRICK) {
+					max = Math.max(max, index.max(index.brick(x, y, z)));
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return the number of voxels of the image which a voxel of a level
+	 *         covers along an axis
+	 */
+	private static int covered(final int lo, final int hi, final int voxel,
+			final int step) {
+		return Math.min(hi, lo + (voxel + 1) * step) - (lo + voxel * step);
+	}
+
+	/**
+	 * @return the number of bytes of the texture of a brick at a level
+	 */
+	private static long textureBytes(final Brick brick, final int level) {
+		return 4L * pow2(brick.texels(0, level))
+				* pow2(brick.texels(1, level)) * pow2(brick.texels(2, level));
+	}
+
+	/**
+	 * Stops uploading textures.
+	 */
+	synchronized void cancel() {
+		for (final Brick brick : m_bricks) {
+			brick.cancelUpload();
+		}
+	}
+
+	/**
+	 * Decides which bricks are uploaded at which level for a view, draws the
+	 * bricks back to front and uploads the missing textures in the
+	 * background. Uploads of bricks which are still wanted at their level
+	 * continue.
+	 * 
+	 * @param view
+	 *            the view, null if not known
+	 * @param replan
+	 *            false to only reorder the bricks unless the eye has moved
+	 *            noticeably since they were planned
+	 */
+	private synchronized void update(final View view, final boolean replan) {
+		m_view = view;
+		final boolean viewed = locate(view);
+		if (viewed && !replan && !hasMoved()) {
+			for (final Brick brick : m_bricks) {
+				brick.m_distance = brick.distance(m_eye);
+			}
+			sortBackToFront();
+			for (final Brick brick : m_resident.values()) {
+				showStack(brick);
+			}
+			return;
+		}
+		m_plannedEye = viewed ? new Point3d(m_eye) : null;
+		m_plannedWidth = m_canvasWidth;
+		m_plannedHeight = m_canvasHeight;
+
+		final int min = Math.max(1, m_threshold);
+		final int generation = m_generation;
+
+		final List<Brick> wanted = new ArrayList<Brick>();
+		for (final Brick brick : m_bricks) {
+			brick.m_wanted = false;
+			brick.m_distance = viewed ? brick.distance(m_eye) : brick.m_id;
+			if (brick.m_max >= min) {
+				brick.m_want = viewed ? neededLevel(brick) : 0;
+				if (brick.m_want >= 0) {
+					wanted.add(brick);
+				}
+			}
+		}
+		Collections.sort(wanted, new Comparator<Brick>() {
+			@Override
+			public int compare(final Brick a, final Brick b) {
+				return Double.compare(a.m_distance, b.m_distance);
+			}
+		});
+		fitBudget(wanted);
+		for (final Brick brick : wanted) {
+			brick.m_wanted = true;
+			// touches the texture
+			m_resident.get(brick.m_id);
+		}
+
+		// bricks which became transparent, and outdated ones out of view
+		final Iterator<Brick> it = m_resident.values().iterator();
+		while (it.hasNext()) {
+			final Brick brick = it.next();
+			if (brick.m_max < min || !brick.m_wanted
+					&& brick.m_built != generation) {
+				it.remove();
+				release(brick);
+			}
+		}
+
+		if (viewed) {
+			sortBackToFront();
+		}
+		for (final Brick brick : m_resident.values()) {
+			showStack(brick);
+		}
+
+		// uploads which are outdated, too coarse or not wanted any more
+		for (final Brick brick : m_bricks) {
+			if (brick.m_upload != null
+					&& (!brick.m_wanted
+							|| brick.m_uploadGeneration != generation || brick.m_uploadLevel > brick.m_want)) {
+				brick.cancelUpload();
+			}
+		}
+
+		final List<Brick> missing = new ArrayList<Brick>();
+		for (final Brick brick : wanted) {
+			if (brick.m_upload == null
+					&& (brick.m_level < 0 || brick.m_level > brick.m_want || brick.m_built != generation)) {
+				brick.m_upload = new LoadTicket();
+				brick.m_uploadLevel = brick.m_want;
+				brick.m_uploadGeneration = generation;
+				missing.add(brick);
+			}
+		}
+		if (!missing.isEmpty()) {
+			final Brick[] bricks = missing.toArray(new Brick[missing.size()]);
+			final int[] levels = new int[bricks.length];
+			final LoadTicket[] tickets = new LoadTicket[bricks.length];
+			for (int i = 0; i < bricks.length; i++) {
+				levels[i] = bricks[i].m_uploadLevel;
+				tickets[i] = bricks[i].m_upload;
+			}
+			POOL.execute(new UploadTask(bricks, levels, generation, tickets,
+					0, bricks.length));
+		}
+	}
+
+	/**
+	 * @return true if the eye or the canvas changed enough since the bricks
+	 *         were planned to need other levels
+	 */
+	private boolean hasMoved() {
+		if (m_plannedEye == null || m_canvasWidth != m_plannedWidth
+				|| m_canvasHeight != m_plannedHeight) {
+			return true;
+		}
+		final Point3d center = new Point3d();
+		getCenter(center);
+		return m_eye.distance(m_plannedEye) > MOVE_FRACTION
+				* m_plannedEye.distance(center);
+	}
+
+	/**
+	 * Finds the eye and the projection of the first canvas of a view.
+	 * 
+	 * @return false if the node is not viewed
+	 */
+	private boolean locate(final View view) {
+		m_eye = null;
+		if (view == null || view.numCanvas3Ds() == 0 || !isLive()) {
+			return false;
+		}
+		final Canvas3D canvas = view.getCanvas3D(0);
+		m_canvasWidth = canvas.getWidth();
+		m_canvasHeight = canvas.getHeight();
+		if (m_canvasWidth <= 0 || m_canvasHeight <= 0) {
+			return false;
+		}
+
+		final Transform3D local = new Transform3D();
+		try {
+			getLocalToVworld(local);
+		} catch (final RestrictedAccessException e) {
+			// not attached to a universe any more
+			return false;
+		}
+		final Transform3D projection = new Transform3D();
+		canvas.getVworldProjection(projection, new Transform3D());
+		projection.mul(local);
+		projection.get(m_projection);
+
+		final Point3d eye = new Point3d();
+		canvas.getCenterEyeInImagePlate(eye);
+		final Transform3D toVworld = new Transform3D();
+		canvas.getImagePlateToVworld(toVworld);
+		toVworld.transform(eye);
+		local.invert();
+		local.transform(eye);
+		m_eye = eye;
+		return true;
+	}
+
+	/**
+	 * @return the coarsest level which resolves the projection of a brick on
+	 *         the canvas, -1 if it is out of view
+	 */
+	private int neededLevel(final Brick brick) {
+		double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		final Matrix4d m = m_projection;
+		for (int c = 0; c < 8; c++) {
+			final double x = brick.corner(0, c & 1);
+			final double y = brick.corner(1, c >> 1 & 1);
+			final double z = brick.corner(2, c >> 2 & 1);
+			final double w = m.m30 * x + m.m31 * y + m.m32 * z + m.m33;
+			if (w <= 0) {
+				// the eye is inside or next to the brick
+				return 0;
+			}
+			final double px = (m.m00 * x + m.m01 * y + m.m02 * z + m.m03) / w;
+			final double py = (m.m10 * x + m.m11 * y + m.m12 * z + m.m13) / w;
+			minX = Math.min(minX, px);
+			maxX = Math.max(maxX, px);
+			minY = Math.min(minY, py);
+			maxY = Math.max(maxY, py);
+		}
+		if (maxX < -1 || minX > 1 || maxY < -1 || minY > 1) {
+			return -1;
+		}
+
+		final double pixels = Math.max((maxX - minX) * m_canvasWidth / 2,
+				(maxY - minY) * m_canvasHeight / 2);
+		final int voxels = Math.max(brick.m_size[0],
+				Math.max(brick.m_size[1], brick.m_size[2]));
+		int level = 0;
+		while (level < m_levels - 1 && voxels >> level + 1 >= pixels) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Makes the farthest bricks coarser, and finally leaves them out, until
+	 * the textures of the wanted bricks fit the budget.
+	 * 
+	 * @param wanted
+	 *            the wanted bricks, nearest first
+	 */
+	private void fitBudget(final List<Brick> wanted) {
+		long total = 0;
+		for (final Brick brick : wanted) {
+			total += textureBytes(brick, brick.m_want);
+		}
+		boolean coarsened = true;
+		while (total > m_textureBudget && coarsened) {
+			coarsened = false;
+			for (int i = wanted.size() - 1; i >= 0 && total > m_textureBudget; i--) {
+				final Brick brick = wanted.get(i);
+				if (brick.m_want < m_levels - 1) {
+					total -= textureBytes(brick, brick.m_want);
+					brick.m_want++;
+					total += textureBytes(brick, brick.m_want);
+					coarsened = true;
+				}
+			}
+		}
+		while (total > m_textureBudget && !wanted.isEmpty()) {
+			final Brick brick = wanted.remove(wanted.size() - 1);
+			total -= textureBytes(brick, brick.m_want);
+		}
+	}
+
+	/**
+	 * Orders the bricks so that the farthest is drawn first.
+	 */
+	private void sortBackToFront() {
+		final Brick[] order = m_bricks.clone();
+		Arrays.sort(order, new Comparator<Brick>() {
+			@Override
+			public int compare(final Brick a, final Brick b) {
+				return Double.compare(b.m_distance, a.m_distance);
+			}
+		});
+		final int[] indices = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			indices[i] = order[i].m_id;
+		}
+		m_group.setChildIndexOrder(indices);
+	}
+
+	/**
+	 * Shows the slices of a brick which face the eye, drawn back to front.
+	 */
+	private void showStack(final Brick brick) {
+		int axis = 2;
+		boolean descending = true;
+		if (m_eye != null) {
+			final double[] d = { brick.center(0) - m_eye.x,
+					brick.center(1) - m_eye.y, brick.center(2) - m_eye.z };
+			axis = 0;
+			for (int a = 1; a < 3; a++) {
+				if (Math.abs(d[a]) > Math.abs(d[axis])) {
+					axis = a;
+				}
+			}
+			descending = d[axis] >= 0;
+		}
+		final int stack = 2 * axis + (descending ? 0 : 1);
+		if (stack != brick.m_shown) {
+			if (brick.m_stacks[stack] == null) {
+				brick.m_stacks[stack] = brick.createStack(axis, descending);
+			}
+			brick.m_shape.setGeometry(brick.m_stacks[stack]);
+			brick.m_shown = stack;
+		}
+	}
+
+	/**
+	 * Replaces the texture of a brick by an uploaded one, evicting the
+	 * textures used least recently which are not wanted if the budget is
+	 * exceeded. The texture is dropped if it is outdated or does not fit.
+	 */
+	private synchronized void apply(final Brick brick, final int level,
+			final int generation, final LoadTicket ticket,
+			final Texture3D texture) {
+		if (ticket.isCancelled() || brick.m_upload != ticket) {
+			return;
+		}
+		brick.m_upload = null;
+		if (generation != m_generation) {
+			return;
+		}
+		final long bytes = textureBytes(brick, level);
+		long free = m_textureBudget - m_textureBytes + brick.m_bytes;
+		final Iterator<Brick> it = m_resident.values().iterator();
+		while (free < bytes && it.hasNext()) {
+			final Brick other = it.next();
+			if (other != brick && !other.m_wanted) {
+				free += other.m_bytes;
+				it.remove();
+				release(other);
+			}
+		}
+		if (free < bytes) {
+			return;
+		}
+
+		brick.m_shape.getAppearance().setTexture(texture);
+		m_textureBytes += bytes - brick.m_bytes;
+		brick.m_bytes = bytes;
+		brick.m_level = level;
+		brick.m_built = generation;
+		Arrays.fill(brick.m_stacks, null);
+		brick.m_shown = -1;
+		m_resident.put(brick.m_id, brick);
+		showStack(brick);
+	}
+
+	/**
+	 * Hides a brick and drops its texture; the caller removes it from the
+	 * resident bricks.
+	 */
+	private void release(final Brick brick) {
+		brick.m_shape.setGeometry(null);
+		brick.m_shape.getAppearance().setTexture(null);
+		m_textureBytes -= brick.m_bytes;
+		brick.m_bytes = 0;
+		brick.m_level = -1;
+		brick.m_shown = -1;
+		Arrays.fill(brick.m_stacks, null);
+	}
+
+	/**
+	 * Rebuilds the textures after the transfer function changed.
+	 */
+	private void transferFunctionUpdated() {
+		m_generation++;
+		update(m_view, true);
+	}
+
+	/**
+	 * @return the voxels of a brick at a level with their border, from the
+	 *         cache or read from the image
+	 */
+	private byte[] voxels(final Brick brick, final int level) {
+		final long key = (long) brick.m_id * m_levels + level;
+		synchronized (m_voxels) {
+			final byte[] voxels = m_voxels.get(key);
+			if (voxels != null) {
+				return voxels;
+			}
+		}
+		final byte[] voxels = brick.read(level);
+		synchronized (m_voxels) {
+			if (m_voxels.put(key, voxels) == null) {
+				m_voxelBytes += voxels.length;
+				m_account.add(voxels.length);
+			}
+			// the voxels just computed are kept
+			final Iterator<byte[]> it = m_voxels.values().iterator();
+			while ((m_voxelBytes > m_cacheBudget || MemoryBudget.isCacheFull())
+					&& m_voxels.size() > 1) {
+				final int evicted = it.next().length;
+				it.remove();
+				m_voxelBytes -= evicted;
+				m_account.add(-evicted);
+			}
+		}
+		return voxels;
+	}
+
+	/**
+	 * @return the texture of a brick at a level, colored by the current
+	 *         transfer function
+	 */
+	private Texture3D createTexture(final Brick brick, final int level,
+			final byte[] voxels) {
+		final int w = brick.texels(0, level);
+		final int h = brick.texels(1, level);
+		final int d = brick.texels(2, level);
+		final int tw = pow2(w);
+		final int th = pow2(h);
+		final int td = pow2(d);
+		final BufferedImage[] images = new BufferedImage[td];
+		for (int z = 0; z < td; z++) {
+			images[z] = new BufferedImage(tw, th, BufferedImage.TYPE_INT_ARGB);
+			if (z >= d) {
+				continue;
+			}
+			final int[] argb = ((DataBufferInt) images[z].getRaster()
+					.getDataBuffer()).getData();
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					argb[y * tw + x] = toARGB(voxels[(z * h + y) * w + x] & 0xff);
+				}
+			}
+		}
+
+		// row 0 of the images is at texture coordinate 0
+		final ImageComponent3D image = new ImageComponent3D(
+				ImageComponent.FORMAT_RGBA, images, false, true);
+		final Texture3D tex = new Texture3D(Texture.BASE_LEVEL,
+				Texture.RGBA, tw, th, td);
+		tex.setImage(0, image);
+		tex.setMinFilter(Texture.BASE_LEVEL_LINEAR);
+		tex.setMagFilter(Texture.BASE_LEVEL_LINEAR);
+		tex.setBoundaryModeS(Texture.CLAMP_TO_EDGE);
+		tex.setBoundaryModeT(Texture.CLAMP_TO_EDGE);
+		tex.setBoundaryModeR(Texture.CLAMP_TO_EDGE);
+		return tex;
+	}
+
+	private int toARGB(final int v) {
+		if (v < m_threshold) {
+			return 0;
+		}
+		final Color3f color = m_color;
+		final int r;
+		final int g;
+		final int b;
+		if (color != null) {
+			r = (int) (v * color.x);
+			g = (int) (v * color.y);
+			b = (int) (v * color.z);
+		} else {
+			r = m_red[v];
+			g = m_green[v];
+			b = m_blue[v];
+		}
+		return (m_alpha[v] << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	@Override
+	public void getMin(final Tuple3d min) {
+		min.set(0, 0, 0);
+	}
+
+	@Override
+	public void getMax(final Tuple3d max) {
+		max.set(m_width * m_spacing[0], m_height * m_spacing[1], m_depth
+				* m_spacing[2]);
+	}
+
+	@Override
+	public void getCenter(final Tuple3d center) {
+		getMax(center);
+		center.scale(0.5);
+	}
+
+	@Override
+	public void channelsUpdated(final boolean[] channels) {
+		// bricks combine the channels
+	}
+
+	@Override
+	public void lutUpdated(final int[] r, final int[] g, final int[] b,
+			final int[] a) {
+		System.arraycopy(r, 0, m_red, 0, m_red.length);
+		System.arraycopy(g, 0, m_green, 0, m_green.length);
+		System.arraycopy(b, 0, m_blue, 0, m_blue.length);
+		System.arraycopy(a, 0, m_alpha, 0, m_alpha.length);
+		transferFunctionUpdated();
+	}
+
+	@Override
+	public void thresholdUpdated(final int threshold) {
+		m_threshold = threshold;
+		transferFunctionUpdated();
+	}
+
+	@Override
+	public void colorUpdated(final Color3f color) {
+		m_color = color == null ? null : new Color3f(color);
+		transferFunctionUpdated();
+	}
+
+	@Override
+	public void transparencyUpdated(final float transparency) {
+		m_transparency.setTransparency(transparency);
+	}
+
+	@Override
+	public void shadeUpdated(final boolean shaded) {
+		// volumes are not shaded
+	}
+
+	@Override
+	public void eyePtChanged(final View view) {
+		update(view, false);
+	}
+
+	@Override
+	public float getVolume() {
+		return 0;
+	}
+
+	@Override
+	public void restoreDisplayedData(final String path, final String name) {
+		// bricks are read from the image again
+	}
+
+	@Override
+	public void swapDisplayedData(final String path, final String name) {
+		// bricks are read from the image again
+	}
+
+	@Override
+	public synchronized void clearDisplayedData() {
+		cancel();
+		m_plannedEye = null;
+		for (final Brick brick : m_resident.values()) {
+			release(brick);
+		}
+		m_resident.clear();
+		synchronized (m_voxels) {
+			m_voxels.clear();
+			m_voxelBytes = 0;
+			m_account.set(0);
+		}
+	}
+
+	/**
+	 * A brick of the volume and its texture.
+	 */
+	private final class Brick {
+
+		// the index of the shape in the group
+		private final int m_id;
+
+		// the first voxel and the number of voxels along X, Y and Z
+		private final int[] m_origin;
+
+		private final int[] m_size;
+
+		private final int m_max;
+
+		private final Shape3D m_shape;
+
+		// the level and transfer function of the texture, -1 if none
+		private int m_level = -1;
+
+		private int m_built = -1;
+
+		private long m_bytes;
+
+		// the slices of the level per axis and drawing order, and the one
+		// displayed
+		private final QuadArray[] m_stacks = new QuadArray[6];
+
+		private int m_shown = -1;
+
+		// the level decided for the current view
+		private int m_want;
+
+		private boolean m_wanted;
+
+		private double m_distance;
+
+		// the upload in flight, null if none, and what it uploads
+		private LoadTicket m_upload;
+
+		private int m_uploadLevel;
+
+		private int m_uploadGeneration;
+
+		Brick(final int id, final int x, final int y, final int z,
+				final int max) {
+			m_id = id;
+			m_origin = new int[] { x, y, z };
+			m_size = new int[] { Math.min(m_edge, m_width - x),
+					Math.min(m_edge, m_height - y),
+					Math.min(m_edge, m_depth - z) };
+			m_max = max;
+
+			final Appearance app = new Appearance();
+			app.setCapability(Appearance.ALLOW_TEXTURE_WRITE);
+			app.setTextureAttributes(m_textureAttributes);
+			app.setPolygonAttributes(m_polygonAttributes);
+			app.setTransparencyAttributes(m_transparency);
+			app.setRenderingAttributes(m_renderingAttributes);
+			m_shape = new Shape3D(null, app);
+			m_shape.setCapability(Shape3D.ALLOW_GEOMETRY_WRITE);
+			m_shape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
+		}
+
+		/**
+		 * @return the number of voxels along an axis at a level
+		 */
+		int size(final int axis, final int level) {
+			return (m_size[axis] + (1 << level) - 1) >> level;
+		}
+
+		/**
+		 * Stops the upload in flight, if any.
+		 */
+		void cancelUpload() {
+			if (m_upload != null) {
+				m_upload.cancel();
+				m_upload = null;
+			}
+		}
+
+		/**
+		 * @return the lower or upper bound along an axis in calibrated units
+		 */
+		double corner(final int axis, final int upper) {
+			return (m_origin[axis] + upper * m_size[axis]) * m_spacing[axis];
+		}
+
+		double center(final int axis) {
+			return (m_origin[axis] + m_size[axis] / 2.0) * m_spacing[axis];
+		}
+
+		double distance(final Point3d eye) {
+			final double dx = center(0) - eye.x;
+			final double dy = center(1) - eye.y;
+			final double dz = center(2) - eye.z;
+			return Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+
+		/**
+		 * @return the number of voxels of the image along an axis
+		 */
+		private int extent(final int axis) {
+			return axis == 0 ? m_width : axis == 1 ? m_height : m_depth;
+		}
+
+		/**
+		 * @return 1 if the brick has a neighbour below along an axis, whose
+		 *         border the texture holds, otherwise 0
+		 */
+		int lowerBorder(final int axis) {
+			return m_origin[axis] > 0 ? 1 : 0;
+		}
+
+		/**
+		 * @return 1 if the brick has a neighbour above along an axis,
+		 *         otherwise 0
+		 */
+		int upperBorder(final int axis) {
+			return m_origin[axis] + m_size[axis] < extent(axis) ? 1 : 0;
+		}
+
+		/**
+		 * @return the number of texels along an axis at a level, including
+		 *         the borders of the neighbours
+		 */
+		int texels(final int axis, final int level) {
+			return lowerBorder(axis) + size(axis, level) + upperBorder(axis);
+		}
+
+		/**
+		 * Reads the voxels of a level and its border, each the mean of the
+		 * voxels of the image it covers. The voxels of a level are aligned to
+		 * the brick, so a border texel is the voxel of the neighbour at the
+		 * same level.
+		 * 
+		 * @return the voxels, X fastest
+		 */
+		byte[] read(final int level) {
+			final int step = 1 << level;
+			final int[] lo = new int[3];
+			final int[] hi = new int[3];
+			final int[] n = new int[3];
+			for (int a = 0; a < 3; a++) {
+				lo[a] = m_origin[a] - step * lowerBorder(a);
+				hi[a] = Math.min(extent(a), m_origin[a] + m_size[a] + step
+						* upperBorder(a));
+				n[a] = texels(a, level);
+			}
+			final int rowWidth = hi[0] - lo[0];
+			final int[] sums = new int[n[0] * n[1] * n[2]];
+			final byte[] row = new byte[rowWidth];
+			for (int z = lo[2]; z < hi[2]; z++) {
+				final int tz = (z - lo[2]) >> level;
+				for (int y = lo[1]; y < hi[1]; y++) {
+					// the channels are combined by their maximum
+					Arrays.fill(row, (byte) 0);
+					for (int c = 0; c < m_channels; c++) {
+						final byte[] plane = (byte[]) m_stack.getPixels(z
+								* m_channels + c + 1);
+						final int src = y * m_width + lo[0];
+						for (int x = 0; x < rowWidth; x++) {
+							if ((plane[src + x] & 0xff) > (row[x] & 0xff)) {
+								row[x] = plane[src + x];
+							}
+						}
+					}
+					final int dst = (tz * n[1] + ((y - lo[1]) >> level))
+							* n[0];
+					for (int x = 0; x < rowWidth; x++) {
+						sums[dst + (x >> level)] += row[x] & 0xff;
+					}
+				}
+			}
+
+			final byte[] voxels = new byte[sums.length];
+			for (int tz = 0; tz < n[2]; tz++) {
+				final int cz = covered(lo[2], hi[2], tz, step);
+				for (int ty = 0; ty < n[1]; ty++) {
+					final int cy = covered(lo[1], hi[1], ty, step);
+					for (int tx = 0; tx < n[0]; tx++) {
+						final int i = (tz * n[1] + ty) * n[0] + tx;
+						voxels[i] = (byte) (sums[i] / (cz * cy * covered(
+								lo[0], hi[0], tx, step)));
+					}
+				}
+			}
+			return voxels;
+		}
+
+		/**
+		 * @return the slices of the texture level normal to an axis, the
+		 *         upper one first if descending
+		 */
+		QuadArray createStack(final int axis, final boolean descending) {
+			final int u = (axis + 1) % 3;
+			final int v = (axis + 2) % 3;
+			final int n = size(axis, m_level);
+			final float[] lower = new float[3];
+			final float[] extent = new float[3];
+			for (int a = 0; a < 3; a++) {
+				// the brick without the borders in texture coordinates
+				final int tex = pow2(texels(a, m_level));
+				lower[a] = (float) lowerBorder(a) / tex;
+				extent[a] = (float) m_size[a] / (1 << m_level) / tex;
+			}
+			final float[] coords = new float[12 * n];
+			final float[] texCoords = new float[12 * n];
+			final int[][] corners = { { 0, 0 }, { 1, 0 }, { 1, 1 }, { 0, 1 } };
+			for (int k = 0; k < n; k++) {
+				final int s = descending ? n - 1 - k : k;
+				final double p = (s + 0.5) / n;
+				for (int c = 0; c < 4; c++) {
+					final int i = 3 * (4 * k + c);
+					coords[i + axis] = (float) (corner(axis, 0) + p
+							* (corner(axis, 1) - corner(axis, 0)));
+					coords[i + u] = (float) corner(u, corners[c][0]);
+					coords[i + v] = (float) corner(v, corners[c][1]);
+					texCoords[i + axis] = (float) (lower[axis] + p
+							* extent[axis]);
+					texCoords[i + u] = lower[u] + corners[c][0] * extent[u];
+					texCoords[i + v] = lower[v] + corners[c][1] * extent[v];
+				}
+			}
+			final QuadArray quads = new QuadArray(4 * n,
+					GeometryArray.COORDINATES
+							| GeometryArray.TEXTURE_COORDINATE_3);
+			quads.setCoordinates(0, coords);
+			quads.setTextureCoordinates(0, 0, texCoords);
+			return quads;
+		}
+	}
+
+	/**
+	 * Reads and uploads the textures of bricks, nearest first, skipping the
+	 * bricks whose upload a later view has cancelled.
+	 */
+	@SuppressWarnings("serial")
+	private final class UploadTask extends RecursiveAction {
+
+		private final Brick[] m_upload;
+
+		private final int[] m_uploadLevels;
+
+		private final int m_uploadGeneration;
+
+		private final LoadTicket[] m_uploadTickets;
+
+		private final int m_from;
+
+		private final int m_to;
+
+		UploadTask(final Brick[] bricks, final int[] levels,
+				final int generation, final LoadTicket[] tickets,
+				final int from, final int to) {
+			m_upload = bricks;
+			m_uploadLevels = levels;
+			m_uploadGeneration = generation;
+			m_uploadTickets = tickets;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int mid = (m_from + m_to) >>> 1;
+				invokeAll(new UploadTask(m_upload, m_uploadLevels,
+						m_uploadGeneration, m_uploadTickets, m_from, mid),
+						new UploadTask(m_upload, m_uploadLevels,
+								m_uploadGeneration, m_uploadTickets, mid, m_to));
+				return;
+			}
+			final LoadTicket ticket = m_uploadTickets[m_from];
+			if (ticket.isCancelled()) {
+				return;
+			}
+			final Brick brick = m_upload[m_from];
+			final int level = m_uploadLevels[m_from];
+			apply(brick, level, m_uploadGeneration, ticket, createTexture(
+					brick, level, voxels(brick, level)));
+		}
+	}
+}
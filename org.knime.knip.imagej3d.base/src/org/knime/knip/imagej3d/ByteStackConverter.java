@@ -0,0 +1,392 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Converts the planes of an image into the 8-bit planes the 3D Viewer renders.
+ * The planes are converted in parallel on a fork-join pool, large planes are
+ * further split into blocks of rows. The work runs in the pool of the calling
+ * thread if it is a fork-join worker, otherwise in the common pool. The
+ * common pixel types are read straight from their primitive storage and
+ * written into the target byte planes.
+ * <p>
+ * Unsigned 8-bit images are stretched to their range like all others. They
+ * are only displayed straight from their storage, without a copy, if their
+ * range is the full 0..255 anyway, or if the system property
+ * {@value #RAW_PROPERTY} asks to show them unstretched.
+ */
+final class ByteStackConverter {
+
+	/** System property to display unsigned 8-bit images unstretched. */
+	static final String RAW_PROPERTY = "knip.imagej3d.raw8bit";
+
+	private static final boolean RAW = Boolean.getBoolean(RAW_PROPERTY);
+
+	// planes with more pixels than this are split into row blocks
+	private static final int BLOCK_SIZE = 1 << 18;
+
+	private ByteStackConverter() {
+		// utility class
+	}
+
+	/**
+	 * @param src
+	 *            the source planes
+	 * @param stats
+	 *            the statistics of the source, null if not computed yet
+	 * @return true if the source is an unsigned byte image with primitive
+	 *         storage which is displayed without conversion: if unstretched
+	 *         display is asked for, or if its range is 0..255, so stretching
+	 *         would not change it
+	 */
+	static boolean canWrap(final SourcePlanes<?> src,
+			final VolumeStatistics stats) {
+		return src.getKind() == SourcePlanes.Kind.UNSIGNED_BYTE
+				&& src.rawPlane(0) != null
+				&& (RAW || stats != null && stats.getMin() == 0
+						&& stats.getMax() == 255);
+	}
+
+	/**
+	 * Converts a range of planes. If no statistics are given, the source
+	 * must be wrappable and the planes are taken from its storage: planar
+	 * images share their plane arrays, array images keep all planes in one
+	 * array, so their planes are copied out in bulk.
+	 * 
+	 * @param src
+	 *            the source planes
+	 * @param stats
+	 *            the statistics of the source, null to wrap the storage
+	 * @param from
+	 *            first plane, inclusive
+	 * @param to
+	 *            last plane, exclusive
+	 * @param ticket
+	 *            checked before each block of work
+	 * @return the requested planes, plane {@code p} at index
+	 *         {@code p - from}
+	 */
+	static <T extends RealType<T>> byte[][] convertPlanes(
+			final SourcePlanes<T> src, final VolumeStatistics stats,
+			final int from, final int to, final LoadTicket ticket) {
+		if (stats == null) {
+			return wrapPlanes(src, from, to);
+		}
+		final byte[][] planes = new byte[to - from][];
+		new PlaneTask<T>(src, stats, ticket, planes, from, to, 0,
+				src.getHeight()).invoke();
+		return planes;
+	}
+
+	private static byte[][] wrapPlanes(final SourcePlanes<?> src,
+			final int from, final int to) {
+		final int size = src.getWidth() * src.getHeight();
+		final byte[][] planes = new byte[to - from][];
+		for (int p = from; p < to; p++) {
+			final byte[] data = (byte[]) src.rawPlane(p);
+			final int off = src.rawOffset(p);
+			if (src.isPlanar() || (off == 0 && data.length == size)) {
+				planes[p - from] = data;
+			} else {
+				planes[p - from] = Arrays.copyOfRange(data, off, off + size);
+			}
+		}
+		return planes;
+	}
+
+	/**
+	 * Wraps a stack into an {@link ImagePlus} with the channels, slices and
+	 * calibration of the source.
+	 * 
+	 * @param src
+	 *            the source planes
+	 * @param stack
+	 *            the 8-bit stack in ImageJ order
+	 * @param frames
+	 *            number of frames in the stack
+	 * @return the image
+	 */
+	static ImagePlus toImagePlus(final SourcePlanes<?> src,
+			final ImageStack stack, final int frames) {
+		final String name = src.getImgPlus().getName();
+		final ImagePlus imp = new ImagePlus(name == null ? "" : name, stack);
+		imp.setDimensions(src.getChannels(), src.getSlices(), frames);
+		if (src.getChannels() > 1 || frames > 1) {
+			imp.setOpenAsHyperStack(true);
+		}
+
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = src.getSpacing(Axes.X);
+		cal.pixelHeight = src.getSpacing(Axes.Y);
+		cal.pixelDepth = src.getSpacing(Axes.Z);
+		return imp;
+	}
+
+	/**
+	 * @return value mapped into [0, 255], truncated
+	 */
+	static byte toByte(final double value, final double min,
+			final double scale) {
+		final int v = (int) ((value - min) * scale);
+		return (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+	}
+
+	/**
+	 * Lookup table for the integer types with at most 16 bit.
+	 */
+	private static byte[] createLUT(final SourcePlanes.Kind kind,
+			final double min, final double scale) {
+		final int size;
+		final int offset;
+		switch (kind) {
+		case UNSIGNED_BYTE:
+			size = 1 << 8;
+			offset = 0;
+			break;
+		case UNSIGNED_SHORT:
+			size = 1 << 16;
+			offset = 0;
+			break;
+		case SHORT:
+			size = 1 << 16;
+			offset = Short.MIN_VALUE;
+			break;
+		default:
+			return null;
+		}
+		final byte[] lut = new byte[size];
+		for (int i = 0; i < size; i++) {
+			lut[i] = toByte(i + offset, min, scale);
+		}
+		return lut;
+	}
+
+	@SuppressWarnings("serial")
+	private static final class PlaneTask<T extends RealType<T>> extends
+			RecursiveAction {
+
+		private final SourcePlanes<T> m_src;
+
+		private final VolumeStatistics m_stats;
+
+		private final LoadTicket m_ticket;
+
+		// the planes requested, starting at m_first
+		private final byte[][] m_planes;
+
+		private final int m_first;
+
+		private final double m_min;
+
+		private final double m_scale;
+
+		private final byte[] m_lut;
+
+		private final int m_fromPlane;
+
+		private final int m_toPlane;
+
+		private final int m_fromRow;
+
+		private final int m_toRow;
+
+		PlaneTask(final SourcePlanes<T> src, final VolumeStatistics stats,
+				final LoadTicket ticket, final byte[][] planes,
+				final int fromPlane, final int toPlane, final int fromRow,
+				final int toRow) {
+			this(src, stats, ticket, planes, fromPlane, null, fromPlane,
+					toPlane, fromRow, toRow);
+		}
+
+		private PlaneTask(final SourcePlanes<T> src,
+				final VolumeStatistics stats, final LoadTicket ticket,
+				final byte[][] planes, final int first, final byte[] lut,
+				final int fromPlane, final int toPlane, final int fromRow,
+				final int toRow) {
+			m_src = src;
+			m_stats = stats;
+			m_ticket = ticket;
+			m_planes = planes;
+			m_first = first;
+			m_min = stats.getMin();
+			m_scale = stats.getMax() > m_min ? 255 / (stats.getMax() - m_min)
+					: 0;
+			m_lut = lut != null ? lut : createLUT(src.getKind(), m_min,
+					m_scale);
+			m_fromPlane = fromPlane;
+			m_toPlane = toPlane;
+			m_fromRow = fromRow;
+			m_toRow = toRow;
+		}
+
+		private PlaneTask<T> subTask(final int fromPlane, final int toPlane,
+				final int fromRow, final int toRow) {
+			return new PlaneTask<T>(m_src, m_stats, m_ticket, m_planes,
+					m_first, m_lut, fromPlane, toPlane, fromRow, toRow);
+		}
+
+		@Override
+		protected void compute() {
+			if (m_toPlane - m_fromPlane > 1) {
+				final int mid = (m_fromPlane + m_toPlane) >>> 1;
+				invokeAll(subTask(m_fromPlane, mid, m_fromRow, m_toRow),
+						subTask(mid, m_toPlane, m_fromRow, m_toRow));
+				return;
+			}
+
+			final int width = m_src.getWidth();
+			final int index = m_fromPlane - m_first;
+			if (m_planes[index] == null) {
+				m_planes[index] = new byte[width * m_src.getHeight()];
+
+				// nothing to read for planes with a single value
+				if (m_stats.isConstant(m_fromPlane)) {
+					Arrays.fill(m_planes[index], toByte(
+							m_stats.getPlaneMin(m_fromPlane), m_min, m_scale));
+					return;
+				}
+			}
+			final int rows = m_toRow - m_fromRow;
+			if (rows > 1 && (long) rows * width > BLOCK_SIZE) {
+				final int mid = (m_fromRow + m_toRow) >>> 1;
+				invokeAll(subTask(m_fromPlane, m_toPlane, m_fromRow, mid),
+						subTask(m_fromPlane, m_toPlane, mid, m_toRow));
+				return;
+			}
+			convertRows(m_fromPlane, m_fromRow, m_toRow);
+		}
+
+		private void convertRows(final int plane, final int fromRow,
+				final int toRow) {
+			m_ticket.checkCancelled();
+			final byte[] out = m_planes[plane - m_first];
+			final int width = m_src.getWidth();
+			final int start = fromRow * width;
+			final int end = toRow * width;
+			final Object raw = m_src.rawPlane(plane);
+
+			if (raw == null) {
+				convertGeneric(plane, fromRow, toRow, out);
+				return;
+			}
+
+			final int off = m_src.rawOffset(plane) - start;
+			switch (m_src.getKind()) {
+			case UNSIGNED_BYTE: {
+				final byte[] in = (byte[]) raw;
+				final byte[] lut = m_lut;
+				for (int i = start; i < end; i++) {
+					out[i] = lut[in[off + i] & 0xff];
+				}
+				break;
+			}
+			case UNSIGNED_SHORT: {
+				final short[] in = (short[]) raw;
+				final byte[] lut = m_lut;
+				for (int i = start; i < end; i++) {
+					out[i] = lut[in[off + i] & 0xffff];
+				}
+				break;
+			}
+			case SHORT: {
+				final short[] in = (short[]) raw;
+				final byte[] lut = m_lut;
+				for (int i = start; i < end; i++) {
+					out[i] = lut[in[off + i] - Short.MIN_VALUE];
+				}
+				break;
+			}
+			case INT: {
+				final int[] in = (int[]) raw;
+				for (int i = start; i < end; i++) {
+					out[i] = toByte(in[off + i], m_min, m_scale);
+				}
+				break;
+			}
+			case FLOAT: {
+				final float[] in = (float[]) raw;
+				for (int i = start; i < end; i++) {
+					out[i] = toByte(in[off + i], m_min, m_scale);
+				}
+				break;
+			}
+			default:
+				convertGeneric(plane, fromRow, toRow, out);
+			}
+		}
+
+		private void convertGeneric(final int plane, final int fromRow,
+				final int toRow, final byte[] out) {
+			final int width = m_src.getWidth();
+			final int xDim = m_src.getXDim();
+			final int yDim = m_src.getYDim();
+			final RandomAccess<T> ra = m_src.randomAccess(plane);
+			for (int y = fromRow; y < toRow; y++) {
+				ra.setPosition(m_src.getMin(yDim) + y, yDim);
+				ra.setPosition(m_src.getMin(xDim), xDim);
+				final int row = y * width;
+				for (int x = 0; x < width; x++) {
+					out[row + x] = toByte(ra.get().getRealDouble(), m_min,
+							m_scale);
+					ra.fwd(xDim);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+
+import java.util.List;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+import ij3d.Content;
+import ij3d.ContentConstants;
+import ij3d.ContentCreator;
+
+/**
+ * Builds the content of a timepoint in a render type, for the view and for
+ * the playback alike. Surfaces are extracted in parallel, reduced to levels
+ * of detail and cached per threshold; point clouds are collected in
+ * parallel; bricked volumes upload their bricks as they come into view; the
+ * other modes are built by the 3D Viewer.
+ */
+final class ContentBuilder {
+
+	private static final Color3f SURFACE_COLOR = new Color3f(1, 1, 1);
+
+	private ContentBuilder() {
+		// utility class
+	}
+
+	/**
+	 * @return true if contents of the render type are extracted at a
+	 *         threshold, surfaces and point clouds
+	 */
+	static boolean isExtracted(final int type) {
+		return type == ContentConstants.SURFACE
+				|| type == PointCloudNode.POINT_CLOUD;
+	}
+
+	/**
+	 * Builds the content of a timepoint.
+	 * 
+	 * @param title
+	 *            the name of the content
+	 * @param imp
+	 *            8-bit image of the timepoint
+	 * @param type
+	 *            the render type, see {@link ContentConstants}
+	 * @param threshold
+	 *            the threshold of surfaces and point clouds
+	 * @param fingerprint
+	 *            identifies the image in the mesh cache
+	 * @param frame
+	 *            the timepoint, zero based
+	 * @param resampling
+	 *            identifies the resolution of the image in the mesh cache
+	 * @param ticket
+	 *            cancels the extraction
+	 * @return the content
+	 */
+	static Content create(final String title, final ImagePlus imp,
+			final int type, final int threshold,
+			final ImageFingerprint fingerprint, final int frame,
+			final int resampling, final LoadTicket ticket) {
+		switch (type) {
+		case BrickedVolumeNode.BRICKED_VOLUME:
+			return BrickedVolumeNode.createContent(title, imp, ticket);
+		case PointCloudNode.POINT_CLOUD:
+			return PointCloudNode.createContent(title, imp, threshold, ticket);
+		case ContentConstants.SURFACE:
+			break;
+		default:
+			return ContentCreator.createContent(title, imp, type);
+		}
+
+		final MeshCache cache = MeshCache.getInstance();
+		final MeshCache.Key key = new MeshCache.Key(fingerprint, frame,
+				threshold, resampling);
+		List<List<Point3f>> levels = cache.get(key);
+		if (levels == null) {
+			levels = MeshDecimator.createLevels(
+					SurfaceExtractor.extract(imp, threshold, ticket), ticket);
+			cache.put(key, levels);
+		}
+		return LodMeshNode.createContent(title, levels, SURFACE_COLOR);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * Reduces the resolution of 8-bit images by averaging blocks of voxels. The
+ * output planes are computed in parallel in the pool of the calling thread if
+ * it is a fork-join worker, otherwise in the common pool.
+ */
+final class Downsampler {
+
+	// images with fewer voxels per timepoint are displayed without preview
+	private static final long PREVIEW_MIN_VOXELS = 1L << 24;
+
+	// preview factors, coarsest first
+	private static final int[] PREVIEW_FACTORS = { 8, 4 };
+
+	// a preview must not be smaller than this in X and Y
+	private static final int PREVIEW_MIN_SIZE = 16;
+
+	// volumes with more voxels are reduced while the scene is moved
+	private static final long INTERACTIVE_VOXELS = 1L << 21;
+
+	private Downsampler() {
+		// utility class
+	}
+
+	/**
+	 * @param imp
+	 *            an image of a single timepoint
+	 * @param displayFactor
+	 *            the factor by which the displayed image is reduced
+	 * @return the factors of the previews worth showing before the image,
+	 *         coarsest first; empty for small images
+	 */
+	static int[] previewFactors(final ImagePlus imp, final int displayFactor) {
+		if ((long) imp.getWidth() * imp.getHeight() * imp.getStackSize() < PREVIEW_MIN_VOXELS) {
+			return new int[0];
+		}
+		int n = 0;
+		final int[] factors = new int[PREVIEW_FACTORS.length];
+		for (final int f : PREVIEW_FACTORS) {
+			if (f > displayFactor && imp.getWidth() / f >= PREVIEW_MIN_SIZE
+					&& imp.getHeight() / f >= PREVIEW_MIN_SIZE) {
+				factors[n++] = f;
+			}
+		}
+		final int[] result = new int[n];
+		System.arraycopy(factors, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * @param imp
+	 *            an image of a single timepoint
+	 * @param displayFactor
+	 *            the factor by which the displayed image is reduced
+	 * @return the factor of the reduced copy shown while the scene is moved,
+	 *         0 if the displayed image is small enough
+	 */
+	static int interactiveFactor(final ImagePlus imp, final int displayFactor) {
+		final long voxels = (long) imp.getWidth() * imp.getHeight()
+				* imp.getNSlices();
+		int f = displayFactor;
+		while (voxels / ((long) f * f * f) > INTERACTIVE_VOXELS) {
+			f++;
+		}
+		return f > displayFactor ? f : 0;
+	}
+
+	/**
+	 * Prepares a timepoint for display at the given reduction.
+	 * 
+	 * @param frame
+	 *            8-bit image of a single timepoint, backed by a
+	 *            {@link LazyPlaneStack}
+	 * @param factor
+	 *            the reduction factor, 1 for the full resolution
+	 * @param ticket
+	 *            checked during the conversion
+	 * @return the timepoint with all planes converted, or its reduction
+	 */
+	static ImagePlus reduce(final ImagePlus frame, final int factor,
+			final LoadTicket ticket) {
+		if (factor > 1) {
+			// the planes are read through the plane cache, the full
+			// resolution is never held at once
+			return downsample(frame, factor, true, ticket);
+		}
+		((LazyPlaneStack<?>) frame.getStack()).preload(ticket);
+		return frame;
+	}
+
+	/**
+	 * Reduces the resolution of a single timepoint by the given factor along
+	 * every spatial axis.
+	 * 
+	 * @param imp
+	 *            8-bit image of a single timepoint, may have channels
+	 * @param factor
+	 *            the reduction factor
+	 * @param averageZ
+	 *            if true, blocks are averaged along Z as well; otherwise the
+	 *            center plane of each block is used, so only every factor-th
+	 *            plane of the input is read
+	 * @param ticket
+	 *            checked before each output plane
+	 * @return the reduced image, calibrated accordingly
+	 */
+	static ImagePlus downsample(final ImagePlus imp, final int factor,
+			final boolean averageZ, final LoadTicket ticket) {
+		final int channels = imp.getNChannels();
+		final int slices = imp.getNSlices();
+		final int w = Math.max(1, imp.getWidth() / factor);
+		final int h = Math.max(1, imp.getHeight() / factor);
+		final int d = Math.max(1, slices / factor);
+
+		final byte[][] out = new byte[channels * d][];
+		new BlockTask(imp.getStack(), imp.getWidth(), imp.getHeight(),
+				channels, slices, factor, averageZ, w, h, d, out, ticket, 0,
+				out.length).invoke();
+
+		final ImageStack stack = new ImageStack(w, h);
+		for (final byte[] plane : out) {
+			stack.addSlice("", plane);
+		}
+		final ImagePlus result = new ImagePlus(imp.getTitle(), stack);
+		result.setDimensions(channels, d, 1);
+		if (channels > 1) {
+			result.setOpenAsHyperStack(true);
+		}
+		final Calibration cal = imp.getCalibration().copy();
+		cal.pixelWidth *= (double) imp.getWidth() / w;
+		cal.pixelHeight *= (double) imp.getHeight() / h;
+		cal.pixelDepth *= (double) slices / d;
+		result.setCalibration(cal);
+		return result;
+	}
+
+	@SuppressWarnings("serial")
+	private static final class BlockTask extends RecursiveAction {
+
+		private final ImageStack m_in;
+
+		private final int m_inWidth;
+
+		private final int m_inHeight;
+
+		private final int m_channels;
+
+		private final int m_slices;
+
+		private final int m_factor;
+
+		private final boolean m_averageZ;
+
+		private final int m_width;
+
+		private final int m_height;
+
+		private final int m_depth;
+
+		private final byte[][] m_out;
+
+		private final LoadTicket m_ticket;
+
+		private final int m_from;
+
+		private final int m_to;
+
+		BlockTask(final ImageStack in, final int inWidth, final int inHeight,
+				final int channels, final int slices, final int factor,
+				final boolean averageZ, final int width, final int height,
+				final int depth, final byte[][] out, final LoadTicket ticket,
+				final int from, final int to) {
+			m_in = in;
+			m_inWidth = inWidth;
+			m_inHeight = inHeight;
+			m_channels = channels;
+			m_slices = slices;
+			m_factor = factor;
+			m_averageZ = averageZ;
+			m_width = width;
+			m_height = height;
+			m_depth = depth;
+			m_out = out;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int mid = (m_from + m_to) >>> 1;
+				invokeAll(subTask(m_from, mid), subTask(mid, m_to));
+				return;
+			}
+			m_ticket.checkCancelled();
+			m_out[m_from] = reducePlane(m_from % m_channels, m_from
+					/ m_channels);
+		}
+
+		private BlockTask subTask(final int from, final int to) {
+			return new BlockTask(m_in, m_inWidth, m_inHeight, m_channels,
+					m_slices, m_factor, m_averageZ, m_width, m_height,
+					m_depth, m_out, m_ticket, from, to);
+		}
+
+		/**
+		 * Averages the blocks of one output plane.
+		 */
+		private byte[] reducePlane(final int c, final int z) {
+			// input planes of the block, the last block takes the remainder
+			final int z0 = z * m_slices / m_depth;
+			final int z1 = (z + 1) * m_slices / m_depth;
+			final int fromZ = m_averageZ ? z0 : (z0 + z1) / 2;
+			final int toZ = m_averageZ ? z1 : fromZ + 1;
+
+			final int[] sums = new int[m_width * m_height];
+			final int[] counts = new int[m_width * m_height];
+			for (int iz = fromZ; iz < toZ; iz++) {
+				final byte[] plane = (byte[]) m_in.getPixels(iz * m_channels
+						+ c + 1);
+				for (int y = 0; y < m_inHeight; y++) {
+					final int oy = Math.min(y * m_height / m_inHeight,
+							m_height - 1);
+					final int row = y * m_inWidth;
+					final int orow = oy * m_width;
+					for (int x = 0; x < m_inWidth; x++) {
+						final int o = orow
+								+ Math.min(x * m_width / m_inWidth,
+										m_width - 1);
+						sums[o] += plane[row + x] & 0xff;
+						counts[o]++;
+					}
+				}
+			}
+
+			final byte[] out = new byte[sums.length];
+			for (int i = 0; i < out.length; i++) {
+				out[i] = (byte) (counts[i] == 0 ? 0 : sums[i] / counts[i]);
+			}
+			return out;
+		}
+	}
+}
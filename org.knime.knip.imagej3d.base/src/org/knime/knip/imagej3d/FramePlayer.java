@@ -0,0 +1,350 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import javax.swing.Timer;
+
+import org.knime.core.node.NodeLogger;
+
+import ij.ImagePlus;
+import ij3d.Content;
+import ij3d.ContentConstants;
+
+/**
+ * Plays the timepoints of an image. The contents of the timepoints ahead of
+ * the play cursor are built on worker threads and kept in a ring buffer,
+ * the same way the view builds a still timepoint. Each tick shows the newest
+ * timepoint which is ready and due; the timepoints skipped over are dropped,
+ * the playback does not wait for them. A timepoint still being built is only
+ * given up once a later one has been shown, so timepoints which take longer
+ * to build than the buffer lasts are still shown, at a lower rate.
+ * <p>
+ * The rate and the size of the buffer are set with the system properties
+ * {@value #FPS_PROPERTY} and {@value #BUFFER_PROPERTY}. All methods must be
+ * called on the EDT.
+ */
+final class FramePlayer {
+
+	/** System property for the playback rate in frames per second. */
+	static final String FPS_PROPERTY = "knip.imagej3d.playback.fps";
+
+	/** System property for the number of timepoints built ahead. */
+	static final String BUFFER_PROPERTY = "knip.imagej3d.playback.buffer";
+
+	private static final int FPS = Math.max(1,
+			Integer.getInteger(FPS_PROPERTY, 10));
+
+	private static final int BUFFER = Math.max(1,
+			Integer.getInteger(BUFFER_PROPERTY, 4));
+
+	// the achieved rate is reported in this interval
+	private static final long RATE_INTERVAL = 1000;
+
+	private static final NodeLogger LOGGER = NodeLogger
+			.getLogger(FramePlayer.class);
+
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1,
+			Runtime.getRuntime().availableProcessors() - 1),
+			new ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+					final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+							.newThread(pool);
+					t.setName("ImageJ 3D Viewer playback " + t.getPoolIndex());
+					return t;
+				}
+			}, null, false);
+
+	/**
+	 * Receives the played timepoints. Its methods are called on the EDT.
+	 */
+	interface FrameDisplay {
+
+		/**
+		 * Displays a timepoint.
+		 * 
+		 * @param frame
+		 *            the timepoint, zero based
+		 * @param content
+		 *            its content, not yet added to a universe
+		 */
+		void display(int frame, Content content);
+
+		/**
+		 * Reports the achieved playback rate.
+		 * 
+		 * @param fps
+		 *            displayed frames per second
+		 * @param dropped
+		 *            frames dropped since the playback started
+		 */
+		void rateChanged(double fps, int dropped);
+
+		/**
+		 * Notifies that the playback stopped by itself, e.g. because a
+		 * timepoint could not be built.
+		 */
+		void playbackStopped();
+	}
+
+	/**
+	 * A timepoint in the ring buffer.
+	 */
+	private static final class Slot {
+
+		// the position in the playback, which counts on when looping
+		private final long m_position;
+
+		private final LoadTicket m_ticket;
+
+		private final ForkJoinTask<Content> m_task;
+
+		Slot(final long position, final LoadTicket ticket,
+				final ForkJoinTask<Content> task) {
+			m_position = position;
+			m_ticket = ticket;
+			m_task = task;
+		}
+
+		void cancel() {
+			m_ticket.cancel();
+			m_task.cancel(false);
+		}
+	}
+
+	private final FrameDisplay m_display;
+
+	private final Timer m_timer;
+
+	private Slot[] m_ring;
+
+	private ImagePlus m_imp;
+
+	private int m_type;
+
+	private int m_threshold;
+
+	private ImageFingerprint m_fingerprint;
+
+	private int m_frames;
+
+	// the positions of the displayed timepoint and of the one which is
+	// due, timepoint = position % frames
+	private long m_cursor;
+
+	private long m_target;
+
+	// the next position to build
+	private long m_next;
+
+	private int m_dropped;
+
+	private int m_rateFrames;
+
+	private long m_rateStart;
+
+	FramePlayer(final FrameDisplay display) {
+		m_display = display;
+		m_timer = new Timer(1000 / FPS, new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				tick();
+			}
+		});
+	}
+
+	/**
+	 * Starts playing from the timepoint after the given one, looping at the
+	 * end.
+	 * 
+	 * @param imp
+	 *            the image, backed by a {@link LazyPlaneStack}
+	 * @param type
+	 *            the render type of the contents
+	 * @param threshold
+	 *            the threshold of surfaces and point clouds
+	 * @param fingerprint
+	 *            identifies the image in the mesh cache
+	 * @param frame
+	 *            the displayed timepoint
+	 */
+	void start(final ImagePlus imp, final int type, final int threshold,
+			final ImageFingerprint fingerprint, final int frame) {
+		stop();
+		m_imp = imp;
+		m_type = type;
+		m_threshold = threshold;
+		m_fingerprint = fingerprint;
+		m_frames = imp.getNFrames();
+		m_ring = new Slot[Math.min(BUFFER, m_frames)];
+		m_cursor = frame;
+		m_target = frame;
+		m_next = frame + 1;
+		m_dropped = 0;
+		m_rateFrames = 0;
+		m_rateStart = System.currentTimeMillis();
+		fill();
+		m_timer.start();
+	}
+
+	/**
+	 * Stops the playback and cancels the timepoints being built.
+	 */
+	void stop() {
+		m_timer.stop();
+		if (m_ring != null) {
+			for (final Slot slot : m_ring) {
+				if (slot != null) {
+					slot.cancel();
+				}
+			}
+		}
+		m_ring = null;
+		m_imp = null;
+	}
+
+	/**
+	 * @return true while playing
+	 */
+	boolean isPlaying() {
+		return m_timer.isRunning();
+	}
+
+	private void tick() {
+		m_target++;
+
+		// the newest timepoint which is built and due
+		Slot ready = null;
+		for (final Slot slot : m_ring) {
+			if (slot != null && slot.m_position > m_cursor
+					&& slot.m_position <= m_target && slot.m_task.isDone()
+					&& (ready == null || slot.m_position > ready.m_position)) {
+				ready = slot;
+			}
+		}
+		if (ready != null) {
+			try {
+				final Content content = ready.m_task.join();
+				m_dropped += ready.m_position - m_cursor - 1;
+				m_cursor = ready.m_position;
+				m_rateFrames++;
+				m_display.display((int) (m_cursor % m_frames), content);
+			} catch (final RuntimeException e) {
+				LOGGER.warn("Playback stopped, a timepoint could not be built",
+						e);
+				stop();
+				m_display.playbackStopped();
+				return;
+			}
+		}
+
+		final long now = System.currentTimeMillis();
+		if (now - m_rateStart >= RATE_INTERVAL) {
+			m_display.rateChanged(m_rateFrames * 1000.0 / (now - m_rateStart),
+					m_dropped);
+			m_rateFrames = 0;
+			m_rateStart = now;
+		}
+
+		fill();
+	}
+
+	/**
+	 * Reuses the slots of the timepoints which have been shown or passed
+	 * over for the next timepoints not yet due. Timepoints still being built
+	 * are kept until a later one is shown.
+	 */
+	private void fill() {
+		m_next = Math.max(m_next, m_target + 1);
+		for (int i = 0; i < m_ring.length; i++) {
+			final Slot slot = m_ring[i];
+			if (slot != null && slot.m_position > m_cursor) {
+				continue;
+			}
+			if (slot != null) {
+				slot.cancel();
+			}
+			m_ring[i] = build(m_next++);
+		}
+	}
+
+	private Slot build(final long position) {
+		final int frame = (int) (position % m_frames);
+		final LoadTicket ticket = new LoadTicket();
+		final ImagePlus imp = m_imp;
+		// played timepoints are whole volumes, reduced to fit
+		final int type = m_type == BrickedVolumeNode.BRICKED_VOLUME ? ContentConstants.VOLUME
+				: m_type;
+		final int threshold = m_threshold;
+		final ImageFingerprint fingerprint = m_fingerprint;
+		final int shares = m_ring.length + 1;
+		final ForkJoinTask<Content> task = POOL.submit(new Callable<Content>() {
+			@Override
+			public Content call() throws Exception {
+				final ImagePlus planes = LazyPlaneStack.frame(imp, frame);
+				final int factor = MemoryBudget.reductionFactor(planes, type,
+						shares);
+				final ImagePlus displayed = Downsampler.reduce(planes,
+						factor, ticket);
+				ticket.checkCancelled();
+				return ContentBuilder.create(planes.getTitle(), displayed,
+						type, threshold, fingerprint, frame, factor, ticket);
+			}
+		});
+		return new Slot(position, ticket, task);
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JToggleButton;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Selects the displayed timepoint of a 4D or 5D image. Each timepoint is
+ * loaded when it is selected, or played with the play button.
+ */
+@SuppressWarnings("serial")
+class FrameSlider extends JPanel {
+
+	/**
+	 * Notified when the user selects another frame or toggles the playback.
+	 */
+	interface FrameListener {
+		void frameChanged(int frame);
+
+		void playbackChanged(boolean playing);
+	}
+
+	private final JSlider m_slider = new JSlider(0, 0, 0);
+
+	private final JLabel m_label = new JLabel();
+
+	private final JToggleButton m_play = new JToggleButton("Play");
+
+	// the achieved playback rate, empty unless playing
+	private String m_rate = "";
+
+	// true while the frames are set programmatically
+	private boolean m_updating;
+
+	FrameSlider(final FrameListener listener) {
+		super(new BorderLayout(5, 0));
+		setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+		final JPanel west = new JPanel(new BorderLayout(5, 0));
+		west.add(new JLabel("Time"), BorderLayout.WEST);
+		west.add(m_play, BorderLayout.EAST);
+		add(west, BorderLayout.WEST);
+		add(m_slider, BorderLayout.CENTER);
+		add(m_label, BorderLayout.EAST);
+
+		m_play.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				updatePlayButton();
+				listener.playbackChanged(m_play.isSelected());
+			}
+		});
+
+		m_slider.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(final ChangeEvent e) {
+				updateLabel();
+				if (!m_updating) {
+					listener.frameChanged(m_slider.getValue());
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param frames
+	 *            number of frames
+	 * @param frame
+	 *            the displayed frame
+	 */
+	void setFrames(final int frames, final int frame) {
+		m_updating = true;
+		m_slider.setMaximum(frames - 1);
+		m_slider.setValue(frame);
+		m_updating = false;
+		updateLabel();
+	}
+
+	/**
+	 * @return the selected frame
+	 */
+	int getFrame() {
+		return m_slider.getValue();
+	}
+
+	/**
+	 * Sets the state of the play button without notifying the listener.
+	 * 
+	 * @param playing
+	 *            true while playing
+	 */
+	void setPlaying(final boolean playing) {
+		m_play.setSelected(playing);
+		updatePlayButton();
+	}
+
+	/**
+	 * @param fps
+	 *            the achieved playback rate
+	 * @param dropped
+	 *            the number of frames dropped so far
+	 */
+	void setRate(final double fps, final int dropped) {
+		m_rate = String.format("  %.1f fps, %d dropped", fps, dropped);
+		updateLabel();
+	}
+
+	private void updatePlayButton() {
+		m_play.setText(m_play.isSelected() ? "Stop" : "Play");
+		if (!m_play.isSelected()) {
+			m_rate = "";
+			updateLabel();
+		}
+	}
+
+	private void updateLabel() {
+		m_label.setText((m_slider.getValue() + 1) + " / "
+				+ (m_slider.getMaximum() + 1) + m_rate);
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+import org.knime.core.data.DataValue;
+import org.knime.knip.base.data.img.ImgPlusValue;
+
+/**
+ * Identifies a viewed image by its content: its name, source, interval,
+ * pixel type and a hash of sampled pixels. KNIME returns a new cell instance
+ * each time a row is read again, so the fingerprint does not depend on the
+ * cell; fingerprints of two cells holding the same image are equal. The
+ * fingerprint of a cell is computed once and remembered for that cell
+ * instance, so deciding whether a selection shows the same image never reads
+ * its pixels twice. It is the key of all caches of converted images and
+ * built contents.
+ */
+final class ImageFingerprint {
+
+	// number of pixels the content hash is computed from
+	private static final int SAMPLES = 4096;
+
+	// fingerprints of recently viewed cells
+	private static final int MEMO_SIZE = 256;
+
+	private static final Map<Identity, ImageFingerprint> MEMO = new LinkedHashMap<Identity, ImageFingerprint>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<Identity, ImageFingerprint> eldest) {
+			return size() > MEMO_SIZE || eldest.getKey().get() == null;
+		}
+	};
+
+	private final String m_name;
+
+	private final String m_source;
+
+	private final long[] m_min;
+
+	private final long[] m_dims;
+
+	private final String m_type;
+
+	private final long m_hash;
+
+	/**
+	 * Computes the fingerprint of an image, see
+	 * {@link #of(ImgPlusValue, ImgPlus)} for the fingerprint of a cell.
+	 * 
+	 * @param img
+	 *            the image
+	 */
+	ImageFingerprint(final ImgPlus<? extends RealType<?>> img) {
+		m_name = img.getName();
+		m_source = img.getSource();
+		m_min = new long[img.numDimensions()];
+		for (int d = 0; d < m_min.length; d++) {
+			m_min[d] = img.min(d);
+		}
+		m_dims = new long[img.numDimensions()];
+		img.dimensions(m_dims);
+		final RealType<?> type = img.randomAccess().get();
+		m_type = type == null ? "" : type.getClass().getName();
+		m_hash = sampleHash(img, m_dims);
+	}
+
+	/**
+	 * Returns the fingerprint of a cell, computing it if the cell is viewed
+	 * the first time. May read pixels, call it off the EDT.
+	 * 
+	 * @param value
+	 *            the cell
+	 * @param img
+	 *            the image of the cell, if already at hand, or null
+	 * @return the fingerprint
+	 */
+	static ImageFingerprint of(final ImgPlusValue<?> value,
+			final ImgPlus<? extends RealType<?>> img) {
+		ImageFingerprint fp = known(value);
+		if (fp == null) {
+			fp = new ImageFingerprint(img == null ? value.getImgPlus() : img);
+			synchronized (MEMO) {
+				MEMO.put(new Identity(value), fp);
+			}
+		}
+		return fp;
+	}
+
+	/**
+	 * @param value
+	 *            a cell
+	 * @return the fingerprint of the cell if it has been computed before, or
+	 *         null; never reads pixels
+	 */
+	static ImageFingerprint known(final DataValue value) {
+		synchronized (MEMO) {
+			return MEMO.get(new Identity(value));
+		}
+	}
+
+	/**
+	 * @return true if both cells are the same instance or hold the same image
+	 *         by their known fingerprints; false if a fingerprint is not known
+	 *         yet
+	 */
+	static boolean sameImage(final DataValue a, final DataValue b) {
+		if (a == b) {
+			return true;
+		}
+		if (a == null || b == null) {
+			return false;
+		}
+		final ImageFingerprint fp = known(a);
+		return fp != null && fp.equals(known(b));
+	}
+
+	private static long sampleHash(final ImgPlus<? extends RealType<?>> img,
+			final long[] dims) {
+		long total = 1;
+		for (final long d : dims) {
+			total *= d;
+		}
+		// an odd step does not sample the same columns in every row
+		final long step = total <= SAMPLES ? 1 : total / SAMPLES | 1;
+
+		final RandomAccess<? extends RealType<?>> ra = img.randomAccess();
+		final long[] pos = new long[dims.length];
+		long hash = 17;
+		for (long i = 0; i < total; i += step) {
+			long rest = i;
+			for (int d = 0; d < dims.length; d++) {
+				pos[d] = img.min(d) + rest % dims[d];
+				rest /= dims[d];
+			}
+			ra.setPosition(pos);
+			hash = hash * 31
+					+ Double.doubleToLongBits(ra.get().getRealDouble());
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof ImageFingerprint)) {
+			return false;
+		}
+		if (obj == this) {
+			return true;
+		}
+		final ImageFingerprint fp = (ImageFingerprint) obj;
+		return m_hash == fp.m_hash && Arrays.equals(m_dims, fp.m_dims)
+				&& Arrays.equals(m_min, fp.m_min) && m_type.equals(fp.m_type)
+				&& equal(m_name, fp.m_name) && equal(m_source, fp.m_source);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(m_dims) * 31 + (int) (m_hash ^ m_hash >>> 32);
+	}
+
+	private static boolean equal(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Weak identity of a cell.
+	 */
+	private static final class Identity extends WeakReference<DataValue> {
+
+		private final int m_hash;
+
+		Identity(final DataValue value) {
+			super(value);
+			m_hash = System.identityHashCode(value);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj == this) {
+				return true;
+			}
+			if (!(obj instanceof Identity)) {
+				return false;
+			}
+			final Object referent = get();
+			return referent != null && referent == ((Identity) obj).get();
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hash;
+		}
+	}
+}
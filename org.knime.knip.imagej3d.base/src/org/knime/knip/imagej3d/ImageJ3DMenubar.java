@@ -48,7 +48,6 @@
  */
 package org.knime.knip.imagej3d;
 
-import ij.ImagePlus;
 import ij.gui.GenericDialog;
 import ij3d.Content;
 import ij3d.Executer;
@@ -116,9 +115,11 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 	private JMenuItem colorSurface;
 	private JMenuItem displayAsMultiOrtho;
 	private JMenuItem displayAsOrtho;
+	private JMenuItem displayAsPointCloud;
 	private JMenuItem displayAsSurface;
 	private JMenuItem displayAsSurfacePlot;
 	private JMenuItem displayAsVolume;
+	private JMenuItem displayAsBrickedVolume;
 	private JMenuItem fitViewToContent;
 	private JMenuItem fitViewToUniverse;
 	private JMenuItem j3dproperties;
@@ -140,6 +141,8 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 	private JMenuItem viewposXY, viewposXZ, viewposYZ, viewnegXY, viewnegXZ,
 			viewnegYZ;
 
+	private ViewCommandQueue viewCommands;
+
 	private final JMenu editMenu;
 	private final JMenu helpMenu;
 	private final JMenu transformMenu;
@@ -386,6 +389,10 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		displayAsVolume.addActionListener(this);
 		display.add(displayAsVolume);
 
+		displayAsBrickedVolume = new JMenuItem("Bricked Volume");
+		displayAsBrickedVolume.addActionListener(this);
+		display.add(displayAsBrickedVolume);
+
 		displayAsOrtho = new JMenuItem("Orthoslice");
 		displayAsOrtho.addActionListener(this);
 		display.add(displayAsOrtho);
@@ -402,9 +409,29 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		displayAsSurfacePlot.addActionListener(this);
 		display.add(displayAsSurfacePlot);
 
+		displayAsPointCloud = new JMenuItem("Point Cloud");
+		displayAsPointCloud.addActionListener(this);
+		display.add(displayAsPointCloud);
+
 		return display;
 	}
 
+	/**
+	 * Resets the view and rotates it once the reset has been rendered. A
+	 * rotation which has not been performed yet is replaced.
+	 */
+	private void changeView(final Runnable rotation) {
+		if (viewCommands == null) {
+			viewCommands = ViewCommandQueue.attach(universe);
+		}
+		viewCommands.submit(new Runnable() {
+			@Override
+			public void run() {
+				universe.resetView();
+			}
+		}, rotation);
+	}
+
 	private void changeBackgroundColor() {
 		final Background background = ((ImageCanvas3D) universe.getCanvas())
 				.getBG();
@@ -447,8 +474,18 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		gSlider.setEnabled(oldC != null);
 		bSlider.setEnabled(oldC != null);
 
+		final Checkbox cBox = showDefaultCheckbox ? (Checkbox) gd
+				.getCheckboxes().get(0) : null;
+		final UpdateCoalescer coalescer = new UpdateCoalescer() {
+			@Override
+			protected void update() {
+				colorListener.colorChanged(cBox != null && cBox.getState() ? null
+						: new Color3f(rSlider.getValue() / 255f, gSlider
+								.getValue() / 255f, bSlider.getValue() / 255f));
+			}
+		};
+
 		if (showDefaultCheckbox) {
-			final Checkbox cBox = (Checkbox) gd.getCheckboxes().get(0);
 			cBox.addItemListener(new ItemListener() {
 				@Override
 				public void itemStateChanged(final ItemEvent e) {
@@ -456,48 +493,212 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 					rSlider.setEnabled(!cBox.getState());
 					gSlider.setEnabled(!cBox.getState());
 					bSlider.setEnabled(!cBox.getState());
-					colorListener.colorChanged(new Color3f(
-							rSlider.getValue() / 255f,
-							gSlider.getValue() / 255f,
-							bSlider.getValue() / 255f));
+					coalescer.request();
+					coalescer.flush();
 					gd.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
 				}
 			});
 		}
+		coalesce(gd, coalescer);
 
+		gd.setModal(false);
+		gd.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(final WindowEvent e) {
+				if (gd.wasCanceled()) {
+					coalescer.cancel();
+					colorListener.colorChanged(oldC);
+				} else {
+					gd.setCursor(new Cursor(Cursor.WAIT_CURSOR));
+					coalescer.flush();
+					gd.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
+				}
+			}
+		});
+		gd.showDialog();
+	}
+
+	/**
+	 * Routes the changes of all sliders of the dialog through the coalescer,
+	 * which applies the latest value at its rate and when a drag ends.
+	 */
+	private static void coalesce(final GenericDialog gd,
+			final UpdateCoalescer coalescer) {
 		final AdjustmentListener listener = new AdjustmentListener() {
 			@Override
 			public void adjustmentValueChanged(final AdjustmentEvent e) {
-				colorListener.colorChanged(new Color3f(
-						rSlider.getValue() / 255f, gSlider.getValue() / 255f,
-						bSlider.getValue() / 255f));
+				coalescer.request(e.getValueIsAdjusting());
 			}
 		};
-		rSlider.addAdjustmentListener(listener);
-		gSlider.addAdjustmentListener(listener);
-		bSlider.addAdjustmentListener(listener);
+		for (final Object slider : gd.getSliders()) {
+			((Scrollbar) slider).addAdjustmentListener(listener);
+		}
+	}
+
+	/**
+	 * Changes the color of a content, the executer handles a missing
+	 * selection.
+	 */
+	private void changeColor(final Content c) {
+		if (c == null) {
+			executer.changeColor(c);
+			return;
+		}
+		final ColorListener colorListener = new ColorListener() {
+			@Override
+			public void colorChanged(final Color3f color) {
+				c.setColor(color);
+			}
+		};
+		showColorDialog("Adjust color ...", c.getColor(), colorListener,
+				true, false);
+	}
+
+	/**
+	 * Changes the transparency of a content, the executer handles a missing
+	 * selection.
+	 */
+	private void changeTransparency(final Content c) {
+		if (c == null) {
+			executer.changeTransparency(c);
+			return;
+		}
+		final float old = c.getTransparency();
+		final GenericDialog gd = new GenericDialog("Adjust transparency ...",
+				universe.getWindow());
+		gd.addSlider("Transparency", 0, 100, old * 100);
+		final Scrollbar slider = (Scrollbar) gd.getSliders().get(0);
+		final UpdateCoalescer coalescer = new UpdateCoalescer() {
+			@Override
+			protected void update() {
+				c.setTransparency(slider.getValue() / 100f);
+			}
+		};
+		coalesce(gd, coalescer);
 
 		gd.setModal(false);
 		gd.addWindowListener(new WindowAdapter() {
 			@Override
 			public void windowClosed(final WindowEvent e) {
 				if (gd.wasCanceled()) {
-					colorListener.colorChanged(oldC);
+					coalescer.cancel();
+					c.setTransparency(old);
 				} else {
-					gd.setCursor(new Cursor(Cursor.WAIT_CURSOR));
-					gd.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
+					coalescer.flush();
 				}
 			}
 		});
 		gd.showDialog();
 	}
 
+	/**
+	 * Moves the slices of orthoslices read on demand with one slider per
+	 * axis; the other orthoslices are adjusted by the executer.
+	 */
+	private void changeSlices(final Content c) {
+		if (c == null || !(c.getContent() instanceof OrthoSliceNode)) {
+			executer.changeSlices(c);
+			return;
+		}
+		final OrthoSliceNode node = (OrthoSliceNode) c.getContent();
+		final int[] old = new int[3];
+		final GenericDialog gd = new GenericDialog("Adjust slices ...",
+				universe.getWindow());
+		final String[] labels = { "x", "y", "z" };
+		for (int axis = 0; axis < 3; axis++) {
+			old[axis] = node.getSlice(axis);
+			gd.addSlider(labels[axis], 0, node.getSize(axis) - 1, old[axis]);
+		}
+
+		final UpdateCoalescer coalescer = new UpdateCoalescer() {
+			@Override
+			protected void update() {
+				for (int axis = 0; axis < 3; axis++) {
+					final Scrollbar slider = (Scrollbar) gd.getSliders().get(
+							axis);
+					if (node.getSlice(axis) != slider.getValue()) {
+						node.setSlice(axis, slider.getValue());
+					}
+				}
+			}
+		};
+		coalesce(gd, coalescer);
+
+		gd.setModal(false);
+		gd.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(final WindowEvent e) {
+				if (gd.wasCanceled()) {
+					coalescer.cancel();
+					for (int axis = 0; axis < 3; axis++) {
+						node.setSlice(axis, old[axis]);
+					}
+				} else {
+					coalescer.flush();
+				}
+			}
+		});
+		gd.showDialog();
+	}
+
+	/**
+	 * Surfaces and point clouds are extracted by the view, which caches them
+	 * per threshold; the thresholds of the other modes are set on the
+	 * content. The executer
+	 * handles a missing selection.
+	 */
+	private void changeThreshold(final Content c) {
+		if (c == null) {
+			executer.changeThreshold(c);
+			return;
+		}
+		final int type = tableCellview.getDisplayType();
+		final boolean surface = type == Content.SURFACE
+				|| type == PointCloudNode.POINT_CLOUD;
+		final int old = surface ? tableCellview.getSurfaceThreshold() : c
+				.getThreshold();
+		final GenericDialog gd = new GenericDialog("Adjust threshold ...",
+				universe.getWindow());
+		gd.addSlider("Threshold", 0, 255, old);
+		final Scrollbar slider = (Scrollbar) gd.getSliders().get(0);
+		final UpdateCoalescer coalescer = new UpdateCoalescer() {
+			@Override
+			protected void update() {
+				setThreshold(c, surface, slider.getValue());
+			}
+		};
+		coalesce(gd, coalescer);
+
+		gd.setModal(false);
+		gd.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(final WindowEvent e) {
+				if (gd.wasCanceled()) {
+					coalescer.cancel();
+					setThreshold(c, surface, old);
+				} else {
+					coalescer.flush();
+				}
+			}
+		});
+		gd.showDialog();
+	}
+
+	private void setThreshold(final Content c, final boolean surface,
+			final int threshold) {
+		if (surface) {
+			tableCellview.setSurfaceThreshold(threshold);
+		} else {
+			c.setThreshold(threshold);
+		}
+	}
+
 	@Override
 	public final void actionPerformed(final ActionEvent e) {
 		final Object src = e.getSource();
 
 		if (src == color) {
-			executer.changeColor(getSelected());
+			changeColor(getSelected());
 		} else if (src == bgColor) {
 			changeBackgroundColor();
 		} else if (src == scalebar) {
@@ -507,7 +708,7 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		} else if (src == channels) {
 			executer.changeChannels(getSelected());
 		} else if (src == transparency) {
-			executer.changeTransparency(getSelected());
+			changeTransparency(getSelected());
 		} else if (src == resetView) {
 			executer.resetView();
 		} else if (src == reloadImage) {
@@ -529,24 +730,23 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		} else if (src == animationOptions) {
 			executer.changeAnimationOptions();
 		} else if (src == threshold) {
-			executer.changeThreshold(getSelected());
+			changeThreshold(getSelected());
 		} else if (src == displayAsVolume) {
-			executer.displayAs(getSelected(), Content.VOLUME);
-			updateMenus();
+			tableCellview.displayAs(Content.VOLUME);
+		} else if (src == displayAsBrickedVolume) {
+			tableCellview.displayAs(BrickedVolumeNode.BRICKED_VOLUME);
 		} else if (src == displayAsOrtho) {
-			executer.displayAs(getSelected(), Content.ORTHO);
-			updateMenus();
+			tableCellview.displayAs(Content.ORTHO);
 		} else if (src == displayAsMultiOrtho) {
-			executer.displayAs(getSelected(), Content.MULTIORTHO);
-			updateMenus();
+			tableCellview.displayAs(Content.MULTIORTHO);
 		} else if (src == displayAsSurface) {
-			executer.displayAs(getSelected(), Content.SURFACE);
-			updateMenus();
+			tableCellview.displayAs(Content.SURFACE);
 		} else if (src == displayAsSurfacePlot) {
-			executer.displayAs(getSelected(), Content.SURFACE_PLOT2D);
-			updateMenus();
+			tableCellview.displayAs(Content.SURFACE_PLOT2D);
+		} else if (src == displayAsPointCloud) {
+			tableCellview.displayAs(PointCloudNode.POINT_CLOUD);
 		} else if (src == slices) {
-			executer.changeSlices(getSelected());
+			changeSlices(getSelected());
 		} else if (src == close) {
 			executer.close();
 		} else if (src == resetTransform) {
@@ -564,82 +764,44 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		} else if (src == j3dproperties) {
 			executer.j3dproperties();
 		} else if (viewposXY == src) {
-			executer.execute(new Runnable() {
+			changeView(new Runnable() {
 				@Override
 				public void run() {
-					// Fixes the rotation bug. Waiting after reseting the view
-					// results in a corect rotation.
-					executer.resetView();
-					try {
-						Thread.sleep(10);
-					} catch (final InterruptedException e) {
-						e.printStackTrace();
-					}
 					universe.rotateToPositiveXY();
 				}
 			});
 		} else if (viewposXZ == src) {
-			executer.execute(new Runnable() {
+			changeView(new Runnable() {
 				@Override
 				public void run() {
-					executer.resetView();
-					try {
-						Thread.sleep(10);
-					} catch (final InterruptedException e) {
-						e.printStackTrace();
-					}
 					universe.rotateToPositiveXZ();
 				}
 			});
 		} else if (viewposYZ == src) {
-			executer.execute(new Runnable() {
+			changeView(new Runnable() {
 				@Override
 				public void run() {
-					executer.resetView();
-					try {
-						Thread.sleep(10);
-					} catch (final InterruptedException e) {
-						e.printStackTrace();
-					}
 					universe.rotateToPositiveYZ();
 				}
 			});
 		} else if (viewnegXY == src) {
-			executer.execute(new Runnable() {
+			changeView(new Runnable() {
 				@Override
 				public void run() {
-					executer.resetView();
-					try {
-						Thread.sleep(10);
-					} catch (final InterruptedException e) {
-						e.printStackTrace();
-					}
 					universe.rotateToNegativeXY();
 				}
 			});
 		} else if (viewnegXZ == src) {
-			executer.execute(new Runnable() {
+			changeView(new Runnable() {
 				@Override
 				public void run() {
-					executer.resetView();
-					try {
-						Thread.sleep(10);
-					} catch (final InterruptedException e) {
-						e.printStackTrace();
-					}
 					universe.rotateToNegativeXZ();
 				}
 			});
 		} else if (viewnegYZ == src) {
-			executer.execute(new Runnable() {
+			changeView(new Runnable() {
 				@Override
 				public void run() {
-					executer.resetView();
-					try {
-						Thread.sleep(10);
-					} catch (final InterruptedException e) {
-						e.printStackTrace();
-					}
 					universe.rotateToNegativeYZ();
 				}
 			});
@@ -679,10 +841,12 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 	// Universe Listener interface
 	@Override
 	public void transformationStarted(final View view) {
+		tableCellview.setInteracting(true);
 	}
 
 	@Override
 	public void transformationFinished(final View view) {
+		tableCellview.setInteracting(false);
 	}
 
 	@Override
@@ -691,6 +855,7 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 
 	@Override
 	public void transformationUpdated(final View view) {
+		tableCellview.setInteracting(true);
 	}
 
 	@Override
@@ -725,8 +890,10 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		final Content c = getSelected();
 
 		displayAsVolume.setEnabled(c != null);
+		displayAsBrickedVolume.setEnabled(c != null);
 		displayAsSurface.setEnabled(c != null);
 		displayAsSurfacePlot.setEnabled(c != null);
+		displayAsPointCloud.setEnabled(c != null);
 		displayAsOrtho.setEnabled(c != null);
 		properties.setEnabled(c != null);
 
@@ -748,7 +915,8 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 			return;
 		}
 
-		final int t = c.getType();
+		// the view knows the mode of contents it built itself
+		final int t = tableCellview.getDisplayType();
 
 		slices.setEnabled(t == Content.ORTHO || t == Content.MULTIORTHO);
 
@@ -756,13 +924,15 @@ public class ImageJ3DMenubar<T extends RealType<T>> extends JMenuBar implements
 		lock.setState(c.isLocked());
 		show.setState(c.isVisible());
 
-		final ImagePlus i = c.getImage();
-		displayAsVolume.setEnabled(t != Content.VOLUME && i != null);
-		displayAsOrtho.setEnabled(t != Content.ORTHO && i != null);
-		displayAsSurface.setEnabled(t != Content.SURFACE && i != null);
-		displayAsSurfacePlot.setEnabled(t != Content.SURFACE_PLOT2D
-				&& i != null);
-		displayAsMultiOrtho.setEnabled(t != Content.MULTIORTHO && i != null);
+		final boolean i = tableCellview.getDataValue() != null;
+		displayAsVolume.setEnabled(t != Content.VOLUME && i);
+		displayAsBrickedVolume.setEnabled(t != BrickedVolumeNode.BRICKED_VOLUME
+				&& i);
+		displayAsOrtho.setEnabled(t != Content.ORTHO && i);
+		displayAsSurface.setEnabled(t != Content.SURFACE && i);
+		displayAsSurfacePlot.setEnabled(t != Content.SURFACE_PLOT2D && i);
+		displayAsMultiOrtho.setEnabled(t != Content.MULTIORTHO && i);
+		displayAsPointCloud.setEnabled(t != PointCloudNode.POINT_CLOUD && i);
 	}
 
 	@Override
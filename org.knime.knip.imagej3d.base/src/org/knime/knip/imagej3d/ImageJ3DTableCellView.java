@@ -57,14 +57,22 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.media.j3d.Canvas3D;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.ToolTipManager;
 
 import org.knime.core.data.DataValue;
@@ -73,28 +81,18 @@ import org.knime.knip.base.data.img.ImgPlusValue;
 import org.knime.knip.cellviewer.interfaces.CellView;
 import org.knime.knip.core.util.waitingindicator.WaitingIndicatorUtils;
 import org.knime.knip.core.util.waitingindicator.libs.WaitIndicator;
-import org.knime.knip.imagej2.core.util.ImageProcessorFactory;
 import org.knime.knip.imagej2.core.util.ImgToIJ;
 
 import ij.ImagePlus;
-import ij.process.ByteProcessor;
-import ij.process.ImageProcessor;
 import ij3d.Content;
 import ij3d.ContentConstants;
+import ij3d.ContentCreator;
 import ij3d.Image3DUniverse;
 import ij3d.ImageWindow3D;
 import net.imagej.ImgPlus;
-import net.imglib2.converter.Converter;
-import net.imglib2.ops.operation.Operations;
-import net.imglib2.ops.operation.iterableinterval.unary.MinMax;
-import net.imglib2.ops.operation.real.unary.Normalize;
-import net.imglib2.type.Type;
+import net.imagej.axis.Axes;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.ValuePair;
-import view4d.Timeline;
-import view4d.TimelineGUI;
 
 /**
  * Helper class for the ImageJ 3D Viewer, which provides the TableCellView.
@@ -104,27 +102,120 @@ import view4d.TimelineGUI;
 public class ImageJ3DTableCellView<T extends RealType<T>> implements
 		CellView {
 
-	private NodeLogger m_logger = NodeLogger
+	// kept after the view is closed, for loads which are still finishing
+	private final NodeLogger m_logger = NodeLogger
 			.getLogger(ImageJ3DTableCellView.class);
 
 	// Default rendering Type
 	private final int m_renderType = ContentConstants.VOLUME;
 
+	// the threshold of a new surface is computed from the image
+	private static final int AUTO_THRESHOLD = -1;
+
+	/**
+	 * System property which renders all images in software, without Java 3D.
+	 */
+	static final String SOFTWARE_PROPERTY = "knip.imagej3d.software";
+
+	/**
+	 * System property for the time in ms without interaction after which the
+	 * full quality is restored.
+	 */
+	static final String IDLE_PROPERTY = "knip.imagej3d.interaction.idle";
+
+	private static final int IDLE_DELAY = Math.max(0,
+			Integer.getInteger(IDLE_PROPERTY, 300));
+
 	// 4D stuff
-	private Timeline m_timeline;
+	private FrameSlider m_frameSlider;
+
+	// notes on how the displayed content differs from the image
+	private JLabel m_statusLabel;
+
+	// the displayed timepoint
+	private int m_displayedFrame;
+
+	// the display mode chosen by the user and the one displayed
+	private int m_displayType = m_renderType;
 
-	private TimelineGUI m_timelineGUI;
+	private int m_displayedType = m_renderType;
 
-	private JPanel m_panel4D = new JPanel();
+	// the surface threshold chosen by the user and the one displayed
+	private int m_surfaceThreshold = AUTO_THRESHOLD;
+
+	private int m_displayedThreshold = AUTO_THRESHOLD;
+
+	// false while a preview of the displayed timepoint is shown
+	private boolean m_displayComplete;
 
 	// rendering Universe
 	private Image3DUniverse m_universe;
 
 	private Canvas3D m_universePanel;
 
+	// shows the displayed mode, updated once a content is displayed
+	private ImageJ3DMenubar<T> m_menubar;
+
+	// renders on the CPU where Java 3D is not available
+	private SoftwareRenderPanel m_software;
+
 	// Container for the converted picture,
 	private ImagePlus m_ijImagePlus;
 
+	// the key under which the converted picture is retained in the shared
+	// cache
+	private ImageFingerprint m_retained;
+
+	// value range of the displayed image and the value it belongs to
+	private VolumeStatistics m_statistics;
+
+	private DataValue m_statisticsValue;
+
+	// completes the statistics of the displayed timepoint for the others
+	private StatisticsRefiner m_refiner;
+
+	// plays the timepoints of the displayed image
+	private final FramePlayer m_player = new FramePlayer(
+			new FramePlayer.FrameDisplay() {
+				@Override
+				public void display(final int frame, final Content content) {
+					showPlayedFrame(frame, content);
+				}
+
+				@Override
+				public void rateChanged(final double fps, final int dropped) {
+					m_frameSlider.setRate(fps, dropped);
+				}
+
+				@Override
+				public void playbackStopped() {
+					m_frameSlider.setPlaying(false);
+				}
+			});
+
+	// a reduced copy of the displayed volume, shown while the scene is
+	// moved, and the timer restoring the full quality
+	private Content m_coarse;
+
+	private LoadTicket m_coarseTicket;
+
+	private boolean m_showingCoarse;
+
+	private Timer m_idleTimer;
+
+	// converts the other values handed to the view in the background
+	private final ValuePrefetcher m_prefetcher = new ValuePrefetcher();
+
+	// contents built before, displayed again without loading
+	private final RepresentationCache<LoadResult> m_representations = new RepresentationCache<LoadResult>();
+
+	// the load in flight and the value to load once it is done
+	private Loader m_loader;
+
+	private DataValue m_pending;
+
+	private int m_pendingFrame;
+
 	// ui containers
 	private JPanel m_rootPanel;
 
@@ -165,10 +256,122 @@ public class ImageJ3DTableCellView<T extends RealType<T>> implements
 	 */
 	protected final void fullReload(final List<DataValue> valueToView) {
 		m_dataValue = null;
-		m_rootPanel.remove(m_universePanel);
+		m_representations.clear();
 		updateComponent(valueToView);
 	}
 
+	/**
+	 * Creates the universe, its canvas and the menubar on first use. They are
+	 * kept for the lifetime of the view, new images only replace the content.
+	 * If Java 3D is not available, images are rendered in software instead.
+	 */
+	private void initUniverse() {
+		if (m_universe != null || m_software != null) {
+			return;
+		}
+
+		if (Boolean.getBoolean(SOFTWARE_PROPERTY)) {
+			useSoftwareRenderer(null);
+		} else {
+			try {
+				createUniverse();
+			} catch (final RuntimeException e) {
+				useSoftwareRenderer(e);
+			} catch (final LinkageError e) {
+				// the native libraries of Java 3D could not be loaded
+				useSoftwareRenderer(e);
+			}
+		}
+
+		m_frameSlider = new FrameSlider(new FrameSlider.FrameListener() {
+			@Override
+			public void frameChanged(final int frame) {
+				stopPlayback();
+				showFrame(frame);
+			}
+
+			@Override
+			public void playbackChanged(final boolean playing) {
+				if (playing) {
+					startPlayback();
+				} else {
+					stopPlayback();
+					// the played timepoints may have a reduced resolution
+					showFrame(m_displayedFrame);
+				}
+			}
+		});
+		m_frameSlider.setVisible(false);
+		m_statusLabel = new JLabel();
+
+		m_idleTimer = new Timer(IDLE_DELAY, new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				restoreQuality();
+			}
+		});
+		m_idleTimer.setRepeats(false);
+
+		final JPanel south = new JPanel(new BorderLayout());
+		south.add(m_frameSlider, BorderLayout.CENTER);
+		south.add(m_statusLabel, BorderLayout.EAST);
+		m_rootPanel.add(south, BorderLayout.SOUTH);
+	}
+
+	/**
+	 * Creates the universe and adds its canvas and menubar to the panel.
+	 */
+	private void createUniverse() {
+		// universe for rendering the image
+		m_universe = new Image3DUniverse();
+
+		// add menubar and 3Duniverse to the panel
+		m_menubar = new ImageJ3DMenubar<T>(m_universe, this);
+		m_rootPanel.add(m_menubar, BorderLayout.NORTH);
+
+		m_universe.init(new ImageWindow3D("abc", m_universe));
+		m_universePanel = m_universe.getCanvas(0);
+		try {
+			m_rootPanel.add(m_universePanel, BorderLayout.CENTER);
+		} catch (final IllegalArgumentException e) {
+			// TEMPORARY error handling: openen the 3D view
+			// on different monitors doesn't work so far, at
+			// least with linux
+			if (e.getLocalizedMessage().equals(
+					"adding a container to a container on a different GraphicsDevice")) {
+				m_rootPanel
+						.add(new JLabel(
+								"Opening the ImageJ 3D Viewer on different monitors doesn't work so far, sorry. We are working on it ...!"));
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the universe, which could not be created, by a panel rendering
+	 * in software.
+	 */
+	private void useSoftwareRenderer(final Throwable cause) {
+		if (cause != null) {
+			m_logger.warn("ImageJ 3D Viewer: Java 3D is not available, images"
+					+ " are rendered in software", cause);
+		}
+		if (m_universe != null) {
+			try {
+				m_universe.cleanup();
+			} catch (final RuntimeException e) {
+				// partly initialized
+			}
+			m_universe = null;
+		}
+		m_universePanel = null;
+		m_menubar = null;
+		m_rootPanel.removeAll();
+		m_software = new SoftwareRenderPanel();
+		m_rootPanel.add(m_software, BorderLayout.CENTER);
+	}
+
 	/**
 	 * updates the Component, called whenever a new picture is selected, or the
 	 * view is reset.
@@ -176,215 +379,983 @@ public class ImageJ3DTableCellView<T extends RealType<T>> implements
 	 * @param valueToView
 	 *            The ImgPlus that is to be displayed by the viewer.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public final void updateComponent(final List<DataValue> valueToView) {
 
-		if (m_dataValue == null || !(m_dataValue.equals(valueToView.get(0)))) {
+		final DataValue value = valueToView.get(0);
+		m_prefetcher.prefetch(valueToView);
+		if (m_loader == null && ImageFingerprint.sameImage(value, m_dataValue)
+				&& isDisplayed(value, m_displayedFrame)) {
+			return;
+		}
+		load(value, 0);
+	}
 
-			// reference to the current object so it can be reached in the
-			// worker.
-			final ImageJ3DTableCellView<T> context = this;
+	/**
+	 * Displays the current timepoint in another mode. The content is rebuilt
+	 * from the converted image, or read on demand for orthoslices.
+	 * 
+	 * @param type
+	 *            the render type, see {@link ContentConstants}
+	 */
+	final void displayAs(final int type) {
+		if (m_dataValue == null) {
+			return;
+		}
+		m_displayType = type;
+		load(m_dataValue, m_displayedFrame);
+	}
 
-			showError(m_rootPanel, null, false);
-			WaitingIndicatorUtils.setWaiting(m_rootPanel, true);
+	/**
+	 * @return the render type of the displayed content
+	 */
+	final int getDisplayType() {
+		return m_displayedType;
+	}
 
-			final SwingWorker<ImgPlus<T>, Integer> worker = new SwingWorker<ImgPlus<T>, Integer>() {
+	/**
+	 * Displays the surface or point cloud of the current timepoint at another
+	 * threshold. Both are cached per threshold, so returning to a previous
+	 * one is immediate.
+	 * 
+	 * @param threshold
+	 *            the threshold, 0 to 255
+	 */
+	final void setSurfaceThreshold(final int threshold) {
+		if (m_dataValue == null) {
+			return;
+		}
+		m_surfaceThreshold = threshold;
+		load(m_dataValue, m_displayedFrame);
+	}
 
-				@Override
-				protected ImgPlus<T> doInBackground() throws Exception {
-
-					// universe for rendering the image
-					m_universe = new Image3DUniverse();
-					m_timeline = m_universe.getTimeline();
-
-					// Menubar
-					final ImageJ3DMenubar<T> ij3dbar = new ImageJ3DMenubar<T>(
-							m_universe, context);
-
-					// add menubar and 3Duniverse to the panel
-					m_rootPanel.add(ij3dbar, BorderLayout.NORTH);
-
-					// New image arrives
-					m_universe.resetView();
-					m_universe.removeAllContents(); // cleanup universe
-
-					m_dataValue = valueToView.get(0);
-					final ImgPlus<T> in = ((ImgPlusValue<T>) valueToView.get(0))
-							.getImgPlus();
-
-					// abort if input image has to few dimensions.
-					if (in.numDimensions() < 3) {
-						showError(
-								m_rootPanel,
-								new String[] {
-										"Only images with a minimum of three dimensions",
-										" are supported by the ImageJ 3D Viewer." },
-								true);
-						return null;
-					}
-
-					// abort if input image has to many dimensions.
-					if (in.numDimensions() > 5) {
-						showError(m_rootPanel, new String[] {
-								"Only images with up to five dimensions",
-								"are supported by the 3D Viewer." }, true);
-						return null;
-					}
-
-					// abort if unsuported type
-					if (in.firstElement() instanceof DoubleType) {
-						showError(
-								m_rootPanel,
-								new String[] {
-										"DoubleType images are not supported!",
-										" You have to convert your image to e.g. ByteType using the converter." },
-								true);
-						return null;
-					}
-
-					// validate if mapping can be inferred automatically
-					if (!ImgToIJ.validateMapping(in)) {
-						showError(
-								m_rootPanel,
-								new String[] { "Warning: The input image contains unknown dimensions. Currently we only support 'X','Y','Channel,'Z' and 'Time'!" },
-								true);
-						return null;
-					}
-
-					// here we create an converted ImagePlus
-					m_ijImagePlus = createImagePlus(in);
-
-					try {
-						// select the rendertype
-						switch (m_renderType) {
-						case ContentConstants.ORTHO:
-							m_c = m_universe.addOrthoslice(m_ijImagePlus);
-							break;
-						case ContentConstants.MULTIORTHO:
-							m_c = m_universe.addOrthoslice(m_ijImagePlus);
-							m_c.displayAs(ContentConstants.MULTIORTHO);
-						case ContentConstants.VOLUME:
-							m_c = m_universe.addVoltex(m_ijImagePlus);
-							break;
-						case ContentConstants.SURFACE:
-							m_c = m_universe.addMesh(m_ijImagePlus);
-							break;
-						case ContentConstants.SURFACE_PLOT2D:
-							m_c = m_universe.addSurfacePlot(m_ijImagePlus);
-							break;
-						default:
-							break;
-						}
-					} catch (final Exception e) {
-						WaitingIndicatorUtils.setWaiting(m_rootPanel, false);
-						showError(m_rootPanel, new String[] {
-								"error adding picture to universe:",
-								e.getClass().getSimpleName() }, true);
-						return null;
-					}
-
-					m_universe.updateTimeline();
-					return in;
+	/**
+	 * @return the threshold of the displayed surface or point cloud
+	 */
+	final int getSurfaceThreshold() {
+		return m_displayedThreshold;
+	}
+
+	/**
+	 * Called while the user moves the scene. Surfaces switch to their
+	 * coarsest level of detail and volumes to a reduced copy, to keep the
+	 * interaction smooth; the full quality is restored once the scene has
+	 * not moved for {@value #IDLE_PROPERTY} ms. May be called on any thread.
+	 * 
+	 * @param interacting
+	 *            true when a transformation starts or continues, false when
+	 *            it finished
+	 */
+	final void setInteracting(final boolean interacting) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (m_universe == null || m_c == null) {
+					return;
+				}
+				if (interacting) {
+					reduceQuality();
 				}
+				m_idleTimer.restart();
+			}
+		});
+	}
+
+	private void reduceQuality() {
+		if (m_showingCoarse || m_player.isPlaying()) {
+			return;
+		}
+		if (m_c.getContent() instanceof LodMeshNode) {
+			final LodMeshNode node = (LodMeshNode) m_c.getContent();
+			node.setLevel(node.getLevels() - 1);
+			m_showingCoarse = true;
+		} else if (m_coarse != null && m_universe.getSelected() == null) {
+			// a selected content is moved itself, it is not swapped
+			copyAttributes(m_c, m_coarse);
+			m_universe.removeAllContents();
+			m_universe.addContent(m_coarse);
+			m_showingCoarse = true;
+		}
+	}
+
+	private void restoreQuality() {
+		if (!m_showingCoarse || m_c == null) {
+			return;
+		}
+		m_showingCoarse = false;
+		if (m_c.getContent() instanceof LodMeshNode) {
+			((LodMeshNode) m_c.getContent()).setLevel(0);
+		} else {
+			m_universe.removeAllContents();
+			m_c = m_universe.addContent(m_c);
+		}
+	}
+
+	/**
+	 * Builds the reduced copy of a displayed volume in the background.
+	 */
+	private void buildCoarse(final LoadResult result, final int frame) {
+		if (result.m_type != ContentConstants.VOLUME || result.m_imp == null) {
+			return;
+		}
+		final ImagePlus imp = LazyPlaneStack.frame(result.m_imp, frame);
+		final int factor = Downsampler.interactiveFactor(imp,
+				result.m_factor);
+		if (factor == 0) {
+			return;
+		}
 
-				/**
-				 * @param firstElement
-				 * @param imgPlus
-				 * @param factor
-				 */
-				private ImagePlus createImagePlus(final ImgPlus<T> in) {
+		final LoadTicket ticket = new LoadTicket();
+		m_coarseTicket = ticket;
+		final Content full = m_c;
+		new SwingWorker<Content, Void>() {
+			@Override
+			protected Content doInBackground() throws Exception {
+				final ImagePlus coarse = Downsampler.downsample(imp, factor,
+						true, ticket);
+				ticket.checkCancelled();
+				return ContentCreator.createContent(imp.getTitle(), coarse,
+						ContentConstants.VOLUME);
+			}
 
-					final double minValue = in.firstElement().getMinValue();
-					final double maxValue = in.firstElement().getMaxValue();
+			@Override
+			protected void done() {
+				if (ticket.isCancelled() || m_c != full) {
+					return;
+				}
+				try {
+					m_coarse = get();
+				} catch (final Exception e) {
+					// the full quality is shown during the interaction
+					m_logger.debug("Reduced volume could not be built", e);
+				}
+			}
+		}.execute();
+	}
 
-					final ValuePair<T, T> oldMinMax = Operations.compute(
-							new MinMax<T>(), in);
+	/**
+	 * Drops the reduced copy of the displayed content.
+	 */
+	private void discardCoarse() {
+		if (m_coarseTicket != null) {
+			m_coarseTicket.cancel();
+			m_coarseTicket = null;
+		}
+		m_coarse = null;
+		m_showingCoarse = false;
+		if (m_idleTimer != null) {
+			m_idleTimer.stop();
+		}
+	}
 
-					final double factor = (((maxValue - minValue) / 255))
-							/ Normalize.normalizationFactor(
-									oldMinMax.a.getRealDouble(),
-									oldMinMax.b.getRealDouble(), minValue,
-									maxValue);
+	/**
+	 * @return the render type a value is loaded with, which is the chosen
+	 *         one also for other values; bricks are chosen anew for the size
+	 *         of each image
+	 */
+	private int typeFor(final DataValue value) {
+		if (m_displayType == BrickedVolumeNode.BRICKED_VOLUME
+				&& !ImageFingerprint.sameImage(value, m_dataValue)) {
+			return m_renderType;
+		}
+		return m_displayType;
+	}
 
-					return ImgToIJ.wrap(in, new ImageProcessorFactory() {
+	/**
+	 * @return the surface or point cloud threshold a value is loaded with
+	 */
+	private int thresholdFor(final DataValue value) {
+		return ImageFingerprint.sameImage(value, m_dataValue) ? m_surfaceThreshold
+				: AUTO_THRESHOLD;
+	}
 
-						@Override
-						public <V extends Type<V>> ImageProcessor createProcessor(
-								final int width, final int height, final V type) {
-							return new ByteProcessor(width, height);
-						}
-					}, new Converter<T, FloatType>() {
+	/**
+	 * @return true if the running load will display the given timepoint as
+	 *         requested
+	 */
+	private boolean isLoading(final DataValue value, final int frame) {
+		return ImageFingerprint.sameImage(value, m_loader.m_value)
+				&& frame == m_loader.m_frame
+				&& typeFor(value) == m_loader.m_type
+				&& (!ContentBuilder.isExtracted(m_loader.m_type) || thresholdFor(value) == m_loader.m_threshold);
+	}
+
+	/**
+	 * @return true if the given timepoint is displayed as requested
+	 */
+	private boolean isDisplayed(final DataValue value, final int frame) {
+		return ImageFingerprint.sameImage(value, m_dataValue)
+				&& frame == m_displayedFrame
+				&& m_displayComplete
+				&& m_displayedType == m_displayType
+				&& (!ContentBuilder.isExtracted(m_displayedType) || m_displayedThreshold == m_surfaceThreshold);
+	}
+
+	/**
+	 * Displays another timepoint of the current image.
+	 * 
+	 * @param frame
+	 *            the timepoint, zero based
+	 */
+	private void showFrame(final int frame) {
+		if (m_dataValue != null) {
+			load(m_dataValue, frame);
+		}
+	}
+
+	/**
+	 * Plays the timepoints of the displayed image from the displayed one on.
+	 */
+	private void startPlayback() {
+		// orthoslices read on demand have no converted image to play
+		if (m_ijImagePlus == null || m_c == null || m_loader != null
+				&& !ImageFingerprint.sameImage(m_loader.m_value, m_dataValue)) {
+			m_frameSlider.setPlaying(false);
+			return;
+		}
+		if (m_loader != null) {
+			// another timepoint was about to be displayed
+			m_loader.m_ticket.cancel();
+			m_pending = null;
+		}
+		m_player.start(m_ijImagePlus, m_displayedType, m_displayedThreshold,
+				ImageFingerprint.known(m_dataValue), m_displayedFrame);
+	}
+
+	private void stopPlayback() {
+		if (m_player.isPlaying()) {
+			m_player.stop();
+			m_frameSlider.setPlaying(false);
+		}
+	}
+
+	/**
+	 * Displays a timepoint built by the player, keeping the attributes of
+	 * the previous one.
+	 */
+	private void showPlayedFrame(final int frame, final Content content) {
+		if (m_c != null) {
+			copyAttributes(m_c, content);
+		}
+		cancelReading();
+		discardCoarse();
+		m_universe.removeAllContents();
+		m_c = m_universe.addContent(content);
+		m_displayedFrame = frame;
+		m_displayComplete = false;
+		m_statusLabel.setText("");
+		m_frameSlider.setFrames(m_ijImagePlus.getNFrames(), frame);
+	}
+
+	/**
+	 * Requests one timepoint of a value. At most one load runs at a time. A
+	 * new request cancels the running load and is loaded once it has
+	 * stopped; requests in between are skipped, so only the most recent one
+	 * is rendered.
+	 */
+	private void load(final DataValue value, final int frame) {
+
+		if (m_frameSlider != null) {
+			stopPlayback();
+		}
+
+		if (m_loader != null) {
+			if (isLoading(value, frame)) {
+				// already on its way
+				m_pending = null;
+				return;
+			}
+			m_loader.m_ticket.cancel();
+			if (isDisplayed(value, frame)) {
+				m_pending = null;
+			} else {
+				m_pending = value;
+				m_pendingFrame = frame;
+			}
+			return;
+		}
+
+		initUniverse();
+
+		showError(m_rootPanel, null, false);
+
+		// a mode displayed before is shown again at once
+		final ImageFingerprint fingerprint = ImageFingerprint.known(value);
+		final LoadResult built = fingerprint == null ? null
+				: m_representations.get(representationKey(fingerprint, frame,
+						typeFor(value), thresholdFor(value)));
+		final LoadResult restored = built == null ? null : built
+				.withImage();
+		if (restored != null) {
+			display(restored, value, frame, true);
+			return;
+		}
+
+		WaitingIndicatorUtils.setWaiting(m_rootPanel, true);
 
+		m_loader = new Loader(value, frame);
+		m_loader.execute();
+	}
+
+	/**
+	 * The outcome of a load, handed from the background thread to the EDT.
+	 */
+	private final class LoadResult {
+
+		private ImgPlus<T> m_in;
+
+		private ImageFingerprint m_fingerprint;
+
+		private ImagePlus m_imp;
+
+		private VolumeStatistics m_stats;
+
+		private Content m_content;
+
+		// renders the timepoint where Java 3D is not available
+		private SoftwareRenderer m_renderer;
+
+		private int m_type;
+
+		// the threshold of a surface
+		private int m_threshold = AUTO_THRESHOLD;
+
+		private int m_frames;
+
+		// the factor by which the resolution of the content is reduced
+		private int m_factor = 1;
+
+		private String[] m_error;
+
+		// the converted image the content of a representation was built
+		// from, which it takes from the shared cache
+		private WeakReference<ImagePlus> m_converted;
+
+		/**
+		 * @return a result displaying the content of this one without
+		 *         holding the images, to be kept in the representation cache
+		 */
+		private LoadResult representation() {
+			final LoadResult representation = preview(m_content, m_factor);
+			representation.m_in = null;
+			representation.m_imp = null;
+			representation.m_converted = m_imp == null ? null
+					: new WeakReference<ImagePlus>(m_imp);
+			representation.m_fingerprint = m_fingerprint;
+			return representation;
+		}
+
+		/**
+		 * @return a result displaying the content of this representation
+		 *         with its converted image from the shared cache, or null if
+		 *         that image has been evicted, so the content is stale
+		 */
+		private LoadResult withImage() {
+			final LoadResult result = preview(m_content, m_factor);
+			result.m_fingerprint = m_fingerprint;
+			if (m_converted != null) {
+				result.m_imp = ImagePlusCache.getInstance().get(m_fingerprint);
+				if (result.m_imp == null
+						|| result.m_imp != m_converted.get()) {
+					return null;
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * @return a result sharing the image of this one, displaying the
+		 *         given preview content
+		 */
+		private LoadResult preview(final Content content, final int factor) {
+			final LoadResult preview = new LoadResult();
+			preview.m_in = m_in;
+			preview.m_imp = m_imp;
+			preview.m_stats = m_stats;
+			preview.m_content = content;
+			preview.m_type = m_type;
+			preview.m_threshold = m_threshold;
+			preview.m_frames = m_frames;
+			preview.m_factor = factor;
+			return preview;
+		}
+	}
+
+	/**
+	 * Loads one timepoint of a value: converts its planes and builds its
+	 * content in the background, then replaces the displayed content on the
+	 * EDT. Large images are first shown at reduced resolutions, coarsest
+	 * first, which are published while the finer ones are built. Fields of
+	 * the view are only written on the EDT.
+	 */
+	private final class Loader extends SwingWorker<LoadResult, LoadResult> {
+
+		private final DataValue m_value;
+
+		private final int m_frame;
+
+		private final LoadTicket m_ticket = new LoadTicket();
+
+		// statistics known for the value when the load started
+		private final VolumeStatistics m_knownStats;
+
+		// a new timepoint keeps the display mode of the previous one
+		private final int m_type;
+
+		// the threshold of a surface or point cloud, or AUTO_THRESHOLD
+		private final int m_threshold;
+
+		// the planes the on-demand orthoslices are read from
+		private SourcePlanes<T> m_src;
+
+		Loader(final DataValue value, final int frame) {
+			m_value = value;
+			m_frame = frame;
+			m_knownStats = ImageFingerprint.sameImage(value, m_statisticsValue) ? m_statistics
+					: null;
+			m_type = typeFor(value);
+			m_threshold = thresholdFor(value);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected LoadResult doInBackground() throws Exception {
+
+			final LoadResult result = new LoadResult();
+			result.m_in = ((ImgPlusValue<T>) m_value).getImgPlus();
+			result.m_stats = m_knownStats;
+			result.m_type = m_type;
+			result.m_threshold = m_threshold;
+			m_ticket.checkCancelled();
+
+			// abort if the image can't be displayed
+			result.m_error = validate(result.m_in);
+			if (result.m_error != null) {
+				return result;
+			}
+			result.m_fingerprint = ImageFingerprint.of(
+					(ImgPlusValue<T>) m_value, result.m_in);
+
+			// the statistics are kept with the converted image, which another
+			// view may have converted
+			if (result.m_stats == null) {
+				result.m_stats = ImagePlusCache.getInstance().getStatistics(
+						result.m_fingerprint);
+			}
+
+			// orthoslices of single channel images only read the three
+			// displayed planes, and the planes around them on demand
+			m_src = new SourcePlanes<T>(result.m_in);
+			result.m_frames = m_src.getFrames();
+			if (m_type == ContentConstants.ORTHO && m_src.getChannels() == 1
+					&& m_software == null) {
+				// normalised like the converted image would be; the other
+				// timepoints are not swept
+				if (result.m_stats == null
+						&& !ByteStackConverter.canWrap(m_src, null)) {
+					result.m_stats = VolumeStatistics.computeFrame(m_src,
+							m_frame, m_ticket);
+				}
+				final String name = result.m_in.getName();
+				result.m_content = OrthoSliceNode.createContent(
+						name == null ? "" : name,
+						new OrthoPlanes<T>(m_src, result.m_stats, 0, m_frame),
+						new double[] { m_src.getSpacing(Axes.X),
+								m_src.getSpacing(Axes.Y),
+								m_src.getSpacing(Axes.Z) });
+				return result;
+			}
+
+			// here we create an converted ImagePlus, unless another
+			// view has done so recently
+			final ImagePlusCache cache = ImagePlusCache.getInstance();
+			result.m_imp = cache.getOrConvert(result.m_fingerprint,
+					new Callable<ImagePlus>() {
 						@Override
-						public void convert(final T input,
-								final FloatType output) {
-							output.setReal(((input.getRealDouble() - minValue) / factor));
+						public ImagePlus call() throws Exception {
+							return createImagePlus(result);
 						}
-					});
+					}, m_ticket);
+			m_logger.debug("ImageJ 3D Viewer cache: " + cache.getHits()
+					+ " hits, " + cache.getMisses() + " misses, "
+					+ cache.getEvictions() + " evictions");
+			// the converted image holds the most complete statistics
+			result.m_stats = ((LazyPlaneStack<?>) result.m_imp.getStack())
+					.getStatistics();
+
+			// only the planes of the requested timepoint are converted
+			final ImagePlus frame = LazyPlaneStack.frame(result.m_imp,
+					m_frame);
+
+			// timepoints which would not fit into memory are displayed at
+			// a lower resolution
+			result.m_factor = MemoryBudget.reductionFactor(frame, m_type, 1);
+
+			// volumes which would be reduced are displayed in bricks, which
+			// only upload what is in view
+			if (m_type == ContentConstants.VOLUME && result.m_factor > 1
+					&& m_software == null) {
+				final int bricked = MemoryBudget.reductionFactor(frame,
+						BrickedVolumeNode.BRICKED_VOLUME, 1);
+				if (bricked < result.m_factor) {
+					result.m_type = BrickedVolumeNode.BRICKED_VOLUME;
+					result.m_factor = bricked;
 				}
+			}
 
-				@Override
-				protected void done() {
-
-					ImgPlus<T> imgPlus = null;
-					try {
-						imgPlus = get();
-					} catch (final Exception e) {
-						e.printStackTrace();
-						return;
-					}
-
-					// Error happend during rendering
-					if (imgPlus == null) {
-						return;
-					}
-
-					//
-					
-					m_universe.init(new ImageWindow3D("abc", m_universe));
-					m_universePanel = m_universe.getCanvas(0);
-					try {
-						m_rootPanel.add(m_universePanel, BorderLayout.CENTER);
-					} catch (final IllegalArgumentException e) {
-						// TEMPORARY error handling: openen the 3D view
-						// on different monitors doesn't work so far, at
-						// least with linux
-						if (e.getLocalizedMessage()
-								.equals("adding a container to a container on a different GraphicsDevice")) {
-							m_rootPanel
-									.add(new JLabel(
-											"Opening the ImageJ 3D Viewer on different monitors doesn't work so far, sorry. We are working on it ...!"));
-						} else {
-							throw e;
-						}
-					}
+			// without Java 3D the volume is ray cast, no content is built
+			if (m_software != null) {
+				final ImagePlus displayed = Downsampler.reduce(frame,
+						result.m_factor, m_ticket);
+				result.m_renderer = new SoftwareRenderer(displayed, m_ticket);
+				// the threshold of the timepoint, not of its reduction
+				result.m_renderer.setIsoValue(SurfaceExtractor
+						.defaultThreshold(frame));
+				return result;
+			}
 
+			// previews only read every n-th plane, so they appear long
+			// before the whole timepoint is converted
+			for (final int factor : Downsampler.previewFactors(frame,
+					result.m_factor)) {
+				final ImagePlus preview = Downsampler.downsample(frame,
+						factor, false, m_ticket);
+				m_ticket.checkCancelled();
+				// previews sample the planes, their surfaces are kept apart
+				publish(result.preview(createContent(result,
+						frame.getTitle(), preview, preview, -factor), factor));
+			}
 
+			final ImagePlus displayed = Downsampler.reduce(frame,
+					result.m_factor, m_ticket);
+			if (result.m_factor > 1) {
+				m_logger.info("ImageJ 3D Viewer: resolution reduced by "
+						+ result.m_factor + " to fit the memory budget");
+			}
+
+			// building the textures can't be interrupted, but it is not
+			// started for an outdated value
+			m_ticket.checkCancelled();
+			result.m_content = createContent(result, frame.getTitle(),
+					displayed, frame, result.m_factor);
+			return result;
+		}
+
+		/**
+		 * Builds the content of a timepoint. The default threshold of
+		 * surfaces and point clouds is the one of the timepoint at full
+		 * resolution; previews use the threshold of their samples until it
+		 * is known, so they don't wait for the whole timepoint.
+		 * 
+		 * @param result
+		 *            receives the default threshold of the timepoint
+		 * @param imp
+		 *            the image the content is built from
+		 * @param frame
+		 *            the timepoint at full resolution, or the preview itself
+		 * @param resampling
+		 *            identifies the resolution of the image in the mesh
+		 *            cache, negative for previews
+		 */
+		private Content createContent(final LoadResult result,
+				final String title, final ImagePlus imp, final ImagePlus frame,
+				final int resampling) {
+			int threshold = result.m_threshold;
+			if (ContentBuilder.isExtracted(result.m_type)
+					&& threshold == AUTO_THRESHOLD) {
+				threshold = SurfaceExtractor.defaultThreshold(frame);
+				if (resampling > 0) {
+					result.m_threshold = threshold;
+				}
+			}
+			return ContentBuilder.create(title, imp, result.m_type,
+					threshold, result.m_fingerprint, m_frame, resampling,
+					m_ticket);
+		}
+
+		/**
+		 * Creates the 8-bit representation rendered by the viewer, which
+		 * converts its planes on demand, normalised to the range of the
+		 * image. Unsigned byte images are used as they are.
+		 * 
+		 * @param result
+		 *            holds the image to convert, receives the statistics
+		 */
+		private ImagePlus createImagePlus(final LoadResult result) {
+
+			final SourcePlanes<T> src = m_src;
+
+			// 8-bit images are displayed straight from their storage if
+			// they are not stretched
+			if (ByteStackConverter.canWrap(src, result.m_stats)) {
+				return LazyPlaneStack.create(src, null);
+			}
+
+			// the statistics stay valid as long as the value does, all
+			// timepoints share them. Only the requested timepoint is swept
+			// before it is displayed, the others are swept afterwards.
+			if (result.m_stats == null) {
+				result.m_stats = VolumeStatistics.computeFrame(src, m_frame,
+						m_ticket);
+			}
+
+			return LazyPlaneStack.create(src, ByteStackConverter.canWrap(
+					src, result.m_stats) ? null : result.m_stats);
+		}
+
+		@Override
+		protected void process(final List<LoadResult> previews) {
+			// only the finest preview so far is worth displaying
+			if (!m_ticket.isCancelled()) {
+				display(previews.get(previews.size() - 1), m_value, m_frame,
+						false);
+			}
+		}
+
+		@Override
+		protected void done() {
+			m_loader = null;
+
+			if (m_ticket.isCancelled()) {
+				// a newer value is waiting, or the displayed one was
+				// selected again
+				if (m_pending != null) {
+					final DataValue next = m_pending;
+					m_pending = null;
+					load(next, m_pendingFrame);
+				} else {
 					WaitingIndicatorUtils.setWaiting(m_rootPanel, false);
+				}
+				return;
+			}
 
-					// enables the timeline gui if picture has 4 or 5
-					// Dimensions
-
-					if (m_ijImagePlus.getNFrames() > 1) {
-						m_timelineGUI = new TimelineGUI(m_timeline);
-						m_panel4D = m_timelineGUI.getPanel();
-						m_universe.setTimelineGui(m_timelineGUI);
-
-						m_panel4D.setVisible(true);
-						m_rootPanel.add(m_panel4D, BorderLayout.SOUTH);
-					} else {
-						m_panel4D.setVisible(false);
-					}
-					
-					m_rootPanel.updateUI();
+			LoadResult result = null;
+			try {
+				result = get();
+			} catch (final ExecutionException e) {
+				WaitingIndicatorUtils.setWaiting(m_rootPanel, false);
+				if (e.getCause() instanceof OutOfMemoryError) {
+					showError(m_rootPanel, new String[] {
+							"Not enough memory to display the image.",
+							"Lower the memory budget with the system property "
+									+ MemoryBudget.BUDGET_PROPERTY + "." },
+							true);
+				} else {
+					showError(m_rootPanel, new String[] {
+							"error adding picture to universe:",
+							e.getCause().getClass().getSimpleName() }, true);
 				}
-			};
+				return;
+			} catch (final Exception e) {
+				WaitingIndicatorUtils.setWaiting(m_rootPanel, false);
+				m_logger.error("ImageJ 3D Viewer: the image could not be"
+						+ " displayed", e);
+				return;
+			}
 
-			worker.execute();
+			display(result, m_value, m_frame, true);
 		}
 	}
 
+	/**
+	 * Replaces the displayed content with a loaded one. Must be called on the
+	 * EDT.
+	 * 
+	 * @param complete
+	 *            false if the content is a preview of the timepoint
+	 */
+	private void display(final LoadResult result, final DataValue value,
+			final int frame, final boolean complete) {
+
+		final boolean newValue = !ImageFingerprint.sameImage(value, m_dataValue);
+		m_dataValue = value;
+		m_displayedFrame = frame;
+		m_displayComplete = complete;
+		m_displayType = result.m_type;
+		m_displayedType = result.m_type;
+		m_surfaceThreshold = result.m_threshold;
+		m_displayedThreshold = result.m_threshold;
+		discardCoarse();
+
+		// Error happend during rendering
+		if (result.m_error != null) {
+			if (m_universe != null) {
+				m_universe.removeAllContents();
+			}
+			m_ijImagePlus = null;
+			retain(null, null);
+			m_c = null;
+			m_frameSlider.setVisible(false);
+			m_statusLabel.setText("");
+			showError(m_rootPanel, result.m_error, true);
+			updateMenus();
+			return;
+		}
+
+		m_ijImagePlus = result.m_imp;
+		retain(result.m_imp == null ? null : result.m_fingerprint,
+				result.m_imp);
+		if (result.m_stats != null) {
+			m_statistics = result.m_stats;
+			m_statisticsValue = value;
+		}
+
+		if (m_software != null) {
+			m_software.setRenderer(result.m_renderer);
+		} else {
+			// New image arrives, another timepoint or resolution keeps the
+			// attributes
+			final Content previous = m_c;
+			if (!newValue && previous != null) {
+				copyAttributes(previous, result.m_content);
+			}
+			cancelReading();
+			m_universe.removeAllContents(); // cleanup universe
+			if (newValue) {
+				m_universe.resetView();
+			}
+			m_c = m_universe.addContent(result.m_content);
+
+			if (complete) {
+				m_representations.put(representationKey(
+						result.m_fingerprint, frame, result.m_type,
+						result.m_threshold), result.representation(),
+						representationWeight(result));
+				buildCoarse(result, frame);
+			}
+		}
+
+		if (newValue && m_refiner != null) {
+			m_refiner.m_ticket.cancel();
+			m_refiner = null;
+		}
+		if (complete && result.m_imp != null && result.m_stats != null
+				&& !result.m_stats.isComplete()) {
+			refineStatistics(value, result.m_fingerprint, result.m_imp);
+		}
+
+		WaitingIndicatorUtils.setWaiting(m_rootPanel, false);
+
+		// enables the time slider if picture has 4 or 5 Dimensions
+		final int frames = result.m_frames;
+		m_frameSlider.setFrames(frames, frame);
+		m_frameSlider.setVisible(frames > 1);
+
+		if (!complete) {
+			m_statusLabel.setText("Preview 1/" + result.m_factor + " ");
+		} else if (result.m_factor > 1) {
+			m_statusLabel.setText("Downsampled 1/" + result.m_factor
+					+ " to fit memory ");
+		} else {
+			m_statusLabel.setText("");
+		}
+
+		updateMenus();
+		m_rootPanel.updateUI();
+	}
+
+	// the menus check the displayed mode, which is only known once the
+	// load is done
+	private void updateMenus() {
+		if (m_menubar != null) {
+			m_menubar.updateMenus();
+		}
+	}
+
+	/**
+	 * Retains the converted image of the displayed content in the shared
+	 * cache, so other views of the same image use it, and releases the one
+	 * displayed before.
+	 */
+	private void retain(final ImageFingerprint fingerprint,
+			final ImagePlus imp) {
+		if (fingerprint == null ? m_retained == null : fingerprint
+				.equals(m_retained)) {
+			return;
+		}
+		final ImagePlusCache cache = ImagePlusCache.getInstance();
+		if (m_retained != null) {
+			cache.release(m_retained);
+		}
+		if (fingerprint != null) {
+			cache.retain(fingerprint, imp);
+		}
+		m_retained = fingerprint;
+	}
+
+	/**
+	 * Sweeps the timepoints of the displayed image which have not been
+	 * swept, unless that is already under way.
+	 */
+	private void refineStatistics(final DataValue value,
+			final ImageFingerprint fingerprint, final ImagePlus imp) {
+		if (m_refiner != null) {
+			if (m_refiner.m_imp == imp) {
+				return;
+			}
+			m_refiner.m_ticket.cancel();
+		}
+		m_refiner = new StatisticsRefiner(value, fingerprint, imp);
+		m_refiner.execute();
+	}
+
+	/**
+	 * Completes the statistics of a converted image in the background. If
+	 * the range of the image turns out wider than the one of the timepoints
+	 * swept so far, everything built from the image is discarded and the
+	 * displayed timepoint is loaded again.
+	 */
+	private final class StatisticsRefiner extends SwingWorker<Boolean, Void> {
+
+		private final DataValue m_value;
+
+		private final ImageFingerprint m_fingerprint;
+
+		private final ImagePlus m_imp;
+
+		private final LoadTicket m_ticket = new LoadTicket();
+
+		StatisticsRefiner(final DataValue value,
+				final ImageFingerprint fingerprint, final ImagePlus imp) {
+			m_value = value;
+			m_fingerprint = fingerprint;
+			m_imp = imp;
+		}
+
+		@Override
+		protected Boolean doInBackground() throws Exception {
+			return ((LazyPlaneStack<?>) m_imp.getStack())
+					.refineStatistics(m_ticket);
+		}
+
+		@Override
+		protected void done() {
+			if (m_refiner == this) {
+				m_refiner = null;
+			}
+			if (m_ticket.isCancelled()) {
+				return;
+			}
+			final boolean changed;
+			try {
+				changed = get();
+			} catch (final ExecutionException e) {
+				m_logger.warn("ImageJ 3D Viewer: the value range of the"
+						+ " image could not be computed", e.getCause());
+				return;
+			} catch (final InterruptedException e) {
+				return;
+			}
+			if (!ImageFingerprint.sameImage(m_value, m_dataValue)) {
+				return;
+			}
+			m_statistics = ((LazyPlaneStack<?>) m_imp.getStack())
+					.getStatistics();
+			m_statisticsValue = m_value;
+			if (changed) {
+				// surfaces and thresholds refer to the former range
+				m_representations.clear();
+				MeshCache.getInstance().removeImage(m_fingerprint);
+				m_surfaceThreshold = AUTO_THRESHOLD;
+				m_displayComplete = false;
+				load(m_dataValue, m_displayedFrame);
+			}
+		}
+	}
+
+	private static RepresentationCache.Key representationKey(
+			final ImageFingerprint fingerprint, final int frame,
+			final int type, final int threshold) {
+		return new RepresentationCache.Key(fingerprint, frame, type,
+				ContentBuilder.isExtracted(type) ? threshold : AUTO_THRESHOLD);
+	}
+
+	/**
+	 * @return the estimated number of bytes a loaded content holds
+	 */
+	private long representationWeight(final LoadResult result) {
+		final Object node = result.m_content.getContent();
+		if (node instanceof LodMeshNode) {
+			return ((LodMeshNode) node).getPointCount() * 32;
+		} else if (node instanceof PointCloudNode) {
+			return (long) ((PointCloudNode) node).getPointCount()
+					* PointCloudNode.POINT_BYTES;
+		} else if (node instanceof OrthoSliceNode) {
+			return ((OrthoSliceNode) node).getTextureBytes();
+		} else if (result.m_imp == null) {
+			return 0;
+		}
+		final ImagePlus imp = result.m_imp;
+		final int f = result.m_factor;
+		return MemoryBudget.estimate(Math.max(1, imp.getWidth() / f),
+				Math.max(1, imp.getHeight() / f),
+				Math.max(1, imp.getNSlices() / f), imp.getNChannels(),
+				result.m_type);
+	}
+
+	/**
+	 * Stops reading ahead the slices of the displayed orthoslices, or
+	 * uploading the bricks of a bricked volume.
+	 */
+	private void cancelReading() {
+		if (m_c == null) {
+			return;
+		}
+		if (m_c.getContent() instanceof OrthoSliceNode) {
+			((OrthoSliceNode) m_c.getContent()).cancel();
+		} else if (m_c.getContent() instanceof BrickedVolumeNode) {
+			((BrickedVolumeNode) m_c.getContent()).cancel();
+		}
+	}
+
+	/**
+	 * Transfers the display attributes the user may have changed.
+	 */
+	private static void copyAttributes(final Content from, final Content to) {
+		to.setColor(from.getColor());
+		to.setTransparency(from.getTransparency());
+		if (to.getThreshold() != from.getThreshold()) {
+			to.setThreshold(from.getThreshold());
+		}
+		to.setLocked(from.isLocked());
+		to.showCoordinateSystem(from.hasCoord());
+	}
+
+	/**
+	 * Checks if an image can be displayed by the viewer.
+	 * 
+	 * @param in
+	 *            the image
+	 * @return the lines of the error message, or null if the image is fine
+	 */
+	static String[] validate(final ImgPlus<?> in) {
+		// abort if input image has to few dimensions.
+		if (in.numDimensions() < 3) {
+			return new String[] {
+					"Only images with a minimum of three dimensions",
+					" are supported by the ImageJ 3D Viewer." };
+		}
+
+		// abort if input image has to many dimensions.
+		if (in.numDimensions() > 5) {
+			return new String[] { "Only images with up to five dimensions",
+					"are supported by the 3D Viewer." };
+		}
+
+		// abort if unsuported type
+		if (in.firstElement() instanceof DoubleType) {
+			return new String[] {
+					"DoubleType images are not supported!",
+					" You have to convert your image to e.g. ByteType using the converter." };
+		}
+
+		// validate if mapping can be inferred automatically
+		if (!ImgToIJ.validateMapping(in)) {
+			return new String[] { "Warning: The input image contains unknown dimensions. Currently we only support 'X','Y','Channel,'Z' and 'Time'!" };
+		}
+		return null;
+	}
+
 	private class ImageJ3DErrorIndicator extends WaitIndicator {
 
 		private String[] m_errorText = { "Error" };
@@ -452,17 +1423,40 @@ public class ImageJ3DTableCellView<T extends RealType<T>> implements
 	@Override
 	public final void onClose() {
 
+		m_prefetcher.cancel();
+		m_player.stop();
+		cancelReading();
+		discardCoarse();
+		if (m_refiner != null) {
+			m_refiner.m_ticket.cancel();
+			m_refiner = null;
+		}
+		m_representations.clear();
+		if (m_loader != null) {
+			m_loader.m_ticket.cancel();
+			m_loader = null;
+		}
+		m_pending = null;
+
 		if (m_universe != null)
 			m_universe.cleanup();
+		if (m_software != null) {
+			m_software.cancel();
+		}
 
 		m_dataValue = null;
+		m_displayComplete = false;
+		retain(null, null);
 		m_ijImagePlus = null;
+		m_statistics = null;
+		m_statisticsValue = null;
 		m_c = null;
-		m_panel4D = null;
+		m_frameSlider = null;
+		m_statusLabel = null;
 		m_universe = null;
-		m_timeline = null;
-		m_timelineGUI = null;
-		m_logger = null;
+		m_universePanel = null;
+		m_menubar = null;
+		m_software = null;
 	}
 
 	@Override
@@ -0,0 +1,451 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ij.ImagePlus;
+
+/**
+ * Least recently used cache of converted images, shared by all viewers. The
+ * cache is bounded by the number of bytes the cached stacks hold, which for
+ * lazily converted stacks are the planes converted so far; entries are
+ * only softly referenced and are dropped early when the heap runs low.
+ * <p>
+ * Images displayed by a viewer are retained: they are strongly referenced
+ * and never evicted until the last viewer has released them, so further
+ * viewers of the same cell share them instead of converting their own copy.
+ * An image is converted only once, also when several viewers request it at
+ * the same time.
+ * <p>
+ * The size defaults to a quarter of the maximum heap and can be set in MB
+ * with the system property {@value #SIZE_PROPERTY}. The converted planes of
+ * the images are held by their plane caches, which share the cache budget of
+ * {@link MemoryBudget}; while it is exceeded, images which are not retained
+ * are evicted and their planes dropped.
+ */
+final class ImagePlusCache {
+
+	/** System property for the cache size in MB. */
+	static final String SIZE_PROPERTY = "knip.imagej3d.cache.size";
+
+	// the heap is considered low below this fraction of free memory
+	private static final double MIN_FREE_HEAP = 0.2;
+
+	private static final ImagePlusCache INSTANCE = new ImagePlusCache(
+			Long.getLong(SIZE_PROPERTY, Runtime.getRuntime().maxMemory()
+					/ (4 << 20)) << 20);
+
+	private final LinkedHashMap<Object, Entry> m_entries = new LinkedHashMap<Object, Entry>(
+			16, 0.75f, true);
+
+	// conversions in progress
+	private final Map<Object, FutureTask<ImagePlus>> m_converting = new HashMap<Object, FutureTask<ImagePlus>>();
+
+	private final long m_capacity;
+
+	private long m_hits;
+
+	private long m_misses;
+
+	private long m_evictions;
+
+	private ImagePlusCache(final long capacity) {
+		m_capacity = capacity;
+	}
+
+	/**
+	 * @return the cache shared by all viewers
+	 */
+	static ImagePlusCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param key
+	 *            the key of the image, e.g. its {@link ImageFingerprint}
+	 * @return the cached image or null
+	 */
+	synchronized ImagePlus get(final Object key) {
+		final Entry e = m_entries.get(key);
+		final ImagePlus imp = e == null ? null : e.m_image.get();
+		if (imp == null) {
+			if (e != null) {
+				// collected by the garbage collector
+				remove(key);
+			}
+			m_misses++;
+			return null;
+		}
+		m_hits++;
+		return imp;
+	}
+
+	/**
+	 * Returns the statistics a cached image was converted with, so images
+	 * read without converting them are normalised alike. Does not count as a
+	 * lookup.
+	 * 
+	 * @param key
+	 *            the key of the image
+	 * @return the statistics, or null if the image is not cached or was not
+	 *         normalised
+	 */
+	synchronized VolumeStatistics getStatistics(final Object key) {
+		final Entry e = m_entries.get(key);
+		final ImagePlus imp = e == null ? null : e.m_image.get();
+		if (imp == null || !(imp.getStack() instanceof LazyPlaneStack)) {
+			return null;
+		}
+		return ((LazyPlaneStack<?>) imp.getStack()).getStatistics();
+	}
+
+	/**
+	 * Returns the cached image or converts it. If the image is being
+	 * converted for another viewer, waits for that conversion; if that one is
+	 * cancelled, converts it again.
+	 * 
+	 * @param key
+	 *            the key of the image
+	 * @param converter
+	 *            converts the image
+	 * @param ticket
+	 *            cancels waiting for the image
+	 * @return the image, which is cached
+	 * @throws Exception
+	 *             if the conversion failed
+	 */
+	ImagePlus getOrConvert(final Object key,
+			final Callable<ImagePlus> converter, final LoadTicket ticket)
+			throws Exception {
+		while (true) {
+			final FutureTask<ImagePlus> task;
+			boolean owner = false;
+			synchronized (this) {
+				final Entry e = m_entries.get(key);
+				final ImagePlus imp = e == null ? null : e.m_image.get();
+				if (imp != null) {
+					m_hits++;
+					return imp;
+				}
+				FutureTask<ImagePlus> running = m_converting.get(key);
+				if (running == null) {
+					running = new FutureTask<ImagePlus>(converter);
+					m_converting.put(key, running);
+					owner = true;
+					m_misses++;
+				} else {
+					// converted for another viewer, not again
+					m_hits++;
+				}
+				task = running;
+			}
+
+			if (owner) {
+				try {
+					task.run();
+				} finally {
+					synchronized (this) {
+						m_converting.remove(key);
+					}
+				}
+			}
+			try {
+				// the own conversion has finished already
+				final ImagePlus imp = owner ? task.get() : await(task, ticket);
+				if (owner) {
+					put(key, imp);
+				}
+				return imp;
+			} catch (final ExecutionException e) {
+				if (owner || !(e.getCause() instanceof CancellationException)) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw (Error) e.getCause();
+				}
+				// the other viewer gave up, try again
+			}
+		}
+	}
+
+	private static ImagePlus await(final FutureTask<ImagePlus> task,
+			final LoadTicket ticket) throws InterruptedException,
+			ExecutionException {
+		while (true) {
+			ticket.checkCancelled();
+			try {
+				return task.get(100, TimeUnit.MILLISECONDS);
+			} catch (final TimeoutException e) {
+				// check the ticket again
+			}
+		}
+	}
+
+	/**
+	 * Retains an image displayed by a viewer, adding it again if it has been
+	 * evicted meanwhile. Must be balanced by {@link #release(Object)}.
+	 * 
+	 * @param key
+	 *            the key of the image
+	 * @param imp
+	 *            the image
+	 */
+	void retain(final Object key, final ImagePlus imp) {
+		final List<ImagePlus> evicted;
+		synchronized (this) {
+			Entry e = m_entries.get(key);
+			if (e == null || e.m_image.get() != imp) {
+				remove(key);
+				e = new Entry(imp);
+				m_entries.put(key, e);
+			}
+			e.m_refs++;
+			e.m_retained = imp;
+			evicted = evict();
+		}
+		dropPlanes(evicted);
+	}
+
+	/**
+	 * Releases an image retained before. The image is kept like any other
+	 * cached one once all viewers have released it.
+	 * 
+	 * @param key
+	 *            the key of the image
+	 */
+	void release(final Object key) {
+		final List<ImagePlus> evicted;
+		synchronized (this) {
+			final Entry e = m_entries.get(key);
+			if (e == null || e.m_refs == 0 || --e.m_refs > 0) {
+				return;
+			}
+			e.m_retained = null;
+			evicted = evict();
+		}
+		dropPlanes(evicted);
+	}
+
+	/**
+	 * Adds an image, evicting the least recently used ones if the cache is
+	 * full or the heap runs low. Images larger than the cache are not added.
+	 * 
+	 * @param key
+	 *            the key of the image
+	 * @param imp
+	 *            the image
+	 */
+	void put(final Object key, final ImagePlus imp) {
+		final List<ImagePlus> evicted;
+		synchronized (this) {
+			final Entry old = m_entries.get(key);
+			if (old != null && old.m_refs > 0) {
+				// retained by a viewer
+				return;
+			}
+			remove(key);
+			if (weight(imp) > m_capacity) {
+				return;
+			}
+			m_entries.put(key, new Entry(imp));
+			evicted = evict();
+		}
+		dropPlanes(evicted);
+	}
+
+	/**
+	 * @param key
+	 *            the key of the image to remove
+	 */
+	synchronized void remove(final Object key) {
+		m_entries.remove(key);
+	}
+
+	/**
+	 * Removes all entries which are not retained by a viewer.
+	 */
+	synchronized void clear() {
+		final Iterator<Entry> it = m_entries.values().iterator();
+		while (it.hasNext()) {
+			final Entry e = it.next();
+			if (e.m_refs == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	// returns the evicted images, whose planes are dropped after leaving the
+	// monitor of this cache
+	private List<ImagePlus> evict() {
+		// when the heap runs low, shrink to half of the capacity
+		final long target = isHeapLow() ? m_capacity / 2 : m_capacity;
+		long size = getSize();
+		final List<ImagePlus> evicted = new ArrayList<ImagePlus>();
+		// the bytes by which the caches exceed the shared budget, reduced by
+		// the planes which will be dropped
+		long excess = MemoryBudget.getCachedBytes()
+				- MemoryBudget.getCacheBudget();
+		final Iterator<Entry> it = m_entries.values().iterator();
+		// the most recently used entry comes last and is never evicted
+		for (int n = m_entries.size(); n > 1 && it.hasNext(); n--) {
+			final Entry e = it.next();
+			if (e.m_refs > 0) {
+				continue;
+			}
+			final ImagePlus imp = e.m_image.get();
+			if (imp == null || size > target || excess > 0) {
+				it.remove();
+				if (imp != null) {
+					size -= weight(imp);
+					evicted.add(imp);
+					excess -= cachedBytes(imp);
+					m_evictions++;
+				}
+			}
+		}
+		return evicted;
+	}
+
+	private static long cachedBytes(final ImagePlus imp) {
+		if (imp.getStack() instanceof LazyPlaneStack) {
+			return ((LazyPlaneStack<?>) imp.getStack()).getCachedBytes();
+		}
+		return 0;
+	}
+
+	// the planes count against the cache budget until the image is collected
+	private static void dropPlanes(final List<ImagePlus> evicted) {
+		for (final ImagePlus imp : evicted) {
+			if (imp.getStack() instanceof LazyPlaneStack) {
+				((LazyPlaneStack<?>) imp.getStack()).dropPlanes();
+			}
+		}
+	}
+
+	private static boolean isHeapLow() {
+		final Runtime rt = Runtime.getRuntime();
+		final long used = rt.totalMemory() - rt.freeMemory();
+		return rt.maxMemory() - used < MIN_FREE_HEAP * rt.maxMemory();
+	}
+
+	/**
+	 * @return the number of bytes of the pixels of the image; for lazily
+	 *         converted images the bytes their plane cache holds now
+	 */
+	static long weight(final ImagePlus imp) {
+		if (imp.getStack() instanceof LazyPlaneStack) {
+			return ((LazyPlaneStack<?>) imp.getStack()).getCachedBytes();
+		}
+		return (long) imp.getWidth() * imp.getHeight() * imp.getStackSize()
+				* (imp.getBitDepth() / 8);
+	}
+
+	/**
+	 * @return number of lookups which found an image
+	 */
+	synchronized long getHits() {
+		return m_hits;
+	}
+
+	/**
+	 * @return number of lookups which found no image
+	 */
+	synchronized long getMisses() {
+		return m_misses;
+	}
+
+	/**
+	 * @return number of images evicted because of the size bound or low heap
+	 */
+	synchronized long getEvictions() {
+		return m_evictions;
+	}
+
+	/**
+	 * @return the number of bytes currently held
+	 */
+	synchronized long getSize() {
+		long size = 0;
+		for (final Entry e : m_entries.values()) {
+			final ImagePlus imp = e.m_image.get();
+			if (imp != null) {
+				size += weight(imp);
+			}
+		}
+		return size;
+	}
+
+	private static final class Entry {
+
+		private final SoftReference<ImagePlus> m_image;
+
+		// the number of viewers retaining the image
+		private int m_refs;
+
+		// strong reference while retained
+		private ImagePlus m_retained;
+
+		Entry(final ImagePlus imp) {
+			m_image = new SoftReference<ImagePlus>(imp);
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * 8-bit {@link VirtualStack} which converts the planes of the source image
+ * the first time they are requested. Converted planes are kept in a bounded
+ * least recently used plane cache, which a stack shares with the stacks of
+ * its frames. The {@link BrickIndex} of a frame is kept with the plane
+ * cache, so it is built once for as long as the image is.
+ * <p>
+ * Statistics computed for some timepoints only can be refined to the whole
+ * image; if that widens the range, the converted planes and brick indices
+ * are dropped and converted again on demand.
+ * <p>
+ * The cache holds at least one frame and otherwise up to an eighth of the
+ * maximum heap. Beyond one frame, it also evicts while the caches of the
+ * viewer hold more than the cache budget of {@link MemoryBudget}.
+ * <p>
+ * The stack is a read-only view of the source image: slices can't be added
+ * or deleted.
+ * 
+ * @param <T>
+ */
+final class LazyPlaneStack<T extends RealType<T>> extends VirtualStack {
+
+	private static final String READ_ONLY = "The stack is a read-only view of the source image";
+
+	private final SourcePlanes<T> m_src;
+
+	// holds the statistics the planes are normalised with
+	private final PlaneCache m_cache;
+
+	// the planes of the source this stack consists of
+	private final int m_first;
+
+	private final int m_size;
+
+	private LazyPlaneStack(final SourcePlanes<T> src, final PlaneCache cache,
+			final int first, final int size) {
+		super(src.getWidth(), src.getHeight(), null, null);
+		m_src = src;
+		m_cache = cache;
+		m_first = first;
+		m_size = size;
+	}
+
+	/**
+	 * Creates an image of all planes of the source; nothing is converted yet.
+	 * 
+	 * @param src
+	 *            the source planes
+	 * @param stats
+	 *            the statistics of the source, null if it can be wrapped
+	 * @return the image
+	 * @see ByteStackConverter#canWrap(SourcePlanes, VolumeStatistics)
+	 */
+	static <T extends RealType<T>> ImagePlus create(
+			final SourcePlanes<T> src, final VolumeStatistics stats) {
+		final long planeBytes = (long) src.getWidth() * src.getHeight();
+		final int frame = src.getChannels() * src.getSlices();
+		final int capacity = (int) Math.min(src.getPlaneCount(), Math.max(
+				frame, Runtime.getRuntime().maxMemory() / 8 / planeBytes));
+		// planes wrapped from the storage of the source take no memory
+		final PlaneCache cache = new PlaneCache(capacity, frame,
+				stats == null ? 0 : planeBytes, stats);
+		return ByteStackConverter.toImagePlus(src, new LazyPlaneStack<T>(src,
+				cache, 0, src.getPlaneCount()), src.getFrames());
+	}
+
+	/**
+	 * @param imp
+	 *            an image created by {@link #create}
+	 * @param t
+	 *            the frame, zero based
+	 * @return an image of the planes of one frame, sharing the plane cache
+	 */
+	static ImagePlus frame(final ImagePlus imp, final int t) {
+		final LazyPlaneStack<?> stack = (LazyPlaneStack<?>) imp.getStack();
+		return stack.frame(t);
+	}
+
+	private ImagePlus frame(final int t) {
+		final int size = m_src.getChannels() * m_src.getSlices();
+		return ByteStackConverter.toImagePlus(m_src, new LazyPlaneStack<T>(
+				m_src, m_cache, m_first + t * size, size), 1);
+	}
+
+	/**
+	 * Converts all planes of this stack which are not cached, in parallel.
+	 * 
+	 * @param ticket
+	 *            checked before each block of work
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the ticket is cancelled during the conversion
+	 */
+	void preload(final LoadTicket ticket) {
+		final VolumeStatistics stats = m_cache.m_stats;
+		int from = m_first;
+		final int end = m_first + m_size;
+		// convert runs of missing planes at once
+		while (from < end) {
+			while (from < end && m_cache.get(from) != null) {
+				from++;
+			}
+			int to = from;
+			while (to < end && m_cache.get(to) == null) {
+				to++;
+			}
+			if (from < to) {
+				final byte[][] planes = ByteStackConverter.convertPlanes(
+						m_src, stats, from, to, ticket);
+				for (int p = from; p < to; p++) {
+					m_cache.put(p, planes[p - from], stats);
+				}
+			}
+			from = to;
+		}
+	}
+
+	/**
+	 * @return the statistics the planes are normalised with, or null if they
+	 *         are used as they are
+	 */
+	VolumeStatistics getStatistics() {
+		return m_cache.m_stats;
+	}
+
+	/**
+	 * Completes statistics which were computed for some of the planes only.
+	 * 
+	 * @param ticket
+	 *            checked before each block of work
+	 * @return true if the range of the image changed, so that planes
+	 *         converted before are outdated
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the ticket is cancelled during the computation
+	 */
+	boolean refineStatistics(final LoadTicket ticket) {
+		final VolumeStatistics stats = m_cache.m_stats;
+		if (stats == null || stats.isComplete()) {
+			return false;
+		}
+		return m_cache.setStatistics(stats.refine(m_src, ticket));
+	}
+
+	/**
+	 * @return the brick index of the planes of this stack, or null if it has
+	 *         not been built
+	 */
+	BrickIndex getBrickIndex() {
+		synchronized (m_cache.m_indices) {
+			return m_cache.m_indices.get(indexKey());
+		}
+	}
+
+	/**
+	 * Keeps the brick index of the planes of this stack, unless the
+	 * statistics it was built with have been replaced meanwhile.
+	 * 
+	 * @param index
+	 *            the brick index of the planes of this stack
+	 * @param stats
+	 *            the statistics when building the index started, see
+	 *            {@link #getStatistics()}
+	 */
+	void setBrickIndex(final BrickIndex index, final VolumeStatistics stats) {
+		// the statistics are replaced and the indices dropped under the
+		// monitor of the plane cache
+		synchronized (m_cache) {
+			if (stats != m_cache.m_stats) {
+				return;
+			}
+			synchronized (m_cache.m_indices) {
+				m_cache.m_indices.put(indexKey(), index);
+			}
+		}
+	}
+
+	private long indexKey() {
+		return (long) m_first << 32 | m_size;
+	}
+
+	/**
+	 * Drops the converted planes, e.g. when the image is evicted from a
+	 * cache but may still be referenced.
+	 */
+	void dropPlanes() {
+		m_cache.clear();
+	}
+
+	/**
+	 * @return the number of bytes the plane cache holds
+	 */
+	long getCachedBytes() {
+		return m_cache.m_account.getBytes();
+	}
+
+	@Override
+	public int getSize() {
+		return m_size;
+	}
+
+	@Override
+	public Object getPixels(final int n) {
+		final int plane = m_first + n - 1;
+		byte[] pixels = m_cache.get(plane);
+		if (pixels == null) {
+			final VolumeStatistics stats = m_cache.m_stats;
+			pixels = ByteStackConverter.convertPlanes(m_src, stats, plane,
+					plane + 1, LoadTicket.NONE)[0];
+			m_cache.put(plane, pixels, stats);
+		}
+		return pixels;
+	}
+
+	@Override
+	public void setPixels(final Object pixels, final int n) {
+		m_cache.put(m_first + n - 1, (byte[]) pixels);
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		return new ByteProcessor(getWidth(), getHeight(),
+				(byte[]) getPixels(n), null);
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return null;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 8;
+	}
+
+	/**
+	 * Not supported, the stack is a read-only view of the source image.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	@Override
+	public void addSlice(final String name) {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	/**
+	 * Not supported, the stack is a read-only view of the source image.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	@Override
+	public void deleteSlice(final int n) {
+		throw new UnsupportedOperationException(READ_ONLY);
+	}
+
+	@SuppressWarnings("serial")
+	private static final class PlaneCache extends
+			LinkedHashMap<Integer, byte[]> {
+
+		private final int m_capacity;
+
+		// the planes kept regardless of the cache budget
+		private final int m_minimum;
+
+		// the bytes of a plane, 0 if planes are not copied
+		private final long m_planeBytes;
+
+		private final MemoryBudget.Account m_account = MemoryBudget
+				.account(this);
+
+		// the brick indices of the stacks sharing the cache, by their
+		// first plane and size
+		private final Map<Long, BrickIndex> m_indices = new HashMap<Long, BrickIndex>();
+
+		// null if the planes are taken from the storage of an 8-bit source
+		private volatile VolumeStatistics m_stats;
+
+		PlaneCache(final int capacity, final int minimum,
+				final long planeBytes, final VolumeStatistics stats) {
+			super(16, 0.75f, true);
+			m_capacity = capacity;
+			m_minimum = minimum;
+			m_planeBytes = planeBytes;
+			m_stats = stats;
+		}
+
+		/**
+		 * Adds a plane unless the statistics it was converted with have been
+		 * replaced meanwhile.
+		 */
+		synchronized void put(final int plane, final byte[] pixels,
+				final VolumeStatistics stats) {
+			if (stats == m_stats) {
+				put(plane, pixels);
+			}
+		}
+
+		/**
+		 * @return true if the range changed and the planes were dropped
+		 */
+		synchronized boolean setStatistics(final VolumeStatistics stats) {
+			final boolean changed = !stats.hasRangeOf(m_stats);
+			m_stats = stats;
+			if (changed) {
+				clear();
+				synchronized (m_indices) {
+					m_indices.clear();
+				}
+			}
+			return changed;
+		}
+
+		@Override
+		public synchronized byte[] get(final Object key) {
+			return super.get(key);
+		}
+
+		@Override
+		public synchronized byte[] put(final Integer key, final byte[] value) {
+			final byte[] old = super.put(key, value);
+			m_account.set(size() * m_planeBytes);
+			return old;
+		}
+
+		@Override
+		public synchronized void clear() {
+			super.clear();
+			m_account.set(0);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<Integer, byte[]> eldest) {
+			return size() > m_capacity || size() > m_minimum
+					&& m_planeBytes > 0 && MemoryBudget.isCacheFull();
+		}
+	}
+}
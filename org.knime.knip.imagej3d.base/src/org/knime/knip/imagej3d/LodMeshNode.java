@@ -0,0 +1,248 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.j3d.Switch;
+import javax.media.j3d.View;
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+import javax.vecmath.Tuple3d;
+
+import customnode.CustomMesh;
+import customnode.CustomTriangleMesh;
+import ij3d.Content;
+import ij3d.ContentNode;
+
+/**
+ * Displays one of several levels of detail of a surface. The coarsest level
+ * is shown while the scene is moved, the finest otherwise.
+ */
+final class LodMeshNode extends ContentNode {
+
+	private final List<CustomMesh> m_meshes = new ArrayList<CustomMesh>();
+
+	private final Switch m_switch = new Switch(0);
+
+	private final Color3f m_defaultColor;
+
+	// bounds and volume of the finest level
+	private final float[] m_min = { Float.MAX_VALUE, Float.MAX_VALUE,
+			Float.MAX_VALUE };
+
+	private final float[] m_max = { -Float.MAX_VALUE, -Float.MAX_VALUE,
+			-Float.MAX_VALUE };
+
+	private final float m_volume;
+
+	/**
+	 * @param levels
+	 *            the triangles of the levels, finest first
+	 * @param color
+	 *            the default color
+	 */
+	LodMeshNode(final List<List<Point3f>> levels, final Color3f color) {
+		m_defaultColor = color;
+		m_switch.setCapability(Switch.ALLOW_SWITCH_WRITE);
+		for (final List<Point3f> level : levels) {
+			final CustomMesh mesh = new CustomTriangleMesh(level, color, 0);
+			m_meshes.add(mesh);
+			m_switch.addChild(mesh);
+		}
+		addChild(m_switch);
+
+		final List<Point3f> finest = levels.get(0);
+		double volume = 0;
+		for (int i = 0; i < finest.size(); i++) {
+			final Point3f p = finest.get(i);
+			m_min[0] = Math.min(m_min[0], p.x);
+			m_min[1] = Math.min(m_min[1], p.y);
+			m_min[2] = Math.min(m_min[2], p.z);
+			m_max[0] = Math.max(m_max[0], p.x);
+			m_max[1] = Math.max(m_max[1], p.y);
+			m_max[2] = Math.max(m_max[2], p.z);
+			// signed volumes of the tetrahedra to the origin
+			if (i % 3 == 0 && i + 2 < finest.size()) {
+				final Point3f b = finest.get(i + 1);
+				final Point3f c = finest.get(i + 2);
+				volume += (p.x * (b.y * c.z - b.z * c.y) + p.y
+						* (b.z * c.x - b.x * c.z) + p.z
+						* (b.x * c.y - b.y * c.x)) / 6;
+			}
+		}
+		m_volume = (float) Math.abs(volume);
+	}
+
+	/**
+	 * Creates a content displaying the levels of a surface.
+	 * 
+	 * @param name
+	 *            the name of the content
+	 * @param levels
+	 *            the triangles of the levels, finest first
+	 * @param color
+	 *            the default color
+	 * @return the content
+	 */
+	static Content createContent(final String name,
+			final List<List<Point3f>> levels, final Color3f color) {
+		final Content content = new Content(name);
+		content.display(new LodMeshNode(levels, color));
+		return content;
+	}
+
+	/**
+	 * @return the number of points of all levels
+	 */
+	long getPointCount() {
+		long points = 0;
+		for (final CustomMesh mesh : m_meshes) {
+			points += mesh.getMesh().size();
+		}
+		return points;
+	}
+
+	/**
+	 * @return the number of levels
+	 */
+	int getLevels() {
+		return m_meshes.size();
+	}
+
+	/**
+	 * @param level
+	 *            the level to show, 0 for the finest
+	 */
+	void setLevel(final int level) {
+		final int l = Math.max(0, Math.min(level, m_meshes.size() - 1));
+		if (m_switch.getWhichChild() != l) {
+			m_switch.setWhichChild(l);
+		}
+	}
+
+	@Override
+	public void getMin(final Tuple3d min) {
+		min.set(m_min[0], m_min[1], m_min[2]);
+	}
+
+	@Override
+	public void getMax(final Tuple3d max) {
+		max.set(m_max[0], m_max[1], m_max[2]);
+	}
+
+	@Override
+	public void getCenter(final Tuple3d center) {
+		center.set((m_min[0] + m_max[0]) / 2, (m_min[1] + m_max[1]) / 2,
+				(m_min[2] + m_max[2]) / 2);
+	}
+
+	@Override
+	public void channelsUpdated(final boolean[] channels) {
+		// surfaces combine the channels
+	}
+
+	@Override
+	public void lutUpdated(final int[] r, final int[] g, final int[] b,
+			final int[] a) {
+		// surfaces have a single color
+	}
+
+	@Override
+	public void thresholdUpdated(final int threshold) {
+		// the view extracts the surface of another threshold
+	}
+
+	@Override
+	public void colorUpdated(final Color3f color) {
+		for (final CustomMesh mesh : m_meshes) {
+			mesh.setColor(color == null ? m_defaultColor : color);
+		}
+	}
+
+	@Override
+	public void transparencyUpdated(final float transparency) {
+		for (final CustomMesh mesh : m_meshes) {
+			mesh.setTransparency(transparency);
+		}
+	}
+
+	@Override
+	public void shadeUpdated(final boolean shaded) {
+		for (final CustomMesh mesh : m_meshes) {
+			mesh.setShaded(shaded);
+		}
+	}
+
+	@Override
+	public void eyePtChanged(final View view) {
+		// the level only depends on the interaction
+	}
+
+	@Override
+	public float getVolume() {
+		return m_volume;
+	}
+
+	@Override
+	public void restoreDisplayedData(final String path, final String name) {
+		// the meshes are kept in memory
+	}
+
+	@Override
+	public void swapDisplayedData(final String path, final String name) {
+		// the meshes are kept in memory
+	}
+
+	@Override
+	public void clearDisplayedData() {
+		// the meshes are kept in memory
+	}
+}
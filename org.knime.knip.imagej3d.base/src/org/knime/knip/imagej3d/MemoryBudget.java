@@ -0,0 +1,275 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+import ij3d.ContentConstants;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates the memory needed to display a timepoint and reduces its
+ * resolution if the estimate exceeds the budget.
+ * <p>
+ * The budget defaults to half of the heap which is not in use when the image
+ * is loaded, and can be set in MB with the system property
+ * {@value #BUDGET_PROPERTY}.
+ * <p>
+ * The caches of the viewer also share one cache budget on top of their own
+ * bounds. Each cache keeps an {@link Account} of the bytes it holds, and
+ * evicts while all caches together hold more than the budget. The total is
+ * kept as a running sum, so checking it takes no lock; the bytes of a cache
+ * which is collected without being cleared are returned with its account.
+ * The cache budget defaults to half of the maximum heap and can be set in MB
+ * with the system property {@value #CACHE_PROPERTY}.
+ */
+final class MemoryBudget {
+
+	/** System property for the memory budget in MB. */
+	static final String BUDGET_PROPERTY = "knip.imagej3d.memory.budget";
+
+	/** System property for the memory all caches may hold together in MB. */
+	static final String CACHE_PROPERTY = "knip.imagej3d.cache.budget";
+
+	private static final long CACHE_BUDGET = Long.getLong(CACHE_PROPERTY,
+			Runtime.getRuntime().maxMemory() / (2 << 20)) << 20;
+
+	// the bytes held by all caches
+	private static final AtomicLong CACHED = new AtomicLong();
+
+	// the accounts of collected caches
+	private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<Object>();
+
+	// keeps the accounts until their caches are collected
+	private static final Set<Account> ACCOUNTS = Collections
+			.newSetFromMap(new ConcurrentHashMap<Account, Boolean>());
+
+	// texture stacks built for volumes and orthoslices, one per axis
+	private static final int TEXTURE_STACKS = 3;
+
+	private MemoryBudget() {
+		// utility class
+	}
+
+	/**
+	 * Opens the account of a cache.
+	 * 
+	 * @param cache
+	 *            the cache; once it is collected, its bytes are returned
+	 * @return the account
+	 */
+	static Account account(final Object cache) {
+		expunge();
+		final Account account = new Account(cache);
+		ACCOUNTS.add(account);
+		return account;
+	}
+
+	/**
+	 * @return the number of bytes all caches may hold together
+	 */
+	static long getCacheBudget() {
+		return CACHE_BUDGET;
+	}
+
+	/**
+	 * @return the number of bytes all caches hold together
+	 */
+	static long getCachedBytes() {
+		expunge();
+		return CACHED.get();
+	}
+
+	/**
+	 * @return true if the caches hold more than the cache budget, so they
+	 *         should evict
+	 */
+	static boolean isCacheFull() {
+		return getCachedBytes() > CACHE_BUDGET;
+	}
+
+	private static void expunge() {
+		Reference<?> ref;
+		while ((ref = COLLECTED.poll()) != null) {
+			final Account account = (Account) ref;
+			ACCOUNTS.remove(account);
+			CACHED.addAndGet(-account.m_bytes.getAndSet(0));
+		}
+	}
+
+	/**
+	 * The bytes one cache holds, part of the running total of all caches.
+	 */
+	static final class Account extends WeakReference<Object> {
+
+		private final AtomicLong m_bytes = new AtomicLong();
+
+		private Account(final Object cache) {
+			super(cache, COLLECTED);
+		}
+
+		/**
+		 * @param bytes
+		 *            the bytes added to the cache, negative if removed
+		 */
+		void add(final long bytes) {
+			m_bytes.addAndGet(bytes);
+			CACHED.addAndGet(bytes);
+		}
+
+		/**
+		 * @return the bytes the cache holds
+		 */
+		long getBytes() {
+			return m_bytes.get();
+		}
+
+		/**
+		 * @param bytes
+		 *            the bytes the cache holds now
+		 */
+		void set(final long bytes) {
+			CACHED.addAndGet(bytes - m_bytes.getAndSet(bytes));
+		}
+	}
+
+	/**
+	 * @return the number of bytes a timepoint may use
+	 */
+	static long getBudget() {
+		final Long mb = Long.getLong(BUDGET_PROPERTY);
+		if (mb != null) {
+			return mb << 20;
+		}
+		final Runtime rt = Runtime.getRuntime();
+		final long used = rt.totalMemory() - rt.freeMemory();
+		return (rt.maxMemory() - used) / 2;
+	}
+
+	/**
+	 * Estimates the heap and texture memory needed to display an 8-bit
+	 * timepoint, including the image itself.
+	 * 
+	 * @param width
+	 *            the width
+	 * @param height
+	 *            the height
+	 * @param slices
+	 *            the number of slices
+	 * @param channels
+	 *            the number of channels
+	 * @param type
+	 *            the render type, see {@link ContentConstants}
+	 * @return the estimate in bytes
+	 */
+	static long estimate(final long width, final long height,
+			final long slices, final int channels, final int type) {
+		final long voxels = width * height * slices;
+		final long image = voxels * channels;
+
+		// several channels are merged into RGBA textures
+		final long texel = channels > 1 ? 4 : 1;
+
+		switch (type) {
+		case ContentConstants.VOLUME:
+		case ContentConstants.ORTHO:
+		case ContentConstants.MULTIORTHO:
+			return image + TEXTURE_STACKS * voxels * texel;
+		case ContentConstants.SURFACE:
+			// the resampled copy and the mesh, which rarely exceeds it
+			return image + 2 * voxels;
+		case BrickedVolumeNode.BRICKED_VOLUME:
+			// the textures and the voxel cache are bounded
+			return image
+					+ Math.min(4 * voxels, BrickedVolumeNode.getTextureBudget())
+					+ Math.min(voxels, BrickedVolumeNode.getCacheBudget());
+		case PointCloudNode.POINT_CLOUD:
+			// at most every voxel becomes a point
+			return image + Math.min(voxels, PointCloudNode.getMaxPoints())
+					* PointCloudNode.POINT_BYTES;
+		default:
+			return image;
+		}
+	}
+
+	/**
+	 * @param imp
+	 *            8-bit image of a single timepoint
+	 * @param type
+	 *            the render type, see {@link ContentConstants}
+	 * @param shares
+	 *            the number of timepoints held at once, which split the
+	 *            budget
+	 * @return the smallest factor by which the resolution of the image has to
+	 *         be reduced along each axis to fit the budget, 1 if it fits
+	 */
+	static int reductionFactor(final ImagePlus imp, final int type,
+			final int shares) {
+		final long budget = getBudget() / shares;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getNSlices();
+		final int c = imp.getNChannels();
+		final int max = Math.max(w, Math.max(h, d));
+
+		int f = 1;
+		while (f < max
+				&& estimate(Math.max(1, w / f), Math.max(1, h / f),
+						Math.max(1, d / f), c, type) > budget) {
+			f++;
+		}
+		return f;
+	}
+}
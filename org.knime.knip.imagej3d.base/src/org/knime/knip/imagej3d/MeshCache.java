@@ -0,0 +1,234 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Least recently used cache of extracted surfaces and their levels of
+ * detail, shared by all viewers, so that returning to a threshold displays
+ * its surface without extracting it again. The cache is bounded by the
+ * estimated bytes of the meshes, which are only softly referenced.
+ * <p>
+ * The size defaults to a sixteenth of the maximum heap and can be set in MB
+ * with the system property {@value #SIZE_PROPERTY}. The cache also shares
+ * the cache budget of {@link MemoryBudget}.
+ */
+final class MeshCache {
+
+	/** System property for the cache size in MB. */
+	static final String SIZE_PROPERTY = "knip.imagej3d.mesh.cache.size";
+
+	// a point object with its three floats and the list slot
+	private static final long BYTES_PER_POINT = 32;
+
+	private static final MeshCache INSTANCE = new MeshCache(Long.getLong(
+			SIZE_PROPERTY, Runtime.getRuntime().maxMemory() / (16 << 20)) << 20);
+
+	private final LinkedHashMap<Key, Entry> m_entries = new LinkedHashMap<Key, Entry>(
+			16, 0.75f, true);
+
+	private final long m_capacity;
+
+	private long m_size;
+
+	private final MemoryBudget.Account m_account = MemoryBudget.account(this);
+
+	private MeshCache(final long capacity) {
+		m_capacity = capacity;
+	}
+
+	/**
+	 * @return the cache shared by all viewers
+	 */
+	static MeshCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param key
+	 *            the key of the surface
+	 * @return the levels of detail of the surface, finest first, or null
+	 */
+	synchronized List<List<Point3f>> get(final Key key) {
+		final Entry e = m_entries.get(key);
+		final List<List<Point3f>> mesh = e == null ? null : e.m_mesh.get();
+		if (mesh == null && e != null) {
+			// collected by the garbage collector
+			m_entries.remove(key);
+			m_size -= e.m_weight;
+			m_account.set(m_size);
+		}
+		return mesh;
+	}
+
+	/**
+	 * Adds a surface, evicting the least recently used ones if the cache or
+	 * the cache budget is full. Surfaces larger than the cache are not
+	 * added.
+	 * 
+	 * @param key
+	 *            the key of the surface
+	 * @param mesh
+	 *            its levels of detail, must not be modified afterwards
+	 */
+	synchronized void put(final Key key, final List<List<Point3f>> mesh) {
+		long weight = 0;
+		for (final List<Point3f> level : mesh) {
+			weight += level.size() * BYTES_PER_POINT;
+		}
+		if (weight > m_capacity) {
+			return;
+		}
+		final Entry old = m_entries.put(key, new Entry(mesh, weight));
+		if (old != null) {
+			m_size -= old.m_weight;
+		}
+		m_size += weight;
+		m_account.set(m_size);
+
+		// the surface just added is kept
+		final Iterator<Entry> it = m_entries.values().iterator();
+		for (int n = m_entries.size(); n > 1
+				&& (m_size > m_capacity || MemoryBudget.isCacheFull()); n--) {
+			final long evicted = it.next().m_weight;
+			it.remove();
+			m_size -= evicted;
+			m_account.add(-evicted);
+		}
+	}
+
+	/**
+	 * Removes all surfaces of an image, e.g. because it is converted with
+	 * another range.
+	 * 
+	 * @param image
+	 *            the key of the image
+	 */
+	synchronized void removeImage(final Object image) {
+		final Iterator<Map.Entry<Key, Entry>> it = m_entries.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			final Map.Entry<Key, Entry> e = it.next();
+			if (e.getKey().m_image.equals(image)) {
+				m_size -= e.getValue().m_weight;
+				it.remove();
+			}
+		}
+		m_account.set(m_size);
+	}
+
+	/**
+	 * Identifies a surface by the image it was extracted from and the
+	 * parameters of the extraction.
+	 */
+	static final class Key {
+
+		private final Object m_image;
+
+		private final int m_frame;
+
+		private final int m_threshold;
+
+		private final int m_resampling;
+
+		/**
+		 * @param image
+		 *            the key of the image, e.g. its {@link ImageFingerprint}
+		 * @param frame
+		 *            the timepoint
+		 * @param threshold
+		 *            the threshold of the surface
+		 * @param resampling
+		 *            the factor by which the resolution was reduced
+		 */
+		Key(final Object image, final int frame, final int threshold,
+				final int resampling) {
+			m_image = image;
+			m_frame = frame;
+			m_threshold = threshold;
+			m_resampling = resampling;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key k = (Key) obj;
+			return m_image.equals(k.m_image) && m_frame == k.m_frame
+					&& m_threshold == k.m_threshold
+					&& m_resampling == k.m_resampling;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((m_image.hashCode() * 31 + m_frame) * 31 + m_threshold)
+					* 31 + m_resampling;
+		}
+	}
+
+	private static final class Entry {
+
+		private final SoftReference<List<List<Point3f>>> m_mesh;
+
+		private final long m_weight;
+
+		Entry(final List<List<Point3f>> mesh, final long weight) {
+			m_mesh = new SoftReference<List<List<Point3f>>>(mesh);
+			m_weight = weight;
+		}
+	}
+}
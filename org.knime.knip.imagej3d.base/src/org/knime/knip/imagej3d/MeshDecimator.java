@@ -0,0 +1,444 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Reduces the triangles of a surface by vertex clustering: the vertices in
+ * each cell of a regular grid are merged into the point which minimises the
+ * quadric error of the planes of their triangles, and triangles which
+ * collapse are dropped. The quadrics are accumulated in parallel, in the pool
+ * of the calling thread if it is a fork-join worker, otherwise in the common
+ * pool.
+ * <p>
+ * The number of triangles of the finest level of detail is limited with the
+ * system property {@value #TRIANGLES_PROPERTY}, one million by default.
+ */
+final class MeshDecimator {
+
+	/** System property for the triangle budget of a surface. */
+	static final String TRIANGLES_PROPERTY = "knip.imagej3d.mesh.triangles";
+
+	private static final int TRIANGLES = Math.max(1000,
+			Integer.getInteger(TRIANGLES_PROPERTY, 1000000));
+
+	// coarser levels have a quarter of the triangles of the previous one
+	private static final int LEVEL_REDUCTION = 4;
+
+	private static final int MAX_LEVELS = 3;
+
+	// levels with fewer triangles are not worth creating
+	private static final int MIN_LEVEL_TRIANGLES = 1000;
+
+	// attempts to meet the target by coarsening the grid
+	private static final int MAX_ATTEMPTS = 6;
+
+	// triangles processed by one task
+	private static final int CHUNK = 1 << 14;
+
+	// quadric (10 values of the symmetric 4x4 matrix), point sum and count
+	private static final int CELL_VALUES = 14;
+
+	private MeshDecimator() {
+		// utility class
+	}
+
+	/**
+	 * Creates the levels of detail of a surface.
+	 * 
+	 * @param mesh
+	 *            the triangles of the surface, three points per triangle
+	 * @param ticket
+	 *            checked before each chunk of work
+	 * @return the levels, finest first; the finest is the surface itself if
+	 *         it is within the triangle budget
+	 */
+	static List<List<Point3f>> createLevels(final List<Point3f> mesh,
+			final LoadTicket ticket) {
+		final List<List<Point3f>> levels = new ArrayList<List<Point3f>>();
+		List<Point3f> level = mesh.size() / 3 > TRIANGLES ? decimate(mesh,
+				TRIANGLES, ticket) : mesh;
+		levels.add(level);
+		for (int i = 1; i < MAX_LEVELS; i++) {
+			final int target = level.size() / 3 / LEVEL_REDUCTION;
+			if (target < MIN_LEVEL_TRIANGLES) {
+				break;
+			}
+			level = decimate(level, target, ticket);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	/**
+	 * @param mesh
+	 *            the triangles of the surface, three points per triangle
+	 * @param target
+	 *            the maximum number of triangles
+	 * @param ticket
+	 *            checked before each chunk of work
+	 * @return the reduced surface, with at most the target number of
+	 *         triangles unless the grid can't get coarser
+	 */
+	static List<Point3f> decimate(final List<Point3f> mesh, final int target,
+			final LoadTicket ticket) {
+		final float[] min = { Float.MAX_VALUE, Float.MAX_VALUE,
+				Float.MAX_VALUE };
+		final float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE,
+				-Float.MAX_VALUE };
+		double edges = 0;
+		for (int i = 0; i < mesh.size(); i++) {
+			final Point3f p = mesh.get(i);
+			min[0] = Math.min(min[0], p.x);
+			min[1] = Math.min(min[1], p.y);
+			min[2] = Math.min(min[2], p.z);
+			max[0] = Math.max(max[0], p.x);
+			max[1] = Math.max(max[1], p.y);
+			max[2] = Math.max(max[2], p.z);
+			// first edge of each triangle, for the mean edge length
+			if (i % 3 == 0) {
+				edges += p.distance(mesh.get(i + 1));
+			}
+		}
+
+		// the number of triangles shrinks with the square of the cell size
+		final int triangles = mesh.size() / 3;
+		double cell = Math.max(edges / triangles, Float.MIN_VALUE)
+				* Math.sqrt((double) triangles / target);
+		List<Point3f> result = mesh;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			result = cluster(mesh, new Grid(min, max, cell), ticket);
+			if (result.size() / 3 <= target) {
+				break;
+			}
+			cell *= 1.1 * Math.sqrt((double) result.size() / 3 / target);
+		}
+		return result;
+	}
+
+	private static List<Point3f> cluster(final List<Point3f> mesh,
+			final Grid grid, final LoadTicket ticket) {
+		final Map<Long, double[]> cells = new QuadricTask(mesh, grid, ticket,
+				0, mesh.size() / 3).invoke();
+
+		final Map<Long, Point3f> points = new HashMap<Long, Point3f>(
+				cells.size() * 2);
+		for (final Map.Entry<Long, double[]> e : cells.entrySet()) {
+			points.put(e.getKey(), grid.representative(e.getKey(), e.getValue()));
+		}
+
+		// keep the triangles whose corners lie in three cells, once
+		final List<Point3f> out = new ArrayList<Point3f>();
+		final TriangleSet seen = new TriangleSet();
+		for (int i = 0; i < mesh.size(); i += 3) {
+			final long a = grid.key(mesh.get(i));
+			final long b = grid.key(mesh.get(i + 1));
+			final long c = grid.key(mesh.get(i + 2));
+			if (a == b || b == c || a == c) {
+				continue;
+			}
+			if (seen.add(Math.min(a, Math.min(b, c)),
+					Math.max(Math.min(a, b), Math.min(Math.max(a, b), c)),
+					Math.max(a, Math.max(b, c)))) {
+				out.add(new Point3f(points.get(a)));
+				out.add(new Point3f(points.get(b)));
+				out.add(new Point3f(points.get(c)));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Set of triangles given by the sorted keys of their cells, hashed openly
+	 * into one array, so adding a triangle allocates nothing but the array
+	 * when it grows.
+	 */
+	private static final class TriangleSet {
+
+		// cell keys are never negative
+		private static final long EMPTY = -1;
+
+		// three keys per slot
+		private long[] m_keys = empty(1024);
+
+		private int m_size;
+
+		/**
+		 * @return true if the triangle was not in the set
+		 */
+		boolean add(final long a, final long b, final long c) {
+			// kept at most half full
+			if (2 * (m_size + 1) > m_keys.length / 3) {
+				grow();
+			}
+			if (insert(m_keys, a, b, c)) {
+				m_size++;
+				return true;
+			}
+			return false;
+		}
+
+		private void grow() {
+			final long[] keys = empty(2 * m_keys.length / 3);
+			for (int i = 0; i < m_keys.length; i += 3) {
+				if (m_keys[i] != EMPTY) {
+					insert(keys, m_keys[i], m_keys[i + 1], m_keys[i + 2]);
+				}
+			}
+			m_keys = keys;
+		}
+
+		private static long[] empty(final int slots) {
+			final long[] keys = new long[3 * slots];
+			Arrays.fill(keys, EMPTY);
+			return keys;
+		}
+
+		private static boolean insert(final long[] keys, final long a,
+				final long b, final long c) {
+			final int mask = keys.length / 3 - 1;
+			long h = (a * 31 + b) * 31 + c;
+			h ^= h >>> 29;
+			h *= 0xbf58476d1ce4e5b9L;
+			h ^= h >>> 32;
+			for (int slot = (int) h & mask;; slot = slot + 1 & mask) {
+				final int i = 3 * slot;
+				if (keys[i] == EMPTY) {
+					keys[i] = a;
+					keys[i + 1] = b;
+					keys[i + 2] = c;
+					return true;
+				}
+				if (keys[i] == a && keys[i + 1] == b && keys[i + 2] == c) {
+					return false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The clustering grid.
+	 */
+	private static final class Grid {
+
+		private final float[] m_min;
+
+		private final double m_cell;
+
+		private final long[] m_size = new long[3];
+
+		Grid(final float[] min, final float[] max, final double cell) {
+			m_min = min;
+			m_cell = cell;
+			for (int d = 0; d < 3; d++) {
+				m_size[d] = (long) ((max[d] - min[d]) / cell) + 1;
+			}
+		}
+
+		long key(final Point3f p) {
+			final long x = (long) ((p.x - m_min[0]) / m_cell);
+			final long y = (long) ((p.y - m_min[1]) / m_cell);
+			final long z = (long) ((p.z - m_min[2]) / m_cell);
+			return (z * m_size[1] + y) * m_size[0] + x;
+		}
+
+		/**
+		 * @return the point of the cell with the least quadric error, the
+		 *         mean of its vertices if that is not well defined, within
+		 *         the cell
+		 */
+		Point3f representative(final long key, final double[] v) {
+			final double n = v[13];
+			final double[] mean = { v[10] / n, v[11] / n, v[12] / n };
+
+			// minimise x^T A x + 2 b^T x + c: solve A x = -b
+			final double a00 = v[0], a01 = v[1], a02 = v[2];
+			final double a11 = v[4], a12 = v[5], a22 = v[7];
+			final double b0 = v[3], b1 = v[6], b2 = v[8];
+			final double c00 = a11 * a22 - a12 * a12;
+			final double c01 = a02 * a12 - a01 * a22;
+			final double c02 = a01 * a12 - a02 * a11;
+			final double det = a00 * c00 + a01 * c01 + a02 * c02;
+			final double trace = a00 + a11 + a22;
+
+			double[] p = mean;
+			if (Math.abs(det) > 1e-6 * trace * trace * trace) {
+				final double c11 = a00 * a22 - a02 * a02;
+				final double c12 = a01 * a02 - a00 * a12;
+				final double c22 = a00 * a11 - a01 * a01;
+				p = new double[] {
+						-(c00 * b0 + c01 * b1 + c02 * b2) / det,
+						-(c01 * b0 + c11 * b1 + c12 * b2) / det,
+						-(c02 * b0 + c12 * b1 + c22 * b2) / det };
+			}
+
+			final long[] index = { key % m_size[0],
+					(key / m_size[0]) % m_size[1], key / m_size[0] / m_size[1] };
+			final float[] out = new float[3];
+			for (int d = 0; d < 3; d++) {
+				final double lo = m_min[d] + index[d] * m_cell;
+				out[d] = (float) Math.max(lo, Math.min(lo + m_cell, p[d]));
+			}
+			return new Point3f(out);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class QuadricTask extends
+			RecursiveTask<Map<Long, double[]>> {
+
+		private final List<Point3f> m_mesh;
+
+		private final Grid m_grid;
+
+		private final LoadTicket m_ticket;
+
+		// triangles
+		private final int m_from;
+
+		private final int m_to;
+
+		QuadricTask(final List<Point3f> mesh, final Grid grid,
+				final LoadTicket ticket, final int from, final int to) {
+			m_mesh = mesh;
+			m_grid = grid;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected Map<Long, double[]> compute() {
+			if (m_to - m_from > CHUNK) {
+				final int mid = (m_from + m_to) >>> 1;
+				final QuadricTask upper = new QuadricTask(m_mesh, m_grid,
+						m_ticket, mid, m_to);
+				upper.fork();
+				final Map<Long, double[]> cells = new QuadricTask(m_mesh,
+						m_grid, m_ticket, m_from, mid).compute();
+				for (final Map.Entry<Long, double[]> e : upper.join()
+						.entrySet()) {
+					final double[] v = cells.get(e.getKey());
+					if (v == null) {
+						cells.put(e.getKey(), e.getValue());
+					} else {
+						for (int i = 0; i < CELL_VALUES; i++) {
+							v[i] += e.getValue()[i];
+						}
+					}
+				}
+				return cells;
+			}
+			m_ticket.checkCancelled();
+
+			final Map<Long, double[]> cells = new HashMap<Long, double[]>();
+			final double[] q = new double[10];
+			for (int t = m_from; t < m_to; t++) {
+				final Point3f a = m_mesh.get(3 * t);
+				final Point3f b = m_mesh.get(3 * t + 1);
+				final Point3f c = m_mesh.get(3 * t + 2);
+
+				// plane of the triangle, weighted by its area
+				final double ux = b.x - a.x, uy = b.y - a.y, uz = b.z - a.z;
+				final double vx = c.x - a.x, vy = c.y - a.y, vz = c.z - a.z;
+				double nx = uy * vz - uz * vy;
+				double ny = uz * vx - ux * vz;
+				double nz = ux * vy - uy * vx;
+				final double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				final double area = len / 2;
+				if (len > 0) {
+					nx /= len;
+					ny /= len;
+					nz /= len;
+				}
+				final double d = -(nx * a.x + ny * a.y + nz * a.z);
+				q[0] = area * nx * nx;
+				q[1] = area * nx * ny;
+				q[2] = area * nx * nz;
+				q[3] = area * nx * d;
+				q[4] = area * ny * ny;
+				q[5] = area * ny * nz;
+				q[6] = area * ny * d;
+				q[7] = area * nz * nz;
+				q[8] = area * nz * d;
+				q[9] = area * d * d;
+
+				add(cells, a, q);
+				add(cells, b, q);
+				add(cells, c, q);
+			}
+			return cells;
+		}
+
+		private void add(final Map<Long, double[]> cells, final Point3f p,
+				final double[] q) {
+			final Long key = m_grid.key(p);
+			double[] v = cells.get(key);
+			if (v == null) {
+				v = new double[CELL_VALUES];
+				cells.put(key, v);
+			}
+			for (int i = 0; i < q.length; i++) {
+				v[i] += q[i];
+			}
+			v[10] += p.x;
+			v[11] += p.y;
+			v[12] += p.z;
+			v[13]++;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Reads single XY, XZ and YZ planes of one channel and timepoint straight
+ * from the source image and converts them to 8 bit, for the orthoslice
+ * display. Nothing else of the image is read. The planes around the ones
+ * requested last are read ahead in the background and kept in a small least
+ * recently used cache, so that moving a slice step by step does not wait for
+ * the source.
+ * 
+ * @param <T>
+ */
+final class OrthoPlanes<T extends RealType<T>> {
+
+	/** Axis normal to the YZ plane. */
+	static final int X = 0;
+
+	/** Axis normal to the XZ plane. */
+	static final int Y = 1;
+
+	/** Axis normal to the XY plane. */
+	static final int Z = 2;
+
+	// planes read ahead on each side of a requested one
+	private static final int NEIGHBOURS = 4;
+
+	// rows of a plane read by one task
+	private static final int ROW_BLOCK = 16;
+
+	private final SourcePlanes<T> m_src;
+
+	private final int m_channel;
+
+	private final int m_frame;
+
+	private final double m_min;
+
+	private final double m_scale;
+
+	private final Map<Long, byte[]> m_cache = new LinkedHashMap<Long, byte[]>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<Long, byte[]> eldest) {
+			return size() > 3 * (2 * NEIGHBOURS + 1);
+		}
+	};
+
+	private LoadTicket m_prefetch;
+
+	/**
+	 * @param src
+	 *            the source planes
+	 * @param stats
+	 *            the statistics of the source, e.g. of the displayed
+	 *            timepoint; may only be null for unsigned 8-bit images
+	 *            which are displayed unstretched, see
+	 *            {@link ByteStackConverter#canWrap}
+	 * @param channel
+	 *            the channel, zero based
+	 * @param frame
+	 *            the timepoint, zero based
+	 * @throws IllegalArgumentException
+	 *             if the statistics of an image which is not unsigned 8-bit
+	 *             are missing
+	 */
+	OrthoPlanes(final SourcePlanes<T> src, final VolumeStatistics stats,
+			final int channel, final int frame) {
+		m_src = src;
+		m_channel = channel;
+		m_frame = frame;
+
+		final double min;
+		final double max;
+		if (stats != null) {
+			min = stats.getMin();
+			max = stats.getMax();
+		} else if (src.getKind() == SourcePlanes.Kind.UNSIGNED_BYTE) {
+			min = 0;
+			max = 255;
+		} else {
+			throw new IllegalArgumentException(
+					"The statistics of the image are required");
+		}
+		m_min = min;
+		m_scale = max > min ? 255 / (max - min) : 0;
+	}
+
+	/**
+	 * @return the number of planes along the given axis
+	 */
+	int getSize(final int axis) {
+		switch (axis) {
+		case X:
+			return m_src.getWidth();
+		case Y:
+			return m_src.getHeight();
+		default:
+			return m_src.getSlices();
+		}
+	}
+
+	/**
+	 * @return the width of the planes normal to the given axis, which is the
+	 *         size along X for XY and XZ planes and along Y for YZ planes
+	 */
+	int getWidth(final int axis) {
+		return axis == X ? m_src.getHeight() : m_src.getWidth();
+	}
+
+	/**
+	 * @return the height of the planes normal to the given axis, which is the
+	 *         size along Y for XY planes and along Z otherwise
+	 */
+	int getHeight(final int axis) {
+		return axis == Z ? m_src.getHeight() : m_src.getSlices();
+	}
+
+	/**
+	 * @param axis
+	 *            the axis normal to the plane
+	 * @param index
+	 *            the position of the plane along the axis
+	 * @return the plane, row by row
+	 */
+	byte[] getPlane(final int axis, final int index) {
+		return getPlane(axis, index, LoadTicket.NONE);
+	}
+
+	/**
+	 * @param axis
+	 *            the axis normal to the plane
+	 * @param index
+	 *            the position of the plane along the axis
+	 * @param ticket
+	 *            cancels reading the plane
+	 * @return the plane, row by row
+	 */
+	byte[] getPlane(final int axis, final int index, final LoadTicket ticket) {
+		final byte[] cached = getCachedPlane(axis, index);
+		if (cached != null) {
+			return cached;
+		}
+		final Long key = key(axis, index);
+		final byte[] plane = read(axis, index, ticket);
+		synchronized (m_cache) {
+			m_cache.put(key, plane);
+		}
+		return plane;
+	}
+
+	/**
+	 * @param axis
+	 *            the axis normal to the plane
+	 * @param index
+	 *            the position of the plane along the axis
+	 * @return the plane if it has been read already, otherwise null
+	 */
+	byte[] getCachedPlane(final int axis, final int index) {
+		synchronized (m_cache) {
+			return m_cache.get(key(axis, index));
+		}
+	}
+
+	/**
+	 * Reads the planes around the given one in the background, nearest
+	 * first. Replaces the previous read-ahead.
+	 * 
+	 * @param axis
+	 *            the axis normal to the plane
+	 * @param index
+	 *            the position of the plane along the axis
+	 */
+	synchronized void prefetch(final int axis, final int index) {
+		cancel();
+		final LoadTicket ticket = new LoadTicket();
+		m_prefetch = ticket;
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 1; i <= NEIGHBOURS; i++) {
+						fetch(axis, index + i, ticket);
+						fetch(axis, index - i, ticket);
+					}
+				} catch (final CancellationException e) {
+					// replaced by a newer read-ahead
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the read-ahead.
+	 */
+	synchronized void cancel() {
+		if (m_prefetch != null) {
+			m_prefetch.cancel();
+			m_prefetch = null;
+		}
+	}
+
+	private void fetch(final int axis, final int index,
+			final LoadTicket ticket) {
+		ticket.checkCancelled();
+		if (index < 0 || index >= getSize(axis)) {
+			return;
+		}
+		final Long key = key(axis, index);
+		synchronized (m_cache) {
+			if (m_cache.containsKey(key)) {
+				return;
+			}
+		}
+		final byte[] plane = read(axis, index, ticket);
+		synchronized (m_cache) {
+			m_cache.put(key, plane);
+		}
+	}
+
+	private static Long key(final int axis, final int index) {
+		return ((long) axis << 32) | index;
+	}
+
+	private int plane(final int z) {
+		return (m_frame * m_src.getSlices() + z) * m_src.getChannels()
+				+ m_channel;
+	}
+
+	private byte[] read(final int axis, final int index,
+			final LoadTicket ticket) {
+		final byte[] out = new byte[getWidth(axis) * getHeight(axis)];
+		new ReadTask(axis, index, out, ticket, 0, getHeight(axis)).invoke();
+		return out;
+	}
+
+	/**
+	 * Reads blocks of rows of a plane in parallel.
+	 */
+	@SuppressWarnings("serial")
+	private final class ReadTask extends RecursiveAction {
+
+		private final int m_axis;
+
+		private final int m_index;
+
+		private final byte[] m_out;
+
+		private final LoadTicket m_ticket;
+
+		private final int m_from;
+
+		private final int m_to;
+
+		ReadTask(final int axis, final int index, final byte[] out,
+				final LoadTicket ticket, final int from, final int to) {
+			m_axis = axis;
+			m_index = index;
+			m_out = out;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > ROW_BLOCK) {
+				final int mid = (m_from + m_to) >>> 1;
+				invokeAll(new ReadTask(m_axis, m_index, m_out, m_ticket,
+						m_from, mid), new ReadTask(m_axis, m_index, m_out,
+						m_ticket, mid, m_to));
+				return;
+			}
+			m_ticket.checkCancelled();
+
+			final int xDim = m_src.getXDim();
+			final int yDim = m_src.getYDim();
+			final int width = getWidth(m_axis);
+			for (int v = m_from; v < m_to; v++) {
+				// rows of XY planes run along Y, the others along Z
+				final RandomAccess<T> ra = m_src
+						.randomAccess(plane(m_axis == Z ? m_index : v));
+				final int moveDim;
+				switch (m_axis) {
+				case X:
+					ra.setPosition(m_src.getMin(xDim) + m_index, xDim);
+					moveDim = yDim;
+					break;
+				case Y:
+					ra.setPosition(m_src.getMin(yDim) + m_index, yDim);
+					moveDim = xDim;
+					break;
+				default:
+					ra.setPosition(m_src.getMin(yDim) + v, yDim);
+					moveDim = xDim;
+				}
+				final int row = v * width;
+				for (int u = 0; u < width; u++) {
+					m_out[row + u] = ByteStackConverter.toByte(ra.get()
+							.getRealDouble(), m_min, m_scale);
+					ra.fwd(moveDim);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.media.j3d.Appearance;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.ImageComponent;
+import javax.media.j3d.ImageComponent2D;
+import javax.media.j3d.PolygonAttributes;
+import javax.media.j3d.QuadArray;
+import javax.media.j3d.RenderingAttributes;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.Texture;
+import javax.media.j3d.Texture2D;
+import javax.media.j3d.TextureAttributes;
+import javax.media.j3d.TransparencyAttributes;
+import javax.media.j3d.View;
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3d;
+import javax.vecmath.TexCoord2f;
+import javax.vecmath.Tuple3d;
+
+import ij3d.Content;
+import ij3d.ContentNode;
+
+/**
+ * Displays one XY, one XZ and one YZ plane of an image as textured quads.
+ * The planes are read from the source when a slice is moved, so opening an
+ * image as orthoslices neither converts nor uploads the whole volume. Planes
+ * which have not been read ahead are read in the background; the plane stays
+ * where it is until its new slice has been read.
+ */
+final class OrthoSliceNode extends ContentNode {
+
+	private final OrthoPlanes<?> m_planes;
+
+	// the size of a voxel along X, Y and Z
+	private final double[] m_spacing;
+
+	// the requested slices
+	private final int[] m_slices = new int[3];
+
+	// reads of requested slices which are not displayed yet
+	private final LoadTicket[] m_reads = new LoadTicket[3];
+
+	private final byte[][] m_data = new byte[3][];
+
+	private final Shape3D[] m_shapes = new Shape3D[3];
+
+	private final TransparencyAttributes m_transparency = new TransparencyAttributes(
+			TransparencyAttributes.NONE, 0);
+
+	// the transfer function, replaced by the color if one is set
+	private final int[] m_red = identity();
+
+	private final int[] m_green = identity();
+
+	private final int[] m_blue = identity();
+
+	private Color3f m_color;
+
+	private int m_threshold;
+
+	/**
+	 * Creates the node showing the central slices.
+	 * 
+	 * @param planes
+	 *            the planes of the image
+	 * @param spacing
+	 *            the size of a voxel along X, Y and Z
+	 */
+	OrthoSliceNode(final OrthoPlanes<?> planes, final double[] spacing) {
+		m_planes = planes;
+		m_spacing = spacing.clone();
+		m_transparency.setCapability(TransparencyAttributes.ALLOW_MODE_WRITE);
+		m_transparency
+				.setCapability(TransparencyAttributes.ALLOW_VALUE_WRITE);
+
+		for (int axis = 0; axis < 3; axis++) {
+			m_slices[axis] = planes.getSize(axis) / 2;
+			m_data[axis] = planes.getPlane(axis, m_slices[axis]);
+			m_shapes[axis] = createShape(axis);
+			addChild(m_shapes[axis]);
+		}
+	}
+
+	/**
+	 * Creates a content displaying the central slices of an image.
+	 * 
+	 * @param name
+	 *            the name of the content
+	 * @param planes
+	 *            the planes of the image
+	 * @param spacing
+	 *            the size of a voxel along X, Y and Z
+	 * @return the content
+	 */
+	static Content createContent(final String name,
+			final OrthoPlanes<?> planes, final double[] spacing) {
+		final Content content = new Content(name);
+		content.display(new OrthoSliceNode(planes, spacing));
+		return content;
+	}
+
+	private static int[] identity() {
+		final int[] lut = new int[256];
+		for (int i = 0; i < lut.length; i++) {
+			lut[i] = i;
+		}
+		return lut;
+	}
+
+	/**
+	 * @param axis
+	 *            the axis normal to the plane, see {@link OrthoPlanes}
+	 * @return the number of slices along the axis
+	 */
+	int getSize(final int axis) {
+		return m_planes.getSize(axis);
+	}
+
+	/**
+	 * @param axis
+	 *            the axis normal to the plane, see {@link OrthoPlanes}
+	 * @return the displayed slice along the axis
+	 */
+	int getSlice(final int axis) {
+		return m_slices[axis];
+	}
+
+	/**
+	 * Moves a plane and reads the slices around it ahead. A slice which has
+	 * not been read ahead is read in the background and displayed once it
+	 * has been read, unless another one has been requested meanwhile.
+	 * 
+	 * @param axis
+	 *            the axis normal to the plane, see {@link OrthoPlanes}
+	 * @param slice
+	 *            the slice to display
+	 */
+	synchronized void setSlice(final int axis, final int slice) {
+		final int s = Math.max(0, Math.min(slice, getSize(axis) - 1));
+		if (s == m_slices[axis]) {
+			return;
+		}
+		m_slices[axis] = s;
+		cancelRead(axis);
+
+		final byte[] plane = m_planes.getCachedPlane(axis, s);
+		if (plane != null) {
+			show(axis, s, plane);
+			return;
+		}
+		final LoadTicket ticket = new LoadTicket();
+		m_reads[axis] = ticket;
+		ForkJoinPool.commonPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final byte[] read = m_planes.getPlane(axis, s, ticket);
+					synchronized (OrthoSliceNode.this) {
+						if (!ticket.isCancelled()) {
+							m_reads[axis] = null;
+							show(axis, s, read);
+						}
+					}
+				} catch (final CancellationException e) {
+					// another slice was requested
+				}
+			}
+		});
+	}
+
+	private void show(final int axis, final int slice, final byte[] plane) {
+		m_data[axis] = plane;
+		m_shapes[axis].getAppearance().setTexture(createTexture(axis));
+		((QuadArray) m_shapes[axis].getGeometry()).setCoordinates(0,
+				corners(axis, slice));
+		m_planes.prefetch(axis, slice);
+	}
+
+	private void cancelRead(final int axis) {
+		if (m_reads[axis] != null) {
+			m_reads[axis].cancel();
+			m_reads[axis] = null;
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the textures of the three planes
+	 */
+	long getTextureBytes() {
+		long bytes = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			bytes += 4L * pow2(m_planes.getWidth(axis))
+					* pow2(m_planes.getHeight(axis));
+		}
+		return bytes;
+	}
+
+	/**
+	 * Stops reading slices.
+	 */
+	synchronized void cancel() {
+		for (int axis = 0; axis < 3; axis++) {
+			cancelRead(axis);
+		}
+		m_planes.cancel();
+	}
+
+	private Shape3D createShape(final int axis) {
+		final QuadArray quad = new QuadArray(4, GeometryArray.COORDINATES
+				| GeometryArray.TEXTURE_COORDINATE_2);
+		quad.setCapability(GeometryArray.ALLOW_COORDINATE_WRITE);
+		quad.setCoordinates(0, corners(axis, m_slices[axis]));
+
+		// textures are padded to a power of two
+		final float s = (float) m_planes.getWidth(axis)
+				/ pow2(m_planes.getWidth(axis));
+		final float t = (float) m_planes.getHeight(axis)
+				/ pow2(m_planes.getHeight(axis));
+		quad.setTextureCoordinates(0, 0, new TexCoord2f[] {
+				new TexCoord2f(0, 0), new TexCoord2f(s, 0),
+				new TexCoord2f(s, t), new TexCoord2f(0, t) });
+
+		final Appearance app = new Appearance();
+		app.setCapability(Appearance.ALLOW_TEXTURE_WRITE);
+		app.setTexture(createTexture(axis));
+		final TextureAttributes texAttr = new TextureAttributes();
+		texAttr.setTextureMode(TextureAttributes.REPLACE);
+		app.setTextureAttributes(texAttr);
+		app.setPolygonAttributes(new PolygonAttributes(
+				PolygonAttributes.POLYGON_FILL, PolygonAttributes.CULL_NONE,
+				0));
+		app.setTransparencyAttributes(m_transparency);
+
+		// values below the threshold are transparent
+		final RenderingAttributes renderAttr = new RenderingAttributes();
+		renderAttr.setAlphaTestFunction(RenderingAttributes.GREATER);
+		renderAttr.setAlphaTestValue(0);
+		app.setRenderingAttributes(renderAttr);
+
+		final Shape3D shape = new Shape3D(quad, app);
+		shape.setCapability(Shape3D.ALLOW_APPEARANCE_READ);
+		shape.setCapability(Shape3D.ALLOW_GEOMETRY_READ);
+		return shape;
+	}
+
+	/**
+	 * @return the corners of the plane in calibrated units, in the order of
+	 *         the texture coordinates
+	 */
+	private Point3d[] corners(final int axis, final int slice) {
+		final double w = m_planes.getSize(OrthoPlanes.X) * m_spacing[0];
+		final double h = m_planes.getSize(OrthoPlanes.Y) * m_spacing[1];
+		final double d = m_planes.getSize(OrthoPlanes.Z) * m_spacing[2];
+		final double p = (slice + 0.5) * m_spacing[axis];
+		switch (axis) {
+		case OrthoPlanes.X:
+			return new Point3d[] { new Point3d(p, 0, 0),
+					new Point3d(p, h, 0), new Point3d(p, h, d),
+					new Point3d(p, 0, d) };
+		case OrthoPlanes.Y:
+			return new Point3d[] { new Point3d(0, p, 0),
+					new Point3d(w, p, 0), new Point3d(w, p, d),
+					new Point3d(0, p, d) };
+		default:
+			return new Point3d[] { new Point3d(0, 0, p),
+					new Point3d(w, 0, p), new Point3d(w, h, p),
+					new Point3d(0, h, p) };
+		}
+	}
+
+	private Texture2D createTexture(final int axis) {
+		final int w = m_planes.getWidth(axis);
+		final int h = m_planes.getHeight(axis);
+		final int tw = pow2(w);
+		final int th = pow2(h);
+		final BufferedImage img = new BufferedImage(tw, th,
+				BufferedImage.TYPE_INT_ARGB);
+		final int[] argb = ((DataBufferInt) img.getRaster().getDataBuffer())
+				.getData();
+		final byte[] data = m_data[axis];
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				argb[y * tw + x] = toARGB(data[y * w + x] & 0xff);
+			}
+		}
+
+		// row 0 of the image is at texture coordinate 0
+		final ImageComponent2D image = new ImageComponent2D(
+				ImageComponent.FORMAT_RGBA, img, false, true);
+		final Texture2D tex = new Texture2D(Texture.BASE_LEVEL,
+				Texture.RGBA, tw, th);
+		tex.setImage(0, image);
+		tex.setMinFilter(Texture.BASE_LEVEL_LINEAR);
+		tex.setMagFilter(Texture.BASE_LEVEL_LINEAR);
+		return tex;
+	}
+
+	private int toARGB(final int v) {
+		if (v < m_threshold) {
+			return 0;
+		}
+		final int r;
+		final int g;
+		final int b;
+		if (m_color != null) {
+			r = (int) (v * m_color.x);
+			g = (int) (v * m_color.y);
+			b = (int) (v * m_color.z);
+		} else {
+			r = m_red[v];
+			g = m_green[v];
+			b = m_blue[v];
+		}
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	private static int pow2(final int n) {
+		int p = 1;
+		while (p < n) {
+			p <<= 1;
+		}
+		return p;
+	}
+
+	private synchronized void updateTextures() {
+		for (int axis = 0; axis < 3; axis++) {
+			m_shapes[axis].getAppearance().setTexture(createTexture(axis));
+		}
+	}
+
+	@Override
+	public void getMin(final Tuple3d min) {
+		min.set(0, 0, 0);
+	}
+
+	@Override
+	public void getMax(final Tuple3d max) {
+		max.set(m_planes.getSize(OrthoPlanes.X) * m_spacing[0],
+				m_planes.getSize(OrthoPlanes.Y) * m_spacing[1],
+				m_planes.getSize(OrthoPlanes.Z) * m_spacing[2]);
+	}
+
+	@Override
+	public void getCenter(final Tuple3d center) {
+		getMax(center);
+		center.scale(0.5);
+	}
+
+	@Override
+	public void channelsUpdated(final boolean[] channels) {
+		// a single channel is displayed
+	}
+
+	@Override
+	public void lutUpdated(final int[] r, final int[] g, final int[] b,
+			final int[] a) {
+		System.arraycopy(r, 0, m_red, 0, m_red.length);
+		System.arraycopy(g, 0, m_green, 0, m_green.length);
+		System.arraycopy(b, 0, m_blue, 0, m_blue.length);
+		updateTextures();
+	}
+
+	@Override
+	public void thresholdUpdated(final int threshold) {
+		m_threshold = threshold;
+		updateTextures();
+	}
+
+	@Override
+	public void colorUpdated(final Color3f color) {
+		m_color = color == null ? null : new Color3f(color);
+		updateTextures();
+	}
+
+	@Override
+	public void transparencyUpdated(final float transparency) {
+		m_transparency.setTransparency(transparency);
+		m_transparency.setTransparencyMode(transparency > 0 ? TransparencyAttributes.BLENDED
+				: TransparencyAttributes.NONE);
+	}
+
+	@Override
+	public void shadeUpdated(final boolean shaded) {
+		// planes are not shaded
+	}
+
+	@Override
+	public void eyePtChanged(final View view) {
+		// planes look the same from all sides
+	}
+
+	@Override
+	public float getVolume() {
+		return 0;
+	}
+
+	@Override
+	public void restoreDisplayedData(final String path, final String name) {
+		// planes are read from the source again
+	}
+
+	@Override
+	public void swapDisplayedData(final String path, final String name) {
+		// planes are read from the source again
+	}
+
+	@Override
+	public void clearDisplayedData() {
+		cancel();
+	}
+}
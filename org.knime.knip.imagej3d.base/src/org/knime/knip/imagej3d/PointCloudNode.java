@@ -0,0 +1,466 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+import javax.media.j3d.Appearance;
+import javax.media.j3d.Geometry;
+import javax.media.j3d.GeometryArray;
+import javax.media.j3d.GeometryUpdater;
+import javax.media.j3d.PointArray;
+import javax.media.j3d.PointAttributes;
+import javax.media.j3d.Shape3D;
+import javax.media.j3d.TransparencyAttributes;
+import javax.media.j3d.View;
+import javax.vecmath.Color3f;
+import javax.vecmath.Tuple3d;
+
+import ij3d.Content;
+import ij3d.ContentNode;
+
+/**
+ * Displays the voxels of an 8-bit timepoint with at least a threshold as
+ * points, coloured by their intensity. Sparse volumes, where few voxels are
+ * foreground, are drawn faster than as a volume and without the cost of
+ * building a surface. The voxels are collected in parallel, a few slices per
+ * task, into primitive arrays which the geometry references directly; bricks
+ * which the {@link BrickIndex} shows to be below the threshold are skipped.
+ * Several channels are combined by their maximum.
+ */
+final class PointCloudNode extends ContentNode {
+
+	/**
+	 * The render type of point clouds, next to those of
+	 * {@link ij3d.ContentConstants}.
+	 */
+	static final int POINT_CLOUD = 16;
+
+	/** System property for the maximum number of points displayed. */
+	static final String MAX_POINTS_PROPERTY = "knip.imagej3d.points.max";
+
+	private static final int DEFAULT_MAX_POINTS = 1 << 22;
+
+	// slices processed by one task
+	private static final int TASK_SLICES = 4;
+
+	// bytes held per point, its coordinates, intensity and color
+	static final int POINT_BYTES = 3 * 4 + 1 + 3;
+
+	private final PointArray m_points;
+
+	private final TransparencyAttributes m_transparency;
+
+	// three calibrated coordinates per point
+	private final float[] m_coords;
+
+	private final byte[] m_intensities;
+
+	private final byte[] m_colors;
+
+	private final int m_count;
+
+	private final float[] m_min = { Float.MAX_VALUE, Float.MAX_VALUE,
+			Float.MAX_VALUE };
+
+	private final float[] m_max = { -Float.MAX_VALUE, -Float.MAX_VALUE,
+			-Float.MAX_VALUE };
+
+	private final float m_volume;
+
+	private PointCloudNode(final Points points, final float voxelVolume) {
+		m_count = points.m_count;
+		m_coords = points.m_coords;
+		m_intensities = points.m_intensities;
+		m_colors = new byte[3 * Math.max(1, m_count)];
+		m_volume = m_count * voxelVolume;
+		for (int i = 0; i < m_count; i++) {
+			for (int d = 0; d < 3; d++) {
+				m_min[d] = Math.min(m_min[d], m_coords[3 * i + d]);
+				m_max[d] = Math.max(m_max[d], m_coords[3 * i + d]);
+			}
+		}
+		if (m_count == 0) {
+			Arrays.fill(m_min, 0);
+			Arrays.fill(m_max, 0);
+		}
+		fillColors(null);
+
+		// the geometry references the arrays, the colors are rewritten
+		// when the color of the content changes
+		m_points = new PointArray(Math.max(1, m_count),
+				GeometryArray.COORDINATES | GeometryArray.COLOR_3
+						| GeometryArray.BY_REFERENCE);
+		m_points.setCapability(GeometryArray.ALLOW_REF_DATA_WRITE);
+		m_points.setCoordRefFloat(m_coords.length < 3 ? new float[3]
+				: m_coords);
+		m_points.setColorRefByte(m_colors);
+		m_points.setValidVertexCount(m_count);
+
+		m_transparency = new TransparencyAttributes(
+				TransparencyAttributes.NONE, 0);
+		m_transparency.setCapability(TransparencyAttributes.ALLOW_MODE_WRITE);
+		m_transparency
+				.setCapability(TransparencyAttributes.ALLOW_VALUE_WRITE);
+
+		final Appearance appearance = new Appearance();
+		appearance.setPointAttributes(new PointAttributes(2, false));
+		appearance.setTransparencyAttributes(m_transparency);
+		addChild(new Shape3D(m_points, appearance));
+	}
+
+	/**
+	 * Creates a content displaying the voxels of a timepoint as points.
+	 * 
+	 * @param name
+	 *            the name of the content
+	 * @param imp
+	 *            8-bit image of a single timepoint
+	 * @param threshold
+	 *            voxels with at least this value are displayed
+	 * @param ticket
+	 *            checked before each task
+	 * @return the content
+	 */
+	static Content createContent(final String name, final ImagePlus imp,
+			final int threshold, final LoadTicket ticket) {
+		final Calibration cal = imp.getCalibration();
+		final float[] spacing = { (float) cal.pixelWidth,
+				(float) cal.pixelHeight, (float) cal.pixelDepth };
+		final BrickIndex index = BrickIndex.of(imp, ticket);
+		final int depth = imp.getStackSize() / Math.max(1, imp.getNChannels());
+		final Points points = new ExtractTask(imp, index, spacing,
+				Math.max(1, threshold), ticket, 0, depth).invoke();
+		ticket.checkCancelled();
+
+		final Content content = new Content(name);
+		content.display(new PointCloudNode(points.thin(getMaxPoints()),
+				spacing[0] * spacing[1] * spacing[2]));
+		return content;
+	}
+
+	/**
+	 * @return the maximum number of points displayed, further voxels are
+	 *         left out evenly
+	 */
+	static int getMaxPoints() {
+		return Math.max(1, Integer.getInteger(MAX_POINTS_PROPERTY,
+				DEFAULT_MAX_POINTS));
+	}
+
+	/**
+	 * @return the number of points
+	 */
+	int getPointCount() {
+		return m_count;
+	}
+
+	/**
+	 * Colors the points by their intensity, in shades of the given color or
+	 * in grey.
+	 */
+	private void fillColors(final Color3f color) {
+		final float r = color == null ? 1 : color.x;
+		final float g = color == null ? 1 : color.y;
+		final float b = color == null ? 1 : color.z;
+		for (int i = 0; i < m_count; i++) {
+			final int v = m_intensities[i] & 0xff;
+			m_colors[3 * i] = (byte) Math.round(v * r);
+			m_colors[3 * i + 1] = (byte) Math.round(v * g);
+			m_colors[3 * i + 2] = (byte) Math.round(v * b);
+		}
+	}
+
+	@Override
+	public void getMin(final Tuple3d min) {
+		min.set(m_min[0], m_min[1], m_min[2]);
+	}
+
+	@Override
+	public void getMax(final Tuple3d max) {
+		max.set(m_max[0], m_max[1], m_max[2]);
+	}
+
+	@Override
+	public void getCenter(final Tuple3d center) {
+		center.set((m_min[0] + m_max[0]) / 2, (m_min[1] + m_max[1]) / 2,
+				(m_min[2] + m_max[2]) / 2);
+	}
+
+	@Override
+	public void channelsUpdated(final boolean[] channels) {
+		// point clouds combine the channels
+	}
+
+	@Override
+	public void lutUpdated(final int[] r, final int[] g, final int[] b,
+			final int[] a) {
+		// the points are shaded by the color of the content
+	}
+
+	@Override
+	public void thresholdUpdated(final int threshold) {
+		// the view extracts the points of another threshold
+	}
+
+	@Override
+	public void colorUpdated(final Color3f color) {
+		m_points.updateData(new GeometryUpdater() {
+			@Override
+			public void updateData(final Geometry geometry) {
+				fillColors(color);
+			}
+		});
+	}
+
+	@Override
+	public void transparencyUpdated(final float transparency) {
+		m_transparency.setTransparencyMode(transparency > 0
+				? TransparencyAttributes.BLENDED
+				: TransparencyAttributes.NONE);
+		m_transparency.setTransparency(transparency);
+	}
+
+	@Override
+	public void shadeUpdated(final boolean shaded) {
+		// points are not lit
+	}
+
+	@Override
+	public void eyePtChanged(final View view) {
+		// the points don't depend on the view
+	}
+
+	@Override
+	public float getVolume() {
+		return m_volume;
+	}
+
+	@Override
+	public void restoreDisplayedData(final String path, final String name) {
+		// the points are kept in memory
+	}
+
+	@Override
+	public void swapDisplayedData(final String path, final String name) {
+		// the points are kept in memory
+	}
+
+	@Override
+	public void clearDisplayedData() {
+		// the points are kept in memory
+	}
+
+	/**
+	 * Growable primitive arrays of points.
+	 */
+	private static final class Points {
+
+		private float[] m_coords = new float[3 * 256];
+
+		private byte[] m_intensities = new byte[256];
+
+		private int m_count;
+
+		void add(final float x, final float y, final float z,
+				final int value) {
+			if (m_count == m_intensities.length) {
+				grow(2 * m_count);
+			}
+			m_coords[3 * m_count] = x;
+			m_coords[3 * m_count + 1] = y;
+			m_coords[3 * m_count + 2] = z;
+			m_intensities[m_count++] = (byte) value;
+		}
+
+		void addAll(final Points other) {
+			if (m_count + other.m_count > m_intensities.length) {
+				grow(m_count + other.m_count);
+			}
+			System.arraycopy(other.m_coords, 0, m_coords, 3 * m_count,
+					3 * other.m_count);
+			System.arraycopy(other.m_intensities, 0, m_intensities, m_count,
+					other.m_count);
+			m_count += other.m_count;
+		}
+
+		/**
+		 * @return points keeping every n-th one so that at most max remain,
+		 *         trimmed to their number
+		 */
+		Points thin(final int max) {
+			final int step = (int) ((m_count + (long) max - 1) / max);
+			if (step > 1) {
+				int n = 0;
+				for (int i = 0; i < m_count; i += step, n++) {
+					System.arraycopy(m_coords, 3 * i, m_coords, 3 * n, 3);
+					m_intensities[n] = m_intensities[i];
+				}
+				m_count = n;
+			}
+			if (m_count < m_intensities.length) {
+				grow(m_count);
+			}
+			return this;
+		}
+
+		private void grow(final int capacity) {
+			m_coords = Arrays.copyOf(m_coords, 3 * capacity);
+			m_intensities = Arrays.copyOf(m_intensities, capacity);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class ExtractTask extends RecursiveTask<Points> {
+
+		private final ImagePlus m_imp;
+
+		private final BrickIndex m_index;
+
+		private final float[] m_spacing;
+
+		private final int m_threshold;
+
+		private final LoadTicket m_ticket;
+
+		// slices
+		private final int m_from;
+
+		private final int m_to;
+
+		ExtractTask(final ImagePlus imp, final BrickIndex index,
+				final float[] spacing, final int threshold,
+				final LoadTicket ticket, final int from, final int to) {
+			m_imp = imp;
+			m_index = index;
+			m_spacing = spacing;
+			m_threshold = threshold;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected Points compute() {
+			if (m_to - m_from > TASK_SLICES) {
+				final int mid = (m_from + m_to) >>> 1;
+				final ExtractTask upper = new ExtractTask(m_imp, m_index,
+						m_spacing, m_threshold, m_ticket, mid, m_to);
+				upper.fork();
+				final Points points = new ExtractTask(m_imp, m_index,
+						m_spacing, m_threshold, m_ticket, m_from, mid)
+						.compute();
+				points.addAll(upper.join());
+				return points;
+			}
+			m_ticket.checkCancelled();
+
+			final ImageStack stack = m_imp.getStack();
+			final int width = m_imp.getWidth();
+			final int height = m_imp.getHeight();
+			final int channels = Math.max(1, m_imp.getNChannels());
+			final Points points = new Points();
+			byte[] slice = null;
+			for (int z = m_from; z < m_to; z++) {
+				for (int ty = 0; ty < height; ty += BrickIndex.BRICK) {
+					for (int tx = 0; tx < width; tx += BrickIndex.BRICK) {
+						if (m_index.max(m_index.brick(tx, ty, z)) < m_threshold) {
+							continue;
+						}
+						// the slice is only read if a brick has points
+						if (slice == null) {
+							slice = slice(stack, z, channels, width * height);
+						}
+						final int yEnd = Math.min(height, ty
+								+ BrickIndex.BRICK);
+						final int xEnd = Math.min(width, tx + BrickIndex.BRICK);
+						for (int y = ty; y < yEnd; y++) {
+							for (int x = tx; x < xEnd; x++) {
+								final int v = slice[y * width + x] & 0xff;
+								if (v >= m_threshold) {
+									points.add(x * m_spacing[0], y
+											* m_spacing[1], z * m_spacing[2],
+											v);
+								}
+							}
+						}
+					}
+				}
+				slice = null;
+			}
+			return points;
+		}
+
+		/**
+		 * @return the slice, channels combined by their maximum
+		 */
+		private static byte[] slice(final ImageStack stack, final int z,
+				final int channels, final int size) {
+			if (channels == 1) {
+				return (byte[]) stack.getPixels(z + 1);
+			}
+			final byte[] max = new byte[size];
+			for (int c = 0; c < channels; c++) {
+				final byte[] plane = (byte[]) stack.getPixels(z * channels
+						+ c + 1);
+				for (int i = 0; i < size; i++) {
+					if ((plane[i] & 0xff) > (max[i] & 0xff)) {
+						max[i] = plane[i];
+					}
+				}
+			}
+			return max;
+		}
+	}
+}
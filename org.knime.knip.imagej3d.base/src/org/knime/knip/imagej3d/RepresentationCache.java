@@ -0,0 +1,189 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used cache of the representations a view has built, so that
+ * switching back to a display mode shows it without building it again. The
+ * cache is bounded by the estimated bytes of the representations; the one
+ * used last is never evicted.
+ * <p>
+ * The size defaults to an eighth of the maximum heap and can be set in MB
+ * with the system property {@value #SIZE_PROPERTY}. The cache also shares
+ * the cache budget of {@link MemoryBudget}.
+ * 
+ * @param <V>
+ *            the representation
+ */
+final class RepresentationCache<V> {
+
+	/** System property for the cache size in MB. */
+	static final String SIZE_PROPERTY = "knip.imagej3d.representation.cache.size";
+
+	private final LinkedHashMap<Key, Entry<V>> m_entries = new LinkedHashMap<Key, Entry<V>>(
+			16, 0.75f, true);
+
+	private final long m_capacity = Long.getLong(SIZE_PROPERTY, Runtime
+			.getRuntime().maxMemory() / (8 << 20)) << 20;
+
+	private long m_size;
+
+	private final MemoryBudget.Account m_account = MemoryBudget.account(this);
+
+	/**
+	 * @param key
+	 *            the key of the representation
+	 * @return the representation or null
+	 */
+	V get(final Key key) {
+		final Entry<V> e = m_entries.get(key);
+		return e == null ? null : e.m_value;
+	}
+
+	/**
+	 * Adds a representation, evicting the least recently used ones if the
+	 * cache or the cache budget is full.
+	 * 
+	 * @param key
+	 *            the key of the representation
+	 * @param value
+	 *            the representation
+	 * @param weight
+	 *            its estimated size in bytes
+	 */
+	void put(final Key key, final V value, final long weight) {
+		final Entry<V> old = m_entries.put(key, new Entry<V>(value, weight));
+		if (old != null) {
+			m_size -= old.m_weight;
+		}
+		m_size += weight;
+		m_account.set(m_size);
+
+		final Iterator<Entry<V>> it = m_entries.values().iterator();
+		for (int n = m_entries.size(); n > 1
+				&& (m_size > m_capacity || MemoryBudget.isCacheFull()); n--) {
+			final long evicted = it.next().m_weight;
+			it.remove();
+			m_size -= evicted;
+			m_account.add(-evicted);
+		}
+	}
+
+	/**
+	 * Removes all representations.
+	 */
+	void clear() {
+		m_entries.clear();
+		m_size = 0;
+		m_account.set(0);
+	}
+
+	/**
+	 * Identifies a representation by the displayed image, timepoint and mode.
+	 */
+	static final class Key {
+
+		private final Object m_image;
+
+		private final int m_frame;
+
+		private final int m_type;
+
+		private final int m_threshold;
+
+		/**
+		 * @param image
+		 *            the key of the image, e.g. its {@link ImageFingerprint}
+		 * @param frame
+		 *            the timepoint
+		 * @param type
+		 *            the render type
+		 * @param threshold
+		 *            the threshold of a surface, ignored by the other modes
+		 */
+		Key(final Object image, final int frame, final int type,
+				final int threshold) {
+			m_image = image;
+			m_frame = frame;
+			m_type = type;
+			m_threshold = threshold;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key k = (Key) obj;
+			return m_image.equals(k.m_image) && m_frame == k.m_frame
+					&& m_type == k.m_type && m_threshold == k.m_threshold;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((m_image.hashCode() * 31 + m_frame) * 31 + m_type) * 31
+					+ m_threshold;
+		}
+	}
+
+	private static final class Entry<V> {
+
+		private final V m_value;
+
+		private final long m_weight;
+
+		Entry(final V value, final long weight) {
+			m_value = value;
+			m_weight = weight;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+import ij3d.ContentConstants;
+
+import java.awt.image.BufferedImage;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * Renders images in software, without a display, with the conversion and the
+ * {@link SoftwareRenderer} of the viewer. Renders a single view or a rotation
+ * of one timepoint around its vertical axis. Configured once, it can render
+ * several images in parallel.
+ */
+public final class SnapshotRenderer {
+
+	/** Names of the render modes, in the order of their constants. */
+	public static final String[] MODES = { "Maximum intensity",
+			"Alpha blending", "Iso surface" };
+
+	/** Threshold chosen from the histogram of each image. */
+	public static final int AUTO_THRESHOLD = -1;
+
+	private final int m_mode;
+
+	private final int m_width;
+
+	private final int m_height;
+
+	private double m_yaw;
+
+	private double m_pitch;
+
+	private int m_views = 1;
+
+	private int m_threshold = AUTO_THRESHOLD;
+
+	private int m_renderers = 1;
+
+	private int m_timepoint;
+
+	/**
+	 * @param mode
+	 *            the index of the mode in {@link #MODES}
+	 * @param width
+	 *            width of the rendered images
+	 * @param height
+	 *            height of the rendered images
+	 */
+	public SnapshotRenderer(final int mode, final int width, final int height) {
+		m_mode = mode;
+		m_width = width;
+		m_height = height;
+	}
+
+	/**
+	 * @param yaw
+	 *            rotation around the vertical axis in degrees, of the first
+	 *            view
+	 * @param pitch
+	 *            rotation around the horizontal axis in degrees
+	 */
+	public void setRotation(final double yaw, final double pitch) {
+		m_yaw = Math.toRadians(yaw);
+		m_pitch = Math.toRadians(pitch);
+	}
+
+	/**
+	 * @param views
+	 *            the number of views of a full rotation around the vertical
+	 *            axis, 1 for a single view
+	 */
+	public void setViews(final int views) {
+		m_views = Math.max(1, views);
+	}
+
+	/**
+	 * @param threshold
+	 *            the intensity up to which voxels are transparent, the iso
+	 *            value of surfaces, or {@link #AUTO_THRESHOLD}
+	 */
+	public void setThreshold(final int threshold) {
+		m_threshold = threshold;
+	}
+
+	/**
+	 * @param timepoint
+	 *            the timepoint to render, zero based; images with fewer
+	 *            timepoints are rendered at their last one
+	 */
+	public void setTimepoint(final int timepoint) {
+		m_timepoint = Math.max(0, timepoint);
+	}
+
+	/**
+	 * @param renderers
+	 *            the number of images rendered at the same time, which share
+	 *            the memory budget
+	 */
+	public void setRenderers(final int renderers) {
+		m_renderers = Math.max(1, renderers);
+	}
+
+	/**
+	 * Renders the configured timepoint of an image.
+	 * 
+	 * @param in
+	 *            the image
+	 * @return an RGB image with the axes X, Y, Channel and, for more than one
+	 *         view, Time
+	 * @throws IllegalArgumentException
+	 *             if the image can't be rendered
+	 */
+	public <T extends RealType<T>> ImgPlus<UnsignedByteType> render(
+			final ImgPlus<T> in) {
+		final String[] error = ImageJ3DTableCellView.validate(in);
+		if (error != null) {
+			final StringBuilder msg = new StringBuilder();
+			for (final String line : error) {
+				msg.append(line.trim()).append(' ');
+			}
+			throw new IllegalArgumentException(msg.toString().trim());
+		}
+
+		final LoadTicket ticket = LoadTicket.NONE;
+		final SourcePlanes<T> src = new SourcePlanes<T>(in);
+		// only the rendered timepoint is swept
+		final int t = Math.min(m_timepoint, src.getFrames() - 1);
+		final VolumeStatistics stats = ByteStackConverter.canWrap(src, null) ? null
+				: VolumeStatistics.computeFrame(src, t, ticket);
+		final ImagePlus imp = LazyPlaneStack.create(src, ByteStackConverter
+				.canWrap(src, stats) ? null : stats);
+		final ImagePlus frame = LazyPlaneStack.frame(imp, t);
+		final ImagePlus volume = Downsampler.reduce(frame, MemoryBudget
+				.reductionFactor(frame, ContentConstants.VOLUME, m_renderers),
+				ticket);
+
+		final SoftwareRenderer renderer = new SoftwareRenderer(volume, ticket);
+		renderer.setMode(m_mode);
+		if (m_mode == SoftwareRenderer.ISO) {
+			// the threshold of the timepoint, not of its reduction
+			renderer.setIsoValue(m_threshold == AUTO_THRESHOLD ? SurfaceExtractor
+					.defaultThreshold(frame) : m_threshold);
+		} else {
+			renderer.setThreshold(Math.max(0, m_threshold));
+		}
+
+		final int plane = m_width * m_height;
+		final byte[] out = new byte[3 * plane * m_views];
+		final int[] rgb = new int[plane];
+		for (int v = 0; v < m_views; v++) {
+			final BufferedImage image = renderer.render(m_width, m_height,
+					m_yaw + 2 * Math.PI * v / m_views, m_pitch, ticket);
+			image.getRGB(0, 0, m_width, m_height, rgb, 0, m_width);
+			final int offset = 3 * plane * v;
+			for (int i = 0; i < plane; i++) {
+				out[offset + i] = (byte) (rgb[i] >> 16);
+				out[offset + plane + i] = (byte) (rgb[i] >> 8);
+				out[offset + 2 * plane + i] = (byte) rgb[i];
+			}
+		}
+
+		final String name = in.getName() == null ? "" : in.getName();
+		if (m_views == 1) {
+			return new ImgPlus<UnsignedByteType>(ArrayImgs.unsignedBytes(out,
+					m_width, m_height, 3), name, new AxisType[] { Axes.X,
+					Axes.Y, Axes.CHANNEL });
+		}
+		return new ImgPlus<UnsignedByteType>(ArrayImgs.unsignedBytes(out,
+				m_width, m_height, 3, m_views), name, new AxisType[] { Axes.X,
+				Axes.Y, Axes.CHANNEL, Axes.TIME });
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingWorker;
+
+/**
+ * Displays a volume rendered by the {@link SoftwareRenderer}, for systems on
+ * which Java 3D is not available. Dragging rotates the volume; while dragging,
+ * images are rendered at half the resolution.
+ */
+@SuppressWarnings("serial")
+final class SoftwareRenderPanel extends JPanel {
+
+	// radians per dragged pixel
+	private static final double ROTATION_SPEED = 0.01;
+
+	private static final String[] MODES = { "Maximum intensity",
+			"Alpha blending", "Iso surface" };
+
+	private final JComboBox<String> m_modes = new JComboBox<String>(MODES);
+
+	private final JComponent m_canvas;
+
+	private SoftwareRenderer m_renderer;
+
+	private BufferedImage m_image;
+
+	private double m_yaw;
+
+	private double m_pitch;
+
+	private LoadTicket m_ticket;
+
+	private Point m_drag;
+
+	SoftwareRenderPanel() {
+		super(new BorderLayout());
+
+		m_canvas = new JComponent() {
+			@Override
+			protected void paintComponent(final Graphics g) {
+				g.setColor(getBackground());
+				g.fillRect(0, 0, getWidth(), getHeight());
+				if (m_image != null) {
+					// scaled up while a coarse image is shown
+					g.drawImage(m_image, 0, 0, getWidth(), getHeight(), null);
+				}
+			}
+		};
+		m_canvas.setOpaque(true);
+		m_canvas.setBackground(Color.BLACK);
+
+		final MouseAdapter mouse = new MouseAdapter() {
+			@Override
+			public void mousePressed(final MouseEvent e) {
+				m_drag = e.getPoint();
+			}
+
+			@Override
+			public void mouseDragged(final MouseEvent e) {
+				if (m_drag == null) {
+					return;
+				}
+				m_yaw += (e.getX() - m_drag.x) * ROTATION_SPEED;
+				m_pitch += (e.getY() - m_drag.y) * ROTATION_SPEED;
+				m_drag = e.getPoint();
+				render(true);
+			}
+
+			@Override
+			public void mouseReleased(final MouseEvent e) {
+				m_drag = null;
+				render(false);
+			}
+		};
+		m_canvas.addMouseListener(mouse);
+		m_canvas.addMouseMotionListener(mouse);
+		m_canvas.addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(final ComponentEvent e) {
+				render(false);
+			}
+		});
+
+		m_modes.setSelectedIndex(SoftwareRenderer.COMPOSITE);
+		m_modes.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				if (m_renderer != null) {
+					m_renderer.setMode(m_modes.getSelectedIndex());
+					render(false);
+				}
+			}
+		});
+
+		final JPanel top = new JPanel(new BorderLayout());
+		top.add(new JLabel(
+				" Java 3D is not available, the image is rendered in software "),
+				BorderLayout.CENTER);
+		top.add(m_modes, BorderLayout.EAST);
+		add(top, BorderLayout.NORTH);
+		add(m_canvas, BorderLayout.CENTER);
+	}
+
+	/**
+	 * Displays another volume, keeping the rotation and mode.
+	 * 
+	 * @param renderer
+	 *            renders the volume
+	 */
+	void setRenderer(final SoftwareRenderer renderer) {
+		renderer.setMode(m_modes.getSelectedIndex());
+		m_renderer = renderer;
+		render(false);
+	}
+
+	/**
+	 * Stops rendering.
+	 */
+	void cancel() {
+		if (m_ticket != null) {
+			m_ticket.cancel();
+			m_ticket = null;
+		}
+	}
+
+	/**
+	 * Renders the volume in the background, replacing a rendering in
+	 * progress.
+	 */
+	private void render(final boolean coarse) {
+		cancel();
+		if (m_renderer == null || m_canvas.getWidth() == 0
+				|| m_canvas.getHeight() == 0) {
+			return;
+		}
+		final int div = coarse ? 2 : 1;
+		final int width = Math.max(1, m_canvas.getWidth() / div);
+		final int height = Math.max(1, m_canvas.getHeight() / div);
+		final SoftwareRenderer renderer = m_renderer;
+		final double yaw = m_yaw;
+		final double pitch = m_pitch;
+		final LoadTicket ticket = new LoadTicket();
+		m_ticket = ticket;
+		new SwingWorker<BufferedImage, Void>() {
+			@Override
+			protected BufferedImage doInBackground() throws Exception {
+				return renderer.render(width, height, yaw, pitch, ticket);
+			}
+
+			@Override
+			protected void done() {
+				if (ticket.isCancelled()) {
+					return;
+				}
+				try {
+					m_image = get();
+					m_canvas.repaint();
+				} catch (final InterruptedException e) {
+					// outdated
+				} catch (final ExecutionException e) {
+					// rendering was cancelled or failed, the last image stays
+				}
+			}
+		}.execute();
+	}
+}
@@ -0,0 +1,521 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.RecursiveAction;
+
+import javax.vecmath.Color3f;
+
+/**
+ * Renders a converted volume by ray casting on the CPU, without Java 3D. Used
+ * where no OpenGL is available, e.g. on headless machines, and as fallback
+ * when the canvas can't be created. Rays are cast in parallel over tiles of
+ * the image; the volume is seen in an orthographic projection, rotated around
+ * its center.
+ * <p>
+ * The transfer function follows the one of the 3D viewer: a voxel has the
+ * color of its channel (or of the content) scaled by its intensity, voxels
+ * below the threshold are transparent and the opacity grows linearly with the
+ * intensity above it. Rays leap over bricks of the {@link BrickIndex} which
+ * are transparent under the transfer function.
+ */
+final class SoftwareRenderer {
+
+	/** Maximum intensity projection. */
+	static final int MIP = 0;
+
+	/** Front to back alpha compositing. */
+	static final int COMPOSITE = 1;
+
+	/** Shaded surface at the iso value. */
+	static final int ISO = 2;
+
+	// rays are cast in tiles of this many pixels per side
+	private static final int TILE = 32;
+
+	// compositing stops once a ray is that opaque
+	private static final float OPAQUE = 0.98f;
+
+	private static final float AMBIENT = 0.2f;
+
+	// channel colors of composite images
+	private static final Color3f[] CHANNEL_COLORS = { new Color3f(1, 0, 0),
+			new Color3f(0, 1, 0), new Color3f(0, 0, 1), new Color3f(0, 1, 1),
+			new Color3f(1, 0, 1), new Color3f(1, 1, 0), new Color3f(1, 1, 1) };
+
+	// planes per channel and slice
+	private final byte[][][] m_planes;
+
+	private final int m_width;
+
+	private final int m_height;
+
+	private final int m_depth;
+
+	private final int m_channels;
+
+	private final BrickIndex m_index;
+
+	// voxel size
+	private final double m_sx, m_sy, m_sz;
+
+	private int m_mode = COMPOSITE;
+
+	private int m_threshold;
+
+	private int m_iso = 128;
+
+	private float m_transparency;
+
+	private Color3f m_color;
+
+	/**
+	 * Reads the planes of a timepoint.
+	 * 
+	 * @param frame
+	 *            a timepoint of a converted image, 8 bit
+	 * @param ticket
+	 *            cancels reading
+	 */
+	SoftwareRenderer(final ImagePlus frame, final LoadTicket ticket) {
+		m_width = frame.getWidth();
+		m_height = frame.getHeight();
+		m_channels = Math.max(1, frame.getNChannels());
+		m_depth = frame.getStackSize() / m_channels;
+
+		final ImageStack stack = frame.getStack();
+		m_planes = new byte[m_channels][m_depth][];
+		for (int z = 0; z < m_depth; z++) {
+			ticket.checkCancelled();
+			for (int c = 0; c < m_channels; c++) {
+				m_planes[c][z] = (byte[]) stack.getPixels(z * m_channels + c
+						+ 1);
+			}
+		}
+
+		m_index = BrickIndex.of(frame, ticket);
+
+		final Calibration cal = frame.getCalibration();
+		m_sx = cal == null ? 1 : cal.pixelWidth;
+		m_sy = cal == null ? 1 : cal.pixelHeight;
+		m_sz = cal == null ? 1 : cal.pixelDepth;
+	}
+
+	/**
+	 * @param mode
+	 *            {@link #MIP}, {@link #COMPOSITE} or {@link #ISO}
+	 */
+	void setMode(final int mode) {
+		m_mode = mode;
+	}
+
+	int getMode() {
+		return m_mode;
+	}
+
+	/**
+	 * @param threshold
+	 *            the intensity up to which voxels are transparent
+	 */
+	void setThreshold(final int threshold) {
+		m_threshold = Math.max(0, Math.min(255, threshold));
+	}
+
+	int getThreshold() {
+		return m_threshold;
+	}
+
+	/**
+	 * @param iso
+	 *            the intensity of the surface shown in {@link #ISO} mode
+	 */
+	void setIsoValue(final int iso) {
+		m_iso = Math.max(1, Math.min(255, iso));
+	}
+
+	/**
+	 * @param transparency
+	 *            0 for opaque, 1 for invisible
+	 */
+	void setTransparency(final float transparency) {
+		m_transparency = transparency;
+	}
+
+	/**
+	 * @param color
+	 *            the color of all channels, or null for the channel colors
+	 */
+	void setColor(final Color3f color) {
+		m_color = color;
+	}
+
+	/**
+	 * Renders the volume.
+	 * 
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 * @param yaw
+	 *            rotation around the vertical axis in radians
+	 * @param pitch
+	 *            rotation around the horizontal axis in radians
+	 * @param ticket
+	 *            cancels rendering
+	 * @return the rendered image
+	 */
+	BufferedImage render(final int width, final int height, final double yaw,
+			final double pitch, final LoadTicket ticket) {
+		final int[] rgb = new int[width * height];
+		new TileTask(new Camera(width, height, yaw, pitch), rgb, ticket, 0,
+				(width + TILE - 1) / TILE * ((height + TILE - 1) / TILE))
+				.invoke();
+		final BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, width, height, rgb, 0, width);
+		return image;
+	}
+
+	/**
+	 * Maps image pixels to rays through the volume, in voxel coordinates.
+	 */
+	private final class Camera {
+
+		private final int m_imageWidth;
+
+		private final int m_imageHeight;
+
+		// voxel offsets of one image pixel to the right and down, and of
+		// one step along the ray
+		private final double[] m_right = new double[3];
+
+		private final double[] m_down = new double[3];
+
+		private final double[] m_step = new double[3];
+
+		// voxel position of the ray through the upper left pixel, in front
+		// of the volume
+		private final double[] m_origin = new double[3];
+
+		// number of steps along a ray
+		private final int m_steps;
+
+		Camera(final int width, final int height, final double yaw,
+				final double pitch) {
+			m_imageWidth = width;
+			m_imageHeight = height;
+
+			// the bounding sphere fills the smaller side of the image
+			final double ex = m_width * m_sx, ey = m_height * m_sy, ez = m_depth
+					* m_sz;
+			final double radius = 0.5 * Math.sqrt(ex * ex + ey * ey + ez * ez);
+			final double pixel = 2 * radius / Math.min(width, height);
+			final double stepLength = Math.min(m_sx, Math.min(m_sy, m_sz));
+			m_steps = (int) Math.ceil(2 * radius / stepLength);
+
+			// columns of the rotation from view to volume space
+			final double cy = Math.cos(yaw), sy = Math.sin(yaw);
+			final double cp = Math.cos(pitch), sp = Math.sin(pitch);
+			final double[] x = { cy, 0, -sy };
+			final double[] y = { sy * sp, cp, cy * sp };
+			final double[] z = { sy * cp, -sp, cy * cp };
+
+			final double[] scale = { m_sx, m_sy, m_sz };
+			final double[] center = { m_width / 2.0, m_height / 2.0,
+					m_depth / 2.0 };
+			for (int d = 0; d < 3; d++) {
+				m_right[d] = x[d] * pixel / scale[d];
+				// image rows go down, the y axis of the volume too
+				m_down[d] = y[d] * pixel / scale[d];
+				m_step[d] = -z[d] * stepLength / scale[d];
+				m_origin[d] = center[d]
+						+ (x[d] * (0.5 - width / 2.0) * pixel + y[d]
+								* (0.5 - height / 2.0) * pixel + z[d] * radius)
+						/ scale[d];
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final class TileTask extends RecursiveAction {
+
+		private final Camera m_camera;
+
+		private final int[] m_rgb;
+
+		private final LoadTicket m_ticket;
+
+		private final int m_from;
+
+		private final int m_to;
+
+		TileTask(final Camera camera, final int[] rgb,
+				final LoadTicket ticket, final int from, final int to) {
+			m_camera = camera;
+			m_rgb = rgb;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from > 1) {
+				final int mid = (m_from + m_to) >>> 1;
+				invokeAll(new TileTask(m_camera, m_rgb, m_ticket, m_from, mid),
+						new TileTask(m_camera, m_rgb, m_ticket, mid, m_to));
+				return;
+			}
+			m_ticket.checkCancelled();
+			final Camera cam = m_camera;
+			final int tilesPerRow = (cam.m_imageWidth + TILE - 1) / TILE;
+			final int x0 = m_from % tilesPerRow * TILE;
+			final int y0 = m_from / tilesPerRow * TILE;
+			final int x1 = Math.min(cam.m_imageWidth, x0 + TILE);
+			final int y1 = Math.min(cam.m_imageHeight, y0 + TILE);
+			final double[] pos = new double[3];
+			final float[] color = new float[3];
+			for (int py = y0; py < y1; py++) {
+				for (int px = x0; px < x1; px++) {
+					for (int d = 0; d < 3; d++) {
+						pos[d] = cam.m_origin[d] + px * cam.m_right[d] + py
+								* cam.m_down[d];
+					}
+					castRay(cam, pos, color);
+					m_rgb[py * cam.m_imageWidth + px] = toRGB(color);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Casts a ray from the given voxel position, leaves its color in the
+	 * given array.
+	 */
+	private void castRay(final Camera cam, final double[] pos,
+			final float[] color) {
+		color[0] = color[1] = color[2] = 0;
+
+		// clip the ray to the volume
+		double enter = 0, leave = cam.m_steps;
+		final int[] size = { m_width, m_height, m_depth };
+		for (int d = 0; d < 3; d++) {
+			final double step = cam.m_step[d];
+			if (step == 0) {
+				if (pos[d] < 0 || pos[d] >= size[d]) {
+					return;
+				}
+				continue;
+			}
+			double t0 = -pos[d] / step;
+			double t1 = (size[d] - pos[d]) / step;
+			if (t0 > t1) {
+				final double t = t0;
+				t0 = t1;
+				t1 = t;
+			}
+			enter = Math.max(enter, t0);
+			leave = Math.min(leave, t1);
+		}
+		if (enter >= leave) {
+			return;
+		}
+
+		final float opacity = 1 - m_transparency;
+		final int threshold = m_threshold;
+		final int iso = m_iso;
+		// bricks up to this value are transparent
+		final int transparent = m_mode == ISO ? iso - 1 : threshold;
+		final int[] max = new int[m_channels];
+		float alpha = 0;
+		for (int i = (int) Math.ceil(enter); i < leave; i++) {
+			final int x = (int) (pos[0] + i * cam.m_step[0]);
+			final int y = (int) (pos[1] + i * cam.m_step[1]);
+			final int z = (int) (pos[2] + i * cam.m_step[2]);
+			if (x < 0 || y < 0 || z < 0 || x >= m_width || y >= m_height
+					|| z >= m_depth) {
+				continue;
+			}
+			if (m_index.max(m_index.brick(x, y, z)) <= transparent) {
+				// continue behind the brick
+				i = Math.max(i, leaveBrick(cam, pos, x, y, z) - 1);
+				continue;
+			}
+			final int index = y * m_width + x;
+
+			if (m_mode == MIP) {
+				for (int c = 0; c < m_channels; c++) {
+					max[c] = Math.max(max[c], m_planes[c][z][index] & 0xff);
+				}
+			} else if (m_mode == ISO) {
+				for (int c = 0; c < m_channels; c++) {
+					if ((m_planes[c][z][index] & 0xff) >= iso) {
+						shade(cam, c, x, y, z, color);
+						scale(color, opacity);
+						return;
+					}
+				}
+			} else {
+				for (int c = 0; c < m_channels; c++) {
+					final int v = m_planes[c][z][index] & 0xff;
+					if (v <= threshold) {
+						continue;
+					}
+					final float a = opacity * (v - threshold)
+							/ (255f - threshold);
+					final float w = (1 - alpha) * a * v / 255f;
+					final Color3f col = colorOf(c);
+					color[0] += w * col.x;
+					color[1] += w * col.y;
+					color[2] += w * col.z;
+					alpha += (1 - alpha) * a;
+				}
+				if (alpha >= OPAQUE) {
+					return;
+				}
+			}
+		}
+
+		if (m_mode == MIP) {
+			for (int c = 0; c < m_channels; c++) {
+				if (max[c] > threshold) {
+					final float w = opacity * max[c] / 255f;
+					final Color3f col = colorOf(c);
+					color[0] += w * col.x;
+					color[1] += w * col.y;
+					color[2] += w * col.z;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the first step of the ray behind the brick containing the
+	 *         given voxel
+	 */
+	private static int leaveBrick(final Camera cam, final double[] pos,
+			final int x, final int y, final int z) {
+		final int[] voxel = { x, y, z };
+		double t = Double.POSITIVE_INFINITY;
+		for (int d = 0; d < 3; d++) {
+			final double step = cam.m_step[d];
+			if (step == 0) {
+				continue;
+			}
+			final int brick = voxel[d] / BrickIndex.BRICK * BrickIndex.BRICK;
+			final double bound = step > 0 ? brick + BrickIndex.BRICK : brick;
+			t = Math.min(t, (bound - pos[d]) / step);
+		}
+		return (int) Math.min(Integer.MAX_VALUE, Math.ceil(t));
+	}
+
+	/**
+	 * Lambert shading with a light at the viewer, the normal is the gradient
+	 * of the channel at the voxel.
+	 */
+	private void shade(final Camera cam, final int c, final int x,
+			final int y, final int z, final float[] color) {
+		final double gx = (value(c, x + 1, y, z) - value(c, x - 1, y, z))
+				/ m_sx;
+		final double gy = (value(c, x, y + 1, z) - value(c, x, y - 1, z))
+				/ m_sy;
+		final double gz = (value(c, x, y, z + 1) - value(c, x, y, z - 1))
+				/ m_sz;
+		// the step of the ray, in physical units
+		final double rx = cam.m_step[0] * m_sx;
+		final double ry = cam.m_step[1] * m_sy;
+		final double rz = cam.m_step[2] * m_sz;
+		final double g = Math.sqrt(gx * gx + gy * gy + gz * gz);
+		final double r = Math.sqrt(rx * rx + ry * ry + rz * rz);
+		final float lambert = g == 0 ? 1 : (float) Math.abs((gx * rx + gy
+				* ry + gz * rz)
+				/ (g * r));
+		final float light = AMBIENT + (1 - AMBIENT) * lambert;
+		final Color3f col = colorOf(c);
+		color[0] = light * col.x;
+		color[1] = light * col.y;
+		color[2] = light * col.z;
+	}
+
+	private int value(final int c, final int x, final int y, final int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= m_width || y >= m_height
+				|| z >= m_depth) {
+			return 0;
+		}
+		return m_planes[c][z][y * m_width + x] & 0xff;
+	}
+
+	private Color3f colorOf(final int channel) {
+		if (m_color != null) {
+			return m_color;
+		}
+		return m_channels == 1 ? CHANNEL_COLORS[CHANNEL_COLORS.length - 1]
+				: CHANNEL_COLORS[channel % CHANNEL_COLORS.length];
+	}
+
+	private static void scale(final float[] color, final float f) {
+		color[0] *= f;
+		color[1] *= f;
+		color[2] *= f;
+	}
+
+	private static int toRGB(final float[] color) {
+		return channel(color[0]) << 16 | channel(color[1]) << 8
+				| channel(color[2]);
+	}
+
+	private static int channel(final float v) {
+		return Math.max(0, Math.min(255, Math.round(v * 255)));
+	}
+}
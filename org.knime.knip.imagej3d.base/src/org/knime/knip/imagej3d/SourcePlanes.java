@@ -0,0 +1,340 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Describes an {@link ImgPlus} as a sequence of XY planes in ImageJ stack
+ * order (channel fastest, then Z, then time) and gives access to the
+ * primitive storage of each plane where the underlying image allows it.
+ * 
+ * @param <T>
+ */
+final class SourcePlanes<T extends RealType<T>> {
+
+	/**
+	 * The pixel types which have specialised conversion loops. Everything
+	 * else is read through a {@link RandomAccess}.
+	 */
+	enum Kind {
+		UNSIGNED_BYTE, UNSIGNED_SHORT, SHORT, INT, FLOAT, GENERIC
+	}
+
+	private final ImgPlus<T> m_img;
+
+	private final Img<T> m_storage;
+
+	private final Kind m_kind;
+
+	private final int m_xDim;
+
+	private final int m_yDim;
+
+	private final int[] m_czt = new int[3];
+
+	private final long[] m_dims;
+
+	// the origin of the image, which need not be zero
+	private final long[] m_min;
+
+	private final int m_width;
+
+	private final int m_height;
+
+	private final int m_channels;
+
+	private final int m_slices;
+
+	private final int m_frames;
+
+	// true if XY planes are contiguous in the primitive storage
+	private final boolean m_raw;
+
+	/**
+	 * @param img
+	 *            the image, must have been validated with
+	 *            {@code ImgToIJ.validateMapping}
+	 */
+	SourcePlanes(final ImgPlus<T> img) {
+		m_img = img;
+		m_dims = new long[img.numDimensions()];
+		img.dimensions(m_dims);
+		m_min = new long[img.numDimensions()];
+		for (int d = 0; d < m_min.length; d++) {
+			m_min[d] = img.min(d);
+		}
+
+		m_xDim = img.dimensionIndex(Axes.X);
+		m_yDim = img.dimensionIndex(Axes.Y);
+		m_czt[0] = img.dimensionIndex(Axes.CHANNEL);
+		m_czt[1] = img.dimensionIndex(Axes.Z);
+		m_czt[2] = img.dimensionIndex(Axes.TIME);
+
+		m_width = (int) m_dims[m_xDim];
+		m_height = (int) m_dims[m_yDim];
+		m_channels = size(m_czt[0]);
+		m_slices = size(m_czt[1]);
+		m_frames = size(m_czt[2]);
+
+		Img<T> storage = img.getImg();
+		while (storage instanceof ImgPlus) {
+			// an ImgPlus wrapping pixels of type T has them of type T
+			@SuppressWarnings("unchecked")
+			final ImgPlus<T> inner = (ImgPlus<T>) storage;
+			storage = inner.getImg();
+		}
+		m_storage = storage;
+		m_kind = kindOf(img.firstElement());
+		m_raw = m_kind != Kind.GENERIC && m_xDim == 0 && m_yDim == 1
+				&& (storage instanceof PlanarImg || storage instanceof ArrayImg);
+	}
+
+	private int size(final int d) {
+		return d < 0 ? 1 : (int) m_dims[d];
+	}
+
+	private static Kind kindOf(final Object type) {
+		if (type instanceof UnsignedByteType) {
+			return Kind.UNSIGNED_BYTE;
+		} else if (type instanceof UnsignedShortType) {
+			return Kind.UNSIGNED_SHORT;
+		} else if (type instanceof ShortType) {
+			return Kind.SHORT;
+		} else if (type instanceof IntType) {
+			return Kind.INT;
+		} else if (type instanceof FloatType) {
+			return Kind.FLOAT;
+		}
+		return Kind.GENERIC;
+	}
+
+	ImgPlus<T> getImgPlus() {
+		return m_img;
+	}
+
+	Kind getKind() {
+		return m_kind;
+	}
+
+	int getWidth() {
+		return m_width;
+	}
+
+	int getHeight() {
+		return m_height;
+	}
+
+	int getChannels() {
+		return m_channels;
+	}
+
+	int getSlices() {
+		return m_slices;
+	}
+
+	int getFrames() {
+		return m_frames;
+	}
+
+	/**
+	 * @return number of XY planes, i.e. channels * slices * frames
+	 */
+	int getPlaneCount() {
+		return m_channels * m_slices * m_frames;
+	}
+
+	/**
+	 * @return the calibrated pixel spacing along the given axis, 1 if the
+	 *         axis is absent or not calibrated
+	 */
+	double getSpacing(final AxisType axis) {
+		final int d = m_img.dimensionIndex(axis);
+		if (d < 0) {
+			return 1;
+		}
+		final double s = m_img.axis(d).averageScale(0, 1);
+		return s > 0 && !Double.isInfinite(s) ? s : 1;
+	}
+
+	/**
+	 * @return the X dimension of the source image
+	 */
+	int getXDim() {
+		return m_xDim;
+	}
+
+	/**
+	 * @return the Y dimension of the source image
+	 */
+	int getYDim() {
+		return m_yDim;
+	}
+
+	/**
+	 * @return the minimum coordinate of the source image in a dimension,
+	 *         which positions are offset by
+	 */
+	long getMin(final int d) {
+		return m_min[d];
+	}
+
+	/**
+	 * Writes the source position of the origin of a plane.
+	 * 
+	 * @param plane
+	 *            zero based plane index in ImageJ stack order
+	 * @param pos
+	 *            array of length numDimensions, receives the position,
+	 *            offset by the minimum of the image
+	 */
+	void planePosition(final int plane, final long[] pos) {
+		final int[] czt = { plane % m_channels,
+				(plane / m_channels) % m_slices,
+				plane / (m_channels * m_slices) };
+		for (int d = 0; d < pos.length; d++) {
+			pos[d] = m_min[d];
+		}
+		for (int i = 0; i < 3; i++) {
+			if (m_czt[i] >= 0) {
+				pos[m_czt[i]] += czt[i];
+			}
+		}
+	}
+
+	/**
+	 * @return true if every plane is stored in an array of its own
+	 */
+	boolean isPlanar() {
+		return m_raw && m_storage instanceof PlanarImg;
+	}
+
+	/**
+	 * @return the primitive array holding the given plane, or null if the
+	 *         plane has to be read with {@link #randomAccess(int)}
+	 */
+	Object rawPlane(final int plane) {
+		if (!m_raw) {
+			return null;
+		}
+		final Object data;
+		if (m_storage instanceof PlanarImg) {
+			final ArrayDataAccess<?> access = ((PlanarImg<?, ?>) m_storage)
+					.getPlane(storagePlane(plane));
+			data = access.getCurrentStorageArray();
+		} else {
+			final Object access = ((ArrayImg<?, ?>) m_storage).update(null);
+			data = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		}
+		return matchesKind(data) ? data : null;
+	}
+
+	/**
+	 * @return offset of the plane in the array returned by
+	 *         {@link #rawPlane(int)}
+	 */
+	int rawOffset(final int plane) {
+		if (m_storage instanceof PlanarImg) {
+			return 0;
+		}
+		return storagePlane(plane) * m_width * m_height;
+	}
+
+	private int storagePlane(final int plane) {
+		final long[] pos = new long[m_dims.length];
+		planePosition(plane, pos);
+		long no = 0;
+		long stride = 1;
+		for (int d = 2; d < m_dims.length; d++) {
+			no += (pos[d] - m_min[d]) * stride;
+			stride *= m_dims[d];
+		}
+		return (int) no;
+	}
+
+	private boolean matchesKind(final Object data) {
+		switch (m_kind) {
+		case UNSIGNED_BYTE:
+			return data instanceof byte[];
+		case UNSIGNED_SHORT:
+		case SHORT:
+			return data instanceof short[];
+		case INT:
+			return data instanceof int[];
+		case FLOAT:
+			return data instanceof float[];
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return a random access positioned at the origin of the given plane
+	 */
+	RandomAccess<T> randomAccess(final int plane) {
+		final long[] pos = new long[m_dims.length];
+		planePosition(plane, pos);
+		final RandomAccess<T> ra = m_img.randomAccess();
+		ra.setPosition(pos);
+		return ra;
+	}
+}
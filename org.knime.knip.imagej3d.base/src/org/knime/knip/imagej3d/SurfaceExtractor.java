@@ -0,0 +1,401 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import javax.vecmath.Point3f;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * Extracts the isosurface of an 8-bit timepoint with marching tetrahedra.
+ * The volume is split into bricks of slices which are processed in parallel,
+ * in the pool of the calling thread if it is a fork-join worker, otherwise in
+ * the common pool; their triangles are concatenated in slice order. Voxels
+ * outside the image count as background, so surfaces touching the border
+ * are closed. Several channels are combined by their maximum. Tiles of cubes
+ * which the {@link BrickIndex} shows to be entirely inside or outside are
+ * skipped.
+ */
+final class SurfaceExtractor {
+
+	// cube layers processed by one task
+	private static final int BRICK_SLICES = 4;
+
+	// corner offsets of a cube
+	private static final int[][] CORNERS = { { 0, 0, 0 }, { 1, 0, 0 },
+			{ 1, 1, 0 }, { 0, 1, 0 }, { 0, 0, 1 }, { 1, 0, 1 }, { 1, 1, 1 },
+			{ 0, 1, 1 } };
+
+	// the six tetrahedra of a cube around its diagonal 0-6, which split
+	// the faces of neighbouring cubes the same way
+	private static final int[][] TETRAHEDRA = { { 0, 5, 1, 6 },
+			{ 0, 1, 2, 6 }, { 0, 2, 3, 6 }, { 0, 3, 7, 6 }, { 0, 7, 4, 6 },
+			{ 0, 4, 5, 6 } };
+
+	private SurfaceExtractor() {
+		// utility class
+	}
+
+	/**
+	 * @param imp
+	 *            8-bit image of a single timepoint
+	 * @return the isodata threshold of the image, the default for its surface
+	 */
+	static int defaultThreshold(final ImagePlus imp) {
+		// counted while the brick index was built
+		final long[] histogram = BrickIndex.of(imp, LoadTicket.NONE)
+				.getHistogram();
+
+		// iterate the mean of the means below and above the threshold
+		int t = 128;
+		for (int iteration = 0; iteration < 256; iteration++) {
+			double below = 0, nBelow = 0, above = 0, nAbove = 0;
+			for (int i = 0; i < 256; i++) {
+				if (i <= t) {
+					below += i * (double) histogram[i];
+					nBelow += histogram[i];
+				} else {
+					above += i * (double) histogram[i];
+					nAbove += histogram[i];
+				}
+			}
+			if (nBelow == 0 || nAbove == 0) {
+				break;
+			}
+			final int next = (int) ((below / nBelow + above / nAbove) / 2);
+			if (next == t) {
+				break;
+			}
+			t = next;
+		}
+		return Math.max(1, t);
+	}
+
+	/**
+	 * @param imp
+	 *            8-bit image of a single timepoint
+	 * @param threshold
+	 *            voxels with at least this value are inside the surface
+	 * @param ticket
+	 *            checked before each brick
+	 * @return the triangles of the surface in calibrated units, three points
+	 *         per triangle, oriented counter-clockwise seen from outside
+	 */
+	static List<Point3f> extract(final ImagePlus imp, final int threshold,
+			final LoadTicket ticket) {
+		final Volume volume = new Volume(imp);
+		final BrickIndex index = BrickIndex.of(imp, ticket);
+		// cubes start one voxel outside the image to close the surface
+		return new BrickTask(volume, index, threshold, ticket, -1,
+				volume.m_depth).invoke();
+	}
+
+	/**
+	 * The voxels of a timepoint, background outside the image.
+	 */
+	private static final class Volume {
+
+		private final ImageStack m_stack;
+
+		private final int m_width;
+
+		private final int m_height;
+
+		private final int m_depth;
+
+		private final int m_channels;
+
+		private final float[] m_spacing;
+
+		Volume(final ImagePlus imp) {
+			m_stack = imp.getStack();
+			m_width = imp.getWidth();
+			m_height = imp.getHeight();
+			m_depth = imp.getNSlices();
+			m_channels = imp.getNChannels();
+			final Calibration cal = imp.getCalibration();
+			m_spacing = new float[] { (float) cal.pixelWidth,
+					(float) cal.pixelHeight, (float) cal.pixelDepth };
+		}
+
+		/**
+		 * @return the slice, channels combined by their maximum, or null
+		 *         outside the image
+		 */
+		byte[] slice(final int z) {
+			if (z < 0 || z >= m_depth) {
+				return null;
+			}
+			if (m_channels == 1) {
+				return (byte[]) m_stack.getPixels(z + 1);
+			}
+			final byte[] max = new byte[m_width * m_height];
+			for (int c = 0; c < m_channels; c++) {
+				final byte[] plane = (byte[]) m_stack.getPixels(z * m_channels
+						+ c + 1);
+				for (int i = 0; i < max.length; i++) {
+					if ((plane[i] & 0xff) > (max[i] & 0xff)) {
+						max[i] = plane[i];
+					}
+				}
+			}
+			return max;
+		}
+
+		int value(final byte[] slice, final int x, final int y) {
+			if (slice == null || x < 0 || y < 0 || x >= m_width
+					|| y >= m_height) {
+				return 0;
+			}
+			return slice[y * m_width + x] & 0xff;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static final class BrickTask extends RecursiveTask<List<Point3f>> {
+
+		private final Volume m_volume;
+
+		private final BrickIndex m_index;
+
+		private final int m_threshold;
+
+		private final LoadTicket m_ticket;
+
+		// cube layers, a layer spans the slices z and z + 1
+		private final int m_from;
+
+		private final int m_to;
+
+		BrickTask(final Volume volume, final BrickIndex index,
+				final int threshold, final LoadTicket ticket, final int from,
+				final int to) {
+			m_volume = volume;
+			m_index = index;
+			m_threshold = threshold;
+			m_ticket = ticket;
+			m_from = from;
+			m_to = to;
+		}
+
+		@Override
+		protected List<Point3f> compute() {
+			if (m_to - m_from > BRICK_SLICES) {
+				final int mid = (m_from + m_to) >>> 1;
+				final BrickTask upper = new BrickTask(m_volume, m_index,
+						m_threshold, m_ticket, mid, m_to);
+				upper.fork();
+				final List<Point3f> mesh = new BrickTask(m_volume, m_index,
+						m_threshold, m_ticket, m_from, mid).compute();
+				mesh.addAll(upper.join());
+				return mesh;
+			}
+			m_ticket.checkCancelled();
+
+			final List<Point3f> mesh = new ArrayList<Point3f>();
+			final int[] values = new int[8];
+			final float[][] points = new float[8][3];
+			byte[] lower = m_volume.slice(m_from);
+			for (int z = m_from; z < m_to; z++) {
+				final byte[] upper = m_volume.slice(z + 1);
+				for (int ty = -1; ty < m_volume.m_height; ty += BrickIndex.BRICK) {
+					final int yEnd = Math.min(m_volume.m_height, ty
+							+ BrickIndex.BRICK);
+					for (int tx = -1; tx < m_volume.m_width; tx += BrickIndex.BRICK) {
+						final int xEnd = Math.min(m_volume.m_width, tx
+								+ BrickIndex.BRICK);
+						// the cubes of a tile span one more voxel
+						if (m_index.mayCross(tx, ty, z, xEnd, yEnd, z + 1,
+								m_threshold)) {
+							polygoniseTile(lower, upper, tx, ty, xEnd, yEnd,
+									z, values, points, mesh);
+						}
+					}
+				}
+				lower = upper;
+			}
+			return mesh;
+		}
+
+		/**
+		 * Adds the triangles of the cubes of a tile in a cube layer.
+		 */
+		private void polygoniseTile(final byte[] lower, final byte[] upper,
+				final int x0, final int y0, final int x1, final int y1,
+				final int z, final int[] values, final float[][] points,
+				final List<Point3f> mesh) {
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					int inside = 0;
+					for (int c = 0; c < 8; c++) {
+						final int[] o = CORNERS[c];
+						values[c] = m_volume.value(o[2] == 0 ? lower
+								: upper, x + o[0], y + o[1]);
+						if (values[c] >= m_threshold) {
+							inside++;
+						}
+					}
+					// most cubes are entirely inside or outside
+					if (inside == 0 || inside == 8) {
+						continue;
+					}
+					for (int c = 0; c < 8; c++) {
+						final int[] o = CORNERS[c];
+						points[c][0] = (x + o[0]) * m_volume.m_spacing[0];
+						points[c][1] = (y + o[1]) * m_volume.m_spacing[1];
+						points[c][2] = (z + o[2]) * m_volume.m_spacing[2];
+					}
+					for (final int[] tet : TETRAHEDRA) {
+						polygonise(tet, values, points, mesh);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds the triangles where the surface cuts a tetrahedron.
+		 */
+		private void polygonise(final int[] tet, final int[] values,
+				final float[][] points, final List<Point3f> mesh) {
+			final int[] in = new int[4];
+			final int[] out = new int[4];
+			int nIn = 0;
+			int nOut = 0;
+			for (final int c : tet) {
+				if (values[c] >= m_threshold) {
+					in[nIn++] = c;
+				} else {
+					out[nOut++] = c;
+				}
+			}
+
+			switch (nIn) {
+			case 1:
+				triangle(edge(in[0], out[0], values, points),
+						edge(in[0], out[1], values, points),
+						edge(in[0], out[2], values, points), points[in[0]],
+						mesh);
+				break;
+			case 3:
+				triangle(edge(in[0], out[0], values, points),
+						edge(in[1], out[0], values, points),
+						edge(in[2], out[0], values, points), centroid(
+								points, in, 3), mesh);
+				break;
+			case 2: {
+				final Point3f a = edge(in[0], out[0], values, points);
+				final Point3f b = edge(in[0], out[1], values, points);
+				final Point3f c = edge(in[1], out[1], values, points);
+				final Point3f d = edge(in[1], out[0], values, points);
+				final float[] inner = centroid(points, in, 2);
+				triangle(a, b, c, inner, mesh);
+				triangle(a, c, d, inner, mesh);
+				break;
+			}
+			default:
+				// no surface in this tetrahedron
+			}
+		}
+
+		/**
+		 * @return the point on the edge between two corners where the
+		 *         interpolated value equals the threshold
+		 */
+		private Point3f edge(final int a, final int b, final int[] values,
+				final float[][] points) {
+			final float t = (float) (m_threshold - values[a])
+					/ (values[b] - values[a]);
+			final float[] pa = points[a];
+			final float[] pb = points[b];
+			return new Point3f(pa[0] + t * (pb[0] - pa[0]), pa[1] + t
+					* (pb[1] - pa[1]), pa[2] + t * (pb[2] - pa[2]));
+		}
+
+		private static float[] centroid(final float[][] points,
+				final int[] corners, final int n) {
+			final float[] c = new float[3];
+			for (int i = 0; i < n; i++) {
+				for (int d = 0; d < 3; d++) {
+					c[d] += points[corners[i]][d] / n;
+				}
+			}
+			return c;
+		}
+
+		/**
+		 * Adds a triangle, turned so that its normal points away from the
+		 * inside.
+		 */
+		private static void triangle(final Point3f a, final Point3f b,
+				final Point3f c, final float[] inside,
+				final List<Point3f> mesh) {
+			final float ux = b.x - a.x, uy = b.y - a.y, uz = b.z - a.z;
+			final float vx = c.x - a.x, vy = c.y - a.y, vz = c.z - a.z;
+			final float nx = uy * vz - uz * vy;
+			final float ny = uz * vx - ux * vz;
+			final float nz = ux * vy - uy * vx;
+			final float dot = nx * (a.x - inside[0]) + ny * (a.y - inside[1])
+					+ nz * (a.z - inside[2]);
+			mesh.add(a);
+			if (dot >= 0) {
+				mesh.add(b);
+				mesh.add(c);
+			} else {
+				mesh.add(c);
+				mesh.add(b);
+			}
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.Timer;
+
+/**
+ * Coalesces the updates requested by an interactive slider. The first
+ * request is applied at once, further requests only mark the update pending
+ * and are applied with the latest value at most {@value #RATE_PROPERTY}
+ * times per second. The throttle is by time only: AWT scrollbars report
+ * every change as final, so whether the slider is being dragged only serves
+ * to apply the last value at once when a drag ends. Must be used on the
+ * event dispatch thread.
+ */
+abstract class UpdateCoalescer {
+
+	/** System property for the maximal number of updates per second. */
+	static final String RATE_PROPERTY = "knip.imagej3d.slider.rate";
+
+	private static final int RATE = Math.max(1,
+			Integer.getInteger(RATE_PROPERTY, 20));
+
+	private final Timer m_timer;
+
+	private boolean m_pending;
+
+	// true while the slider reports a drag
+	private boolean m_adjusting;
+
+	UpdateCoalescer() {
+		m_timer = new Timer(1000 / RATE, new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				if (m_pending) {
+					apply();
+				} else {
+					m_timer.stop();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Applies the latest state, reading it when the update is actually
+	 * performed.
+	 */
+	protected abstract void update();
+
+	/**
+	 * Requests an update, which is applied now or with the next tick.
+	 */
+	final void request() {
+		m_pending = true;
+		if (!m_timer.isRunning()) {
+			apply();
+			m_timer.start();
+		}
+	}
+
+	/**
+	 * Requests an update for a change of the slider. Ending a drag the slider
+	 * reported applies the update at once; all other changes are throttled.
+	 * 
+	 * @param adjusting
+	 *            true if the slider reports the change as part of a drag
+	 */
+	final void request(final boolean adjusting) {
+		request();
+		if (adjusting) {
+			m_adjusting = true;
+		} else if (m_adjusting) {
+			m_adjusting = false;
+			flush();
+		}
+	}
+
+	/**
+	 * Applies a pending update immediately, e.g. once the slider has been
+	 * released.
+	 */
+	final void flush() {
+		m_timer.stop();
+		if (m_pending) {
+			apply();
+		}
+	}
+
+	/**
+	 * Drops a pending update.
+	 */
+	final void cancel() {
+		m_timer.stop();
+		m_pending = false;
+		m_adjusting = false;
+	}
+
+	private void apply() {
+		m_pending = false;
+		update();
+	}
+}
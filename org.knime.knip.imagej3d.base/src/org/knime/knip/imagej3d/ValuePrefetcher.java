@@ -0,0 +1,183 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.knime.core.data.DataValue;
+import org.knime.core.node.NodeLogger;
+import org.knime.knip.base.data.img.ImgPlusValue;
+
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Converts the images of the values handed to the view besides the displayed
+ * one, e.g. further selected cells, in the background. Their first timepoint
+ * is converted into the shared {@link ImagePlusCache}, so selecting one of
+ * them displays it without waiting for the conversion.
+ * <p>
+ * The view only receives the values the table passes to it and cannot read
+ * the rows around the selection, so only those values are prefetched.
+ * Prefetching is off by default; the number of values to prefetch is set
+ * with the system property {@value #VALUES_PROPERTY}. The conversions run on
+ * a pool of minimum priority threads and are cancelled as soon as the view
+ * receives other values.
+ */
+final class ValuePrefetcher {
+
+	/** System property for the number of values prefetched. */
+	static final String VALUES_PROPERTY = "knip.imagej3d.prefetch.values";
+
+	private static final int VALUES = Math.max(0,
+			Integer.getInteger(VALUES_PROPERTY, 0));
+
+	private static final NodeLogger LOGGER = NodeLogger
+			.getLogger(ValuePrefetcher.class);
+
+	// the conversions started from its threads run on the pool as well
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1,
+			Runtime.getRuntime().availableProcessors() - 1),
+			new ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+					final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+							.newThread(pool);
+					t.setName("ImageJ 3D Viewer prefetch " + t.getPoolIndex());
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			}, null, false);
+
+	private LoadTicket m_ticket;
+
+	/**
+	 * Cancels the running prefetch and starts converting the values after
+	 * the displayed one, in their order.
+	 * 
+	 * @param values
+	 *            the values handed to the view, the first one is displayed
+	 */
+	void prefetch(final List<DataValue> values) {
+		cancel();
+		if (VALUES == 0 || values.size() < 2) {
+			return;
+		}
+
+		final List<DataValue> others = new ArrayList<DataValue>(values.subList(
+				1, Math.min(values.size(), VALUES + 1)));
+		final LoadTicket ticket = new LoadTicket();
+		m_ticket = ticket;
+		POOL.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (final DataValue value : others) {
+					try {
+						ticket.checkCancelled();
+						convert(value, ticket);
+					} catch (final CancellationException e) {
+						return;
+					} catch (final Exception e) {
+						LOGGER.debug("Prefetching an image failed", e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops prefetching.
+	 */
+	void cancel() {
+		if (m_ticket != null) {
+			m_ticket.cancel();
+			m_ticket = null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends RealType<T>> void convert(final DataValue value,
+			final LoadTicket ticket) throws Exception {
+		if (!(value instanceof ImgPlusValue)) {
+			return;
+		}
+		final ImgPlus<T> in = ((ImgPlusValue<T>) value).getImgPlus();
+		if (ImageJ3DTableCellView.validate(in) != null) {
+			return;
+		}
+
+		final ImageFingerprint fingerprint = ImageFingerprint.of(
+				(ImgPlusValue<T>) value, in);
+		final SourcePlanes<T> src = new SourcePlanes<T>(in);
+		final ImagePlus imp = ImagePlusCache.getInstance().getOrConvert(
+				fingerprint, new Callable<ImagePlus>() {
+					@Override
+					public ImagePlus call() throws Exception {
+						if (ByteStackConverter.canWrap(src, null)) {
+							return LazyPlaneStack.create(src, null);
+						}
+						final VolumeStatistics stats = VolumeStatistics
+								.computeFrame(src, 0, ticket);
+						return LazyPlaneStack.create(src, ByteStackConverter
+								.canWrap(src, stats) ? null : stats);
+					}
+				}, ticket);
+
+		// the first timepoint is displayed when the value is selected
+		((LazyPlaneStack<?>) LazyPlaneStack.frame(imp, 0).getStack())
+				.preload(ticket);
+	}
+}
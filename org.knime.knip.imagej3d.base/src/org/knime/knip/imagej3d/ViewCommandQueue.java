@@ -0,0 +1,138 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import ij3d.Image3DUniverse;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+
+import javax.media.j3d.Behavior;
+import javax.media.j3d.BoundingSphere;
+import javax.media.j3d.BranchGroup;
+import javax.media.j3d.WakeupCondition;
+import javax.media.j3d.WakeupOnBehaviorPost;
+import javax.media.j3d.WakeupOnElapsedFrames;
+import javax.vecmath.Point3d;
+
+/**
+ * Sequences changes of the view on the renderer. The steps of a command are
+ * run by the behavior scheduler one frame after another, so each step sees
+ * the view the previous one produced. A command replaces the remaining steps
+ * of a command which has not finished yet, only the latest view change is
+ * performed.
+ */
+final class ViewCommandQueue extends Behavior {
+
+	private static final int POST_ID = 1;
+
+	private final Deque<Runnable> m_steps = new ArrayDeque<Runnable>();
+
+	private final WakeupCondition m_posted = new WakeupOnBehaviorPost(this,
+			POST_ID);
+
+	private final WakeupCondition m_nextFrame = new WakeupOnElapsedFrames(0);
+
+	private ViewCommandQueue() {
+		setSchedulingBounds(new BoundingSphere(new Point3d(),
+				Double.POSITIVE_INFINITY));
+	}
+
+	/**
+	 * Creates a queue and adds it to the scene of the universe.
+	 */
+	static ViewCommandQueue attach(final Image3DUniverse universe) {
+		final ViewCommandQueue queue = new ViewCommandQueue();
+		final BranchGroup group = new BranchGroup();
+		group.setCapability(BranchGroup.ALLOW_DETACH);
+		group.addChild(queue);
+		universe.getScene().addChild(group);
+		return queue;
+	}
+
+	/**
+	 * Replaces the pending view changes by the given steps.
+	 * 
+	 * @param steps
+	 *            run one per frame, in order
+	 */
+	void submit(final Runnable... steps) {
+		synchronized (m_steps) {
+			m_steps.clear();
+			m_steps.addAll(Arrays.asList(steps));
+		}
+		postId(POST_ID);
+	}
+
+	@Override
+	public void initialize() {
+		wakeupOn(nextCondition());
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void processStimulus(final Enumeration criteria) {
+		final Runnable step;
+		synchronized (m_steps) {
+			step = m_steps.poll();
+		}
+		if (step != null) {
+			step.run();
+		}
+		wakeupOn(nextCondition());
+	}
+
+	private WakeupCondition nextCondition() {
+		synchronized (m_steps) {
+			return m_steps.isEmpty() ? m_posted : m_nextFrame;
+		}
+	}
+}
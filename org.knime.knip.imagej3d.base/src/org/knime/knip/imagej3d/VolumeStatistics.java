@@ -0,0 +1,425 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Value range of an image, as a whole and per XY plane. Computed in a single
+ * parallel sweep over the source and kept with the viewed cell, so that
+ * converting the same image again does not need another pass.
+ * <p>
+ * The statistics of a single timepoint are enough to display it; they are
+ * refined to the whole image later, reusing the planes already swept. Planes
+ * which have not been swept have no range.
+ */
+final class VolumeStatistics {
+
+	// planes with more pixels than this are split into row blocks
+	private static final int BLOCK_SIZE = 1 << 18;
+
+	private final double m_min;
+
+	private final double m_max;
+
+	private final double[] m_planeMin;
+
+	private final double[] m_planeMax;
+
+	// the planes which have been swept
+	private final int m_from;
+
+	private final int m_to;
+
+	private VolumeStatistics(final double min, final double max,
+			final double[] planeMin, final double[] planeMax,
+			final int from, final int to) {
+		m_min = min;
+		m_max = max;
+		m_planeMin = planeMin;
+		m_planeMax = planeMax;
+		m_from = from;
+		m_to = to;
+	}
+
+	/**
+	 * @return the smallest value of the image
+	 */
+	double getMin() {
+		return m_min;
+	}
+
+	/**
+	 * @return the largest value of the image
+	 */
+	double getMax() {
+		return m_max;
+	}
+
+	/**
+	 * @param plane
+	 *            plane index in ImageJ stack order
+	 * @return the smallest value of the plane
+	 */
+	double getPlaneMin(final int plane) {
+		return m_planeMin[plane];
+	}
+
+	/**
+	 * @param plane
+	 *            plane index in ImageJ stack order
+	 * @return the largest value of the plane
+	 */
+	double getPlaneMax(final int plane) {
+		return m_planeMax[plane];
+	}
+
+	/**
+	 * @return true if all values of the plane are equal, false if the plane
+	 *         has not been swept
+	 */
+	boolean isConstant(final int plane) {
+		return m_planeMin[plane] == m_planeMax[plane];
+	}
+
+	/**
+	 * @return true if all planes have been swept
+	 */
+	boolean isComplete() {
+		return m_from == 0 && m_to == m_planeMin.length;
+	}
+
+	/**
+	 * @return true if the image has the same range by both statistics, so
+	 *         that planes are converted alike
+	 */
+	boolean hasRangeOf(final VolumeStatistics other) {
+		return m_min == other.m_min && m_max == other.m_max;
+	}
+
+	/**
+	 * Computes the statistics of all planes in parallel, in the pool of the
+	 * calling thread if it is a fork-join worker, otherwise in the common
+	 * pool.
+	 * 
+	 * @param src
+	 *            the source planes
+	 * @param ticket
+	 *            checked before each block of work
+	 * @return the statistics
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the ticket is cancelled during the computation
+	 */
+	static <T extends RealType<T>> VolumeStatistics compute(
+			final SourcePlanes<T> src, final LoadTicket ticket) {
+		return compute(src, 0, src.getPlaneCount(), ticket);
+	}
+
+	/**
+	 * Computes the statistics of the planes of one timepoint, see
+	 * {@link #compute(SourcePlanes, LoadTicket)}.
+	 * 
+	 * @param frame
+	 *            the timepoint, zero based
+	 * @return the statistics, to be refined for the other timepoints
+	 */
+	static <T extends RealType<T>> VolumeStatistics computeFrame(
+			final SourcePlanes<T> src, final int frame, final LoadTicket ticket) {
+		final int size = src.getChannels() * src.getSlices();
+		return compute(src, frame * size, (frame + 1) * size, ticket);
+	}
+
+	private static <T extends RealType<T>> VolumeStatistics compute(
+			final SourcePlanes<T> src, final int from, final int to,
+			final LoadTicket ticket) {
+		final int n = src.getPlaneCount();
+		final double[] planeMin = new double[n];
+		final double[] planeMax = new double[n];
+		Arrays.fill(planeMin, Double.NaN);
+		Arrays.fill(planeMax, Double.NaN);
+		final double[] range = new RangeTask<T>(src, ticket, planeMin,
+				planeMax, from, to, 0, src.getHeight()).invoke();
+		return new VolumeStatistics(range[0], range[1], planeMin, planeMax,
+				from, to);
+	}
+
+	/**
+	 * Sweeps the planes which have not been swept yet.
+	 * 
+	 * @param src
+	 *            the source planes the statistics were computed from
+	 * @param ticket
+	 *            checked before each block of work
+	 * @return the statistics of all planes, this if they are complete
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the ticket is cancelled during the computation
+	 */
+	<T extends RealType<T>> VolumeStatistics refine(
+			final SourcePlanes<T> src, final LoadTicket ticket) {
+		if (isComplete()) {
+			return this;
+		}
+		final int n = m_planeMin.length;
+		final double[] planeMin = m_planeMin.clone();
+		final double[] planeMax = m_planeMax.clone();
+		double[] range = { m_min, m_max };
+		if (m_from > 0) {
+			range = RangeTask.merge(range, new RangeTask<T>(src, ticket,
+					planeMin, planeMax, 0, m_from, 0, src.getHeight())
+					.invoke());
+		}
+		if (m_to < n) {
+			range = RangeTask.merge(range, new RangeTask<T>(src, ticket,
+					planeMin, planeMax, m_to, n, 0, src.getHeight()).invoke());
+		}
+		return new VolumeStatistics(range[0], range[1], planeMin, planeMax,
+				0, n);
+	}
+
+	@SuppressWarnings("serial")
+	private static final class RangeTask<T extends RealType<T>> extends
+			RecursiveTask<double[]> {
+
+		private final SourcePlanes<T> m_src;
+
+		private final LoadTicket m_ticket;
+
+		private final double[] m_planeMin;
+
+		private final double[] m_planeMax;
+
+		private final int m_fromPlane;
+
+		private final int m_toPlane;
+
+		private final int m_fromRow;
+
+		private final int m_toRow;
+
+		RangeTask(final SourcePlanes<T> src, final LoadTicket ticket,
+				final double[] planeMin, final double[] planeMax,
+				final int fromPlane, final int toPlane, final int fromRow,
+				final int toRow) {
+			m_src = src;
+			m_ticket = ticket;
+			m_planeMin = planeMin;
+			m_planeMax = planeMax;
+			m_fromPlane = fromPlane;
+			m_toPlane = toPlane;
+			m_fromRow = fromRow;
+			m_toRow = toRow;
+		}
+
+		private RangeTask<T> subTask(final int fromPlane, final int toPlane,
+				final int fromRow, final int toRow) {
+			return new RangeTask<T>(m_src, m_ticket, m_planeMin, m_planeMax,
+					fromPlane, toPlane, fromRow, toRow);
+		}
+
+		@Override
+		protected double[] compute() {
+			if (m_toPlane - m_fromPlane > 1) {
+				final int mid = (m_fromPlane + m_toPlane) >>> 1;
+				final RangeTask<T> left = subTask(m_fromPlane, mid,
+						m_fromRow, m_toRow);
+				left.fork();
+				final double[] right = subTask(mid, m_toPlane, m_fromRow,
+						m_toRow).compute();
+				return merge(left.join(), right);
+			}
+
+			final double[] range;
+			final int rows = m_toRow - m_fromRow;
+			if (rows > 1 && (long) rows * m_src.getWidth() > BLOCK_SIZE) {
+				final int mid = (m_fromRow + m_toRow) >>> 1;
+				final RangeTask<T> top = subTask(m_fromPlane, m_toPlane,
+						m_fromRow, mid);
+				top.fork();
+				final double[] bottom = subTask(m_fromPlane, m_toPlane, mid,
+						m_toRow).compute();
+				range = merge(top.join(), bottom);
+			} else {
+				range = rangeOfRows(m_fromPlane, m_fromRow, m_toRow);
+			}
+
+			// only the task covering the whole plane records its range
+			if (m_fromRow == 0 && m_toRow == m_src.getHeight()) {
+				m_planeMin[m_fromPlane] = range[0];
+				m_planeMax[m_fromPlane] = range[1];
+			}
+			return range;
+		}
+
+		private static double[] merge(final double[] a, final double[] b) {
+			return new double[] { Math.min(a[0], b[0]), Math.max(a[1], b[1]) };
+		}
+
+		private double[] rangeOfRows(final int plane, final int fromRow,
+				final int toRow) {
+			m_ticket.checkCancelled();
+			final int width = m_src.getWidth();
+			final int start = fromRow * width;
+			final int end = toRow * width;
+			final Object raw = m_src.rawPlane(plane);
+			if (raw == null) {
+				return rangeGeneric(plane, fromRow, toRow);
+			}
+
+			final int off = m_src.rawOffset(plane);
+			switch (m_src.getKind()) {
+			case UNSIGNED_BYTE: {
+				final byte[] in = (byte[]) raw;
+				int min = 0xff;
+				int max = 0;
+				for (int i = off + start; i < off + end; i++) {
+					final int v = in[i] & 0xff;
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+				}
+				return new double[] { min, max };
+			}
+			case UNSIGNED_SHORT: {
+				final short[] in = (short[]) raw;
+				int min = 0xffff;
+				int max = 0;
+				for (int i = off + start; i < off + end; i++) {
+					final int v = in[i] & 0xffff;
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+				}
+				return new double[] { min, max };
+			}
+			case SHORT: {
+				final short[] in = (short[]) raw;
+				int min = Short.MAX_VALUE;
+				int max = Short.MIN_VALUE;
+				for (int i = off + start; i < off + end; i++) {
+					final int v = in[i];
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+				}
+				return new double[] { min, max };
+			}
+			case INT: {
+				final int[] in = (int[]) raw;
+				int min = Integer.MAX_VALUE;
+				int max = Integer.MIN_VALUE;
+				for (int i = off + start; i < off + end; i++) {
+					final int v = in[i];
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+				}
+				return new double[] { min, max };
+			}
+			case FLOAT: {
+				final float[] in = (float[]) raw;
+				float min = Float.POSITIVE_INFINITY;
+				float max = Float.NEGATIVE_INFINITY;
+				for (int i = off + start; i < off + end; i++) {
+					final float v = in[i];
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+				}
+				return new double[] { min, max };
+			}
+			default:
+				return rangeGeneric(plane, fromRow, toRow);
+			}
+		}
+
+		private double[] rangeGeneric(final int plane, final int fromRow,
+				final int toRow) {
+			final int width = m_src.getWidth();
+			final int xDim = m_src.getXDim();
+			final int yDim = m_src.getYDim();
+			final RandomAccess<T> ra = m_src.randomAccess(plane);
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int y = fromRow; y < toRow; y++) {
+				ra.setPosition(m_src.getMin(yDim) + y, yDim);
+				ra.setPosition(m_src.getMin(xDim), xDim);
+				for (int x = 0; x < width; x++) {
+					final double v = ra.get().getRealDouble();
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+					ra.fwd(xDim);
+				}
+			}
+			return new double[] { min, max };
+		}
+	}
+}
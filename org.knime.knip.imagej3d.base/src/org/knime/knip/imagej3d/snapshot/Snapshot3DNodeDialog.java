@@ -0,0 +1,100 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d.snapshot;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.knip.base.data.img.ImgPlusValue;
+import org.knime.knip.imagej3d.SnapshotRenderer;
+
+/**
+ * Dialog of the node rendering 3D snapshots.
+ */
+final class Snapshot3DNodeDialog extends DefaultNodeSettingsPane {
+
+	@SuppressWarnings("unchecked")
+	Snapshot3DNodeDialog() {
+		addDialogComponent(new DialogComponentColumnNameSelection(
+				Snapshot3DNodeModel.createColumnModel(), "Image column", 0,
+				ImgPlusValue.class));
+
+		createNewGroup("Rendering");
+		addDialogComponent(new DialogComponentStringSelection(
+				Snapshot3DNodeModel.createModeModel(), "Mode",
+				SnapshotRenderer.MODES));
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createThresholdModel(),
+				"Threshold (-1 = automatic)", 1));
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createWidthModel(), "Width", 16));
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createHeightModel(), "Height", 16));
+		closeCurrentGroup();
+
+		createNewGroup("View");
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createYawModel(), "Rotation (degrees)", 15));
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createPitchModel(), "Tilt (degrees)", 15));
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createViewsModel(),
+				"Views of a full rotation", 1));
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createTimepointModel(), "Timepoint", 1));
+		closeCurrentGroup();
+
+		createNewGroup("Performance");
+		addDialogComponent(new DialogComponentNumber(
+				Snapshot3DNodeModel.createRenderersModel(),
+				"Images rendered in parallel", 1));
+		closeCurrentGroup();
+	}
+}
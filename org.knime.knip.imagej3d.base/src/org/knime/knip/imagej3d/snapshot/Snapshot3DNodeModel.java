@@ -0,0 +1,312 @@
+/*
+ * ------------------------------------------------------------------------
+ *
+ *  Copyright (C) 2003 - 2014
+ *  University of Konstanz, Germany and
+ *  KNIME GmbH, Konstanz, Germany
+ *  Website: http://www.knime.org; Email: contact@knime.org
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License, Version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, see <http://www.gnu.org/licenses>.
+ *
+ *  Additional permission under GNU GPL version 3 section 7:
+ *
+ *  KNIME interoperates with ECLIPSE solely via ECLIPSE's plug-in APIs.
+ *  Hence, KNIME and ECLIPSE are both independent programs and are not
+ *  derived from each other. Should, however, the interpretation of the
+ *  GNU GPL Version 3 ("License") under any applicable laws result in
+ *  KNIME and ECLIPSE being a combined program, KNIME GMBH herewith grants
+ *  you the additional permission to use and propagate KNIME together with
+ *  ECLIPSE with only the license terms in place for ECLIPSE applying to
+ *  ECLIPSE and the GNU GPL Version 3 applying for KNIME, provided the
+ *  license terms of ECLIPSE themselves allow for the respective use and
+ *  propagation of ECLIPSE together with KNIME.
+ *
+ *  Additional permission relating to nodes for KNIME that extend the Node
+ *  Extension (and in particular that are based on subclasses of NodeModel,
+ *  NodeDialog, and NodeView) and that only interoperate with KNIME through
+ *  standard APIs ("Nodes"):
+ *  Nodes are deemed to be separate and independent programs and to not be
+ *  covered works.  Notwithstanding anything to the contrary in the
+ *  License, the License does not apply to Nodes, you are not required to
+ *  license Nodes under the License, and you are granted a license to
+ *  prepare and propagate Nodes, in each case even if such Nodes are
+ *  propagated with or for interoperation with KNIME.  The owner of a Node
+ *  may freely choose the license terms applicable to such Node, including
+ *  when such Node is propagated with or for interoperation with KNIME.
+ * --------------------------------------------------------------------- *
+ *
+ */
+package org.knime.knip.imagej3d.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.container.ColumnRearranger;
+import org.knime.core.data.container.SingleCellFactory;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.knip.base.data.img.ImgPlusCell;
+import org.knime.knip.base.data.img.ImgPlusCellFactory;
+import org.knime.knip.base.data.img.ImgPlusValue;
+import org.knime.knip.imagej3d.SnapshotRenderer;
+
+/**
+ * Renders a view or a rotation of one timepoint of the image of each row in
+ * software and appends them as RGB images. Rows are rendered in parallel by a bounded
+ * number of renderers.
+ */
+public class Snapshot3DNodeModel extends NodeModel {
+
+	// added later, missing in the settings of older workflows
+	private static final String TIMEPOINT_KEY = "timepoint";
+
+	static SettingsModelString createColumnModel() {
+		return new SettingsModelString("column", "");
+	}
+
+	static SettingsModelString createModeModel() {
+		return new SettingsModelString("mode", SnapshotRenderer.MODES[1]);
+	}
+
+	static SettingsModelIntegerBounded createThresholdModel() {
+		return new SettingsModelIntegerBounded("threshold",
+				SnapshotRenderer.AUTO_THRESHOLD,
+				SnapshotRenderer.AUTO_THRESHOLD, 255);
+	}
+
+	static SettingsModelIntegerBounded createWidthModel() {
+		return new SettingsModelIntegerBounded("width", 256, 16, 4096);
+	}
+
+	static SettingsModelIntegerBounded createHeightModel() {
+		return new SettingsModelIntegerBounded("height", 256, 16, 4096);
+	}
+
+	static SettingsModelDoubleBounded createYawModel() {
+		return new SettingsModelDoubleBounded("yaw", 30, -360, 360);
+	}
+
+	static SettingsModelDoubleBounded createPitchModel() {
+		return new SettingsModelDoubleBounded("pitch", 20, -90, 90);
+	}
+
+	static SettingsModelIntegerBounded createViewsModel() {
+		return new SettingsModelIntegerBounded("views", 1, 1, 360);
+	}
+
+	static SettingsModelIntegerBounded createTimepointModel() {
+		return new SettingsModelIntegerBounded(TIMEPOINT_KEY, 1, 1,
+				Integer.MAX_VALUE);
+	}
+
+	static SettingsModelIntegerBounded createRenderersModel() {
+		return new SettingsModelIntegerBounded("renderers", Math.max(1,
+				Runtime.getRuntime().availableProcessors() / 2), 1, 64);
+	}
+
+	private final SettingsModelString m_column = createColumnModel();
+
+	private final SettingsModelString m_mode = createModeModel();
+
+	private final SettingsModelIntegerBounded m_threshold = createThresholdModel();
+
+	private final SettingsModelIntegerBounded m_width = createWidthModel();
+
+	private final SettingsModelIntegerBounded m_height = createHeightModel();
+
+	private final SettingsModelDoubleBounded m_yaw = createYawModel();
+
+	private final SettingsModelDoubleBounded m_pitch = createPitchModel();
+
+	private final SettingsModelIntegerBounded m_views = createViewsModel();
+
+	private final SettingsModelIntegerBounded m_timepoint = createTimepointModel();
+
+	private final SettingsModelIntegerBounded m_renderers = createRenderersModel();
+
+	private final SettingsModel[] m_settings = { m_column, m_mode,
+			m_threshold, m_width, m_height, m_yaw, m_pitch, m_views,
+			m_timepoint, m_renderers };
+
+	Snapshot3DNodeModel() {
+		super(1, 1);
+	}
+
+	@Override
+	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
+			throws InvalidSettingsException {
+		return new DataTableSpec[] { createRearranger(inSpecs[0], null)
+				.createSpec() };
+	}
+
+	@Override
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
+			final ExecutionContext exec) throws Exception {
+		return new BufferedDataTable[] { exec.createColumnRearrangeTable(
+				inData[0], createRearranger(inData[0].getDataTableSpec(), exec),
+				exec) };
+	}
+
+	private ColumnRearranger createRearranger(final DataTableSpec spec,
+			final ExecutionContext exec) throws InvalidSettingsException {
+		final int index = columnIndex(spec);
+		final DataColumnSpec out = new DataColumnSpecCreator(
+				DataTableSpec.getUniqueColumnName(spec, spec.getColumnSpec(
+						index).getName()
+						+ " (3D)"), ImgPlusCell.TYPE).createSpec();
+
+		final SnapshotRenderer renderer = new SnapshotRenderer(modeIndex(),
+				m_width.getIntValue(), m_height.getIntValue());
+		renderer.setRotation(m_yaw.getDoubleValue(), m_pitch.getDoubleValue());
+		renderer.setViews(m_views.getIntValue());
+		renderer.setTimepoint(m_timepoint.getIntValue() - 1);
+		renderer.setThreshold(m_threshold.getIntValue());
+		final int renderers = m_renderers.getIntValue();
+		renderer.setRenderers(renderers);
+
+		final ImgPlusCellFactory cells = exec == null ? null
+				: new ImgPlusCellFactory(exec);
+		final ColumnRearranger rearranger = new ColumnRearranger(spec);
+		rearranger.append(new SingleCellFactory(renderers > 1, renderers,
+				4 * renderers, out) {
+			@Override
+			public DataCell getCell(final DataRow row) {
+				final DataCell in = row.getCell(index);
+				if (in.isMissing()) {
+					return DataType.getMissingCell();
+				}
+				try {
+					return render(renderer, (ImgPlusValue<?>) in, cells);
+				} catch (final IllegalArgumentException e) {
+					setWarningMessage("Rows were skipped: " + e.getMessage());
+					return DataType.getMissingCell();
+				} catch (final IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		return rearranger;
+	}
+
+	private static <T extends RealType<T>> DataCell render(
+			final SnapshotRenderer renderer, final ImgPlusValue<T> value,
+			final ImgPlusCellFactory cells) throws IOException {
+		final ImgPlus<T> in = value.getImgPlus();
+		final ImgPlus<UnsignedByteType> rendered = renderer.render(in);
+		// cells are written to the file store one at a time
+		synchronized (cells) {
+			return cells.createCell(rendered);
+		}
+	}
+
+	private int columnIndex(final DataTableSpec spec)
+			throws InvalidSettingsException {
+		int index = spec.findColumnIndex(m_column.getStringValue());
+		if (index < 0) {
+			// the first image column
+			for (int i = 0; i < spec.getNumColumns(); i++) {
+				if (spec.getColumnSpec(i).getType()
+						.isCompatible(ImgPlusValue.class)) {
+					m_column.setStringValue(spec.getColumnSpec(i).getName());
+					index = i;
+					break;
+				}
+			}
+		}
+		if (index < 0) {
+			throw new InvalidSettingsException("No image column in the input");
+		}
+		if (!spec.getColumnSpec(index).getType()
+				.isCompatible(ImgPlusValue.class)) {
+			throw new InvalidSettingsException("Column "
+					+ m_column.getStringValue() + " does not contain images");
+		}
+		return index;
+	}
+
+	private int modeIndex() throws InvalidSettingsException {
+		for (int i = 0; i < SnapshotRenderer.MODES.length; i++) {
+			if (SnapshotRenderer.MODES[i].equals(m_mode.getStringValue())) {
+				return i;
+			}
+		}
+		throw new InvalidSettingsException("Unknown mode "
+				+ m_mode.getStringValue());
+	}
+
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+		for (final SettingsModel s : m_settings) {
+			s.saveSettingsTo(settings);
+		}
+	}
+
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings)
+			throws InvalidSettingsException {
+		for (final SettingsModel s : m_settings) {
+			if (s != m_timepoint || settings.containsKey(TIMEPOINT_KEY)) {
+				s.validateSettings(settings);
+			}
+		}
+	}
+
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
+			throws InvalidSettingsException {
+		for (final SettingsModel s : m_settings) {
+			if (s != m_timepoint || settings.containsKey(TIMEPOINT_KEY)) {
+				s.loadSettingsFrom(settings);
+			}
+		}
+	}
+
+	@Override
+	protected void loadInternals(final File nodeInternDir,
+			final ExecutionMonitor exec) throws IOException,
+			CanceledExecutionException {
+		// nothing to load
+	}
+
+	@Override
+	protected void saveInternals(final File nodeInternDir,
+			final ExecutionMonitor exec) throws IOException,
+			CanceledExecutionException {
+		// nothing to save
+	}
+
+	@Override
+	protected void reset() {
+		// nothing to reset
+	}
+}